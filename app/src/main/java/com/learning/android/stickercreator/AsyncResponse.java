@@ -1,7 +1,7 @@
 package com.learning.android.stickercreator;
 
-import android.graphics.Bitmap;
+import com.learning.android.stickercreator.stickerprocessing.StickerResult;
 
 public interface AsyncResponse {
-    void processFinish(Object [] output);
+    void processFinish(StickerResult result);
 }
@@ -18,6 +18,9 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 
+import com.learning.android.stickercreator.stickerprocessing.SegmentatorPool;
+import com.learning.android.stickercreator.stickerprocessing.StickerCache;
+
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -79,6 +82,10 @@ public class ImagePickerActiviy extends AppCompatActivity {
         // Elimina tutte le immagini obsolete dalla cartella privata
         clearAppFolder();
 
+        // Prepara il segmentatore in background: mappatura del modello, interprete e
+        //  inferenza di riscaldamento avvengono mentre l'utente sceglie l'immagine
+        SegmentatorPool.getInstance(this).warmUp();
+
         // Imposta i Listener
         mCameraButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -260,7 +267,7 @@ public class ImagePickerActiviy extends AppCompatActivity {
     }
 
     /**
-     * Elimina il contenuto della cache e la cartella
+     * Elimina il contenuto della cache, tranne la cache degli sticker già elaborati
      *
      * @param context       Activity context
      */
@@ -270,8 +277,11 @@ public class ImagePickerActiviy extends AppCompatActivity {
             //Prende la cartella della cache
             File dir = context.getCacheDir();
 
-            //Elimina la cartella
-            deleteDir(dir);
+            //Elimina il contenuto della cartella, la cache degli sticker si limita da sola
+            String[] children = dir.list();
+            for (int i = 0; i < children.length; i++) {
+                if (!StickerCache.DIRECTORY.equals(children[i])) deleteDir(new File(dir, children[i]));
+            }
         } catch (Exception e) { e.printStackTrace();}
     }
 
@@ -353,4 +363,12 @@ public class ImagePickerActiviy extends AppCompatActivity {
     public void onResume() {
         super.onResume();
     }
+
+    // Alla chiusura dell'app rilascia interpreti e delegati dei segmentatori
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (isFinishing()) SegmentatorPool.shutdown();
+    }
 }
\ No newline at end of file
@@ -26,6 +26,9 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.learning.android.stickercreator.stickerprocessing.StickerMemoryCache;
+import com.learning.android.stickercreator.stickerprocessing.StickerResult;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -33,6 +36,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ResultActivity extends AppCompatActivity implements AsyncResponse {
 
@@ -58,6 +63,10 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
     private long time;
     private long timeInf;
 
+    // Elaborazione in corso e relativo thread
+    private ExecutorService mExecutor;
+    private StickerCreationTask mStickerCreationTask;
+
     public final static int STICKER_WIDTH = 512;
     public final static int STICKER_HEIGHT = 512;
 
@@ -110,14 +119,9 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
         // Prendo le sharedpreferences
         sharedpreferences = getSharedPreferences(ImagePickerActiviy.MY_PREFERENCES, Context.MODE_PRIVATE);
 
-        //Verifica la presenza di uno stato salvato e dello sticker nella cache
-        File cachedFile = new File(getCacheDir(), "pic");
-        if (savedInstanceState != null && cachedFile.exists()) {
-
-            //Ripristina lo stato
-            restoreState(cachedFile, savedInstanceState);
-        }
-        else {
+        //Verifica la presenza di uno stato salvato e ripristina lo sticker dalla memoria o dal file
+        // della cache, altrimenti avvia l'elaborazione
+        if (savedInstanceState == null || !restoreState(savedInstanceState)) {
 
             // Disabilita l'input
             getWindow().setFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE, WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
@@ -128,13 +132,14 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
     }
 
     /**
-     * Esegue l'elaborazione in un AsyncTask
+     * Esegue l'elaborazione su un thread dedicato tramite la pipeline
      */
     private void segmentationPipeline() {
 
-        StickerCreationTask stickerCreationTask = new StickerCreationTask(getApplicationContext(), STICKER_WIDTH, STICKER_HEIGHT, mStickerCreationProgressBar, mStickerCreationProgessInfo);
-        stickerCreationTask.mDelegate = this;
-        stickerCreationTask.execute(photoUri);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mStickerCreationTask = new StickerCreationTask(getApplicationContext(), STICKER_WIDTH, STICKER_HEIGHT, mStickerCreationProgressBar, mStickerCreationProgessInfo, mExecutor);
+        mStickerCreationTask.mDelegate = this;
+        mStickerCreationTask.execute(photoUri);
     }
 
     /**
@@ -182,16 +187,31 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
     }
 
     /**
-     *  Ripristina lo stato dell'Activity
+     *  Ripristina lo stato dell'Activity. Lo sticker viene cercato nella cache in memoria del
+     *  processo; solo se il processo è stato terminato viene decodificato dal file della cache
      *
-     * @param cachedFile                File PNG contenente lo Sticker da ripristinare
      * @param savedInstanceState        Bundle contenente lo stato di time e timeInf da ripristinare
+     *
+     * @return                          true se lo sticker è stato ripristinato
      */
-    private void restoreState(File cachedFile, Bundle savedInstanceState) {
-        Log.d("Directory", "Cachedir: " + cachedFile);
+    private boolean restoreState(Bundle savedInstanceState) {
 
         //Ripristina la Bitmap
-        sticker= BitmapFactory.decodeFile(cachedFile.getPath());
+        StickerResult result = StickerMemoryCache.getInstance(this).get(photoUri.toString());
+        if (result != null) {
+            sticker = result.getSticker();
+        }
+        else {
+            File cachedFile = new File(getCacheDir(), "pic");
+            Log.d("Directory", "Cachedir: " + cachedFile);
+
+            sticker = cachedFile.exists() ? BitmapFactory.decodeFile(cachedFile.getPath()) : null;
+            if (sticker == null) {
+
+
+                return false;
+            }
+        }
 
         //Visualizza
         mResultImageView.setImageBitmap(sticker);
@@ -206,6 +226,9 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
 
         //Visualizza
         setTime(time,timeInf);
+
+
+        return true;
     }
 
     /**
@@ -219,8 +242,13 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
         String testo1 = getString(R.string.inference_time) + " " + timeInf + "ms";
         String testo2 = getString(R.string.total_time) + " " + time + "ms";
 
-        //Verifica le sharedpreferences per sapere come è stata elaborata
-        if(sharedpreferences.getBoolean("usaGPU", true)) {
+        //Verifica le sharedpreferences per sapere come è stata elaborata: il backend scelto dal
+        // benchmark, se già eseguito, altrimenti la preferenza sulla GPU
+        String backend = sharedpreferences.getString("backend", null);
+        if (backend != null) {
+            testo += " " + backend;
+        }
+        else if(sharedpreferences.getBoolean("usaGPU", true)) {
             testo += " " + getString(R.string.gpu);
         }
         else{
@@ -299,24 +327,27 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
 
 
     /**
-     * Quando termina l'AsyncTask visualizza il risultato dell'elaborazione
+     * Quando termina l'elaborazione visualizza il risultato
      *
-     * @param output [0]        La bitmap elaborata
-     * @param output [1]        Il tempo impiagato per l'elaborazione (Long)
-     * @param output [2]        Im tempo di inferenza (Long)
+     * @param result        Lo sticker e i tempi di ogni fase
      */
     @Override
-    public void processFinish(Object [] output) {
+    public void processFinish(StickerResult result) {
 
-        if (output[0] != null) {
+        if (result.isSuccessful()) {
 
             // Se non ci sono stati errori
             // Mostra il risultato
-            mResultImageView.setImageBitmap((Bitmap)output[0]);
-            sticker = (Bitmap)output[0];
-            setTime((long)output[1], (long)output[2]);
-            time=(long)output[1];
-            timeInf=(long)output[2];
+            mResultImageView.setImageBitmap(result.getSticker());
+            sticker = result.getSticker();
+            time = result.getTotalTime();
+            timeInf = result.getInferenceTime();
+            setTime(time, timeInf);
+
+            // Conserva il risultato per le ricreazioni dell'Activity e, in background, il file
+            //  da usare se il processo viene terminato
+            StickerMemoryCache.getInstance(this).put(photoUri.toString(), result);
+            saveCurrentStiker();
 
             // Abilita l'input
             getWindow().clearFlags(WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
@@ -342,21 +373,28 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
 
 
     /**
-     * Salva lo stato dell'applicazione se non è già presente uno stato salvato
+     * Salva lo sticker nel file della cache sul thread dell'elaborazione, così che la codifica
+     * PNG non pesi sul thread principale. Il file serve solo a ripristinare lo stato dopo la
+     * terminazione del processo: viene scritto in un file temporaneo e poi rinominato, così
+     * che non sia mai letto a metà
      */
     private void saveCurrentStiker() {
 
-        // Verifica la presenza di uno stato salvato nella cache
-        File cachedBpm = new File(getCacheDir(), "pic");
-        if (!cachedBpm.exists()) {
+        final Bitmap bitmap = sticker;
+        final File cachedBpm = new File(getCacheDir(), "pic");
+        final File tmpBpm = new File(getCacheDir(), "pic.tmp");
 
-            // Se non è presente
-            // Salva la Bitmap "sticker" nella cache
-            createFile(cachedBpm,sticker);
-
-            Log.d("saved", "file created");
-        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
 
+                // Salva la Bitmap "sticker" nella cache
+                createFile(tmpBpm, bitmap);
+                if (tmpBpm.renameTo(cachedBpm)) {
+                    Log.d("saved", "file created");
+                }
+            }
+        });
     }
 
     // Salva lo stato dell'istanza
@@ -366,9 +404,6 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
 
         savedInstanceState.putLong("time", time);
         savedInstanceState.putLong("timeInf", timeInf);
-
-        // Salva lo sticker se necessario (se non nè già stato salvato)
-        saveCurrentStiker();
     }
 
     // Non è necessario salvare lo stato in modo persistente
@@ -384,4 +419,16 @@ public class ResultActivity extends AppCompatActivity implements AsyncResponse {
         Log.d("Resume", "Resume");
     }
 
+    // Interrompe la consegna del risultato e rilascia il thread dell'elaborazione
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (mStickerCreationTask != null) mStickerCreationTask.cancel();
+        if (mExecutor != null) mExecutor.shutdown();
+
+        // Alla chiusura definitiva lo sticker non serve più in memoria
+        if (isFinishing()) StickerMemoryCache.getInstance(this).remove(photoUri.toString());
+    }
+
 }
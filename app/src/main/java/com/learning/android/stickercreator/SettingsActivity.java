@@ -16,6 +16,7 @@ public class SettingsActivity extends AppCompatActivity {
     private final static String TAG = "Settings";
 
     private Switch mUtilizzoGPU;
+    private Switch mBordiMorbidi;
     private Button mSave;
     private Button mBack;
     SharedPreferences sharedpreferences;
@@ -28,6 +29,7 @@ public class SettingsActivity extends AppCompatActivity {
 
         // Inizializzo l'UI
         mUtilizzoGPU = (Switch) findViewById(R.id.enable_gpu);
+        mBordiMorbidi = (Switch) findViewById(R.id.enable_soft_edges);
         mSave = (Button) findViewById(R.id.save_button);
         mBack = (Button) findViewById(R.id.back_button);
 
@@ -37,6 +39,7 @@ public class SettingsActivity extends AppCompatActivity {
         if (savedInstanceState != null){
             // Se è presente uno stato salvato ripristina il valore dello switch
             mUtilizzoGPU.setChecked(savedInstanceState.getBoolean("useGpu"));
+            mBordiMorbidi.setChecked(savedInstanceState.getBoolean("softEdges"));
         }
         else {
             // Altrimenti imposta lo switch al valore salvato nelle sharedpreferences
@@ -99,6 +102,8 @@ public class SettingsActivity extends AppCompatActivity {
             editor.putBoolean("usaGPU", false);
         }
 
+        editor.putBoolean("bordiMorbidi", mBordiMorbidi.isChecked());
+
         editor.commit();
 
         Toast.makeText(SettingsActivity.this, getString(R.string.saved), Toast.LENGTH_LONG).show();
@@ -117,6 +122,8 @@ public class SettingsActivity extends AppCompatActivity {
             mUtilizzoGPU.setChecked(false);
         }
 
+        mBordiMorbidi.setChecked(sharedpreferences.getBoolean("bordiMorbidi", false));
+
     }
 
     // Salva lo stato dell'istanza
@@ -125,6 +132,7 @@ public class SettingsActivity extends AppCompatActivity {
         super.onSaveInstanceState(savedInstanceState);
 
         savedInstanceState.putBoolean("useGpu", mUtilizzoGPU.isChecked());
+        savedInstanceState.putBoolean("softEdges", mBordiMorbidi.isChecked());
     }
 
     // Non è necessario salvare lo stato in modo persistente
@@ -0,0 +1,142 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+public class AlphaMatte {
+    /**
+     * Classe che definisce una maschera morbida: per ogni pixel un'opacità a 8 bit (0 sfondo,
+     * 255 primo piano), ad esempio la probabilità della classe persona restituita dalla rete.
+     * Viene ingrandita una sola volta, con interpolazione bilineare, fino alle dimensioni dello
+     * sticker e applicata come vero canale alpha, così da avere bordi sfumati senza scalini.
+     * Le coordinate seguono la convenzione di {@link MaskRaster}: l'elemento (x, y) si trova
+     * in data[x * width + y], con 0 <= x < height e 0 <= y < width.
+     */
+
+    // Lasciati pubblici per permettere cicli stretti senza chiamate a metodo
+    public final byte[] data;
+    public final int width;
+    public final int height;
+
+    /**
+     * Costruttore della classe. Alloca una maschera completamente trasparente.
+     * @param width la larghezza (dimensione del secondo indice).
+     * @param height l'altezza (dimensione del primo indice).
+     */
+    public AlphaMatte(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException();
+
+        this.data = new byte[width * height];
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return l'opacità dell'elemento (x, y), tra 0 e 255.
+     */
+    public int get(int x, int y) {
+        return data[x * width + y] & 0xFF;
+    }
+
+    /**
+     * Assegna l'opacità all'elemento (x, y).
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @param alpha l'opacità, tra 0 e 255.
+     */
+    public void set(int x, int y, int alpha) {
+        data[x * width + y] = (byte) alpha;
+    }
+
+    /**
+     * Limita la maschera morbida alla componente scelta: i pixel della componente (buchi
+     * riempiti compresi) diventano opachi, quelli adiacenti in 8 direzioni mantengono la
+     * probabilità della rete per sfumare il bordo, tutti gli altri diventano trasparenti.
+     * @param mask la maschera della componente, delle stesse dimensioni.
+     * @param bgColor il colore di sfondo di mask.
+     * @return questa maschera.
+     */
+    public AlphaMatte clip(MaskRaster mask, int bgColor) {
+        if (mask.width != width || mask.height != height) throw new IllegalArgumentException();
+
+        // Fascia di un pixel attorno alla componente, calcolata sulla maschera a bit
+        BitMask band = BitMask.fromRaster(mask, bgColor).dilate(ConnectedComponentsLabeler.CONNECTIVITY_8);
+
+        for (int x = 0; x < height; x++) {
+            int row = x * mask.stride;
+            for (int y = 0; y < width; y++) {
+                if (mask.data[row + y] != bgColor) data[x * width + y] = (byte) 255;
+                else if (!band.get(x, y)) data[x * width + y] = 0;
+            }
+        }
+
+
+        return this;
+    }
+
+    /**
+     * Ingrandisce la maschera con interpolazione bilineare, allineando i centri dei pixel.
+     * @param target la maschera di destinazione, di dimensioni qualsiasi.
+     * @return target.
+     */
+    public AlphaMatte upsample(AlphaMatte target) {
+        int targetWidth = target.width;
+        int targetHeight = target.height;
+
+        // Per ogni colonna di destinazione: colonna sorgente e peso in virgola fissa (8 bit)
+        int[] col0 = new int[targetWidth];
+        int[] col1 = new int[targetWidth];
+        int[] colWeight = new int[targetWidth];
+        for (int y = 0; y < targetWidth; y++) {
+            float src = (y + 0.5f) * width / targetWidth - 0.5f;
+            if (src < 0) src = 0;
+            int y0 = (int) src;
+            col0[y] = y0;
+            col1[y] = Math.min(y0 + 1, width - 1);
+            colWeight[y] = (int) ((src - y0) * 256);
+        }
+
+        for (int x = 0; x < targetHeight; x++) {
+            float src = (x + 0.5f) * height / targetHeight - 0.5f;
+            if (src < 0) src = 0;
+            int x0 = (int) src;
+            int row0 = x0 * width;
+            int row1 = Math.min(x0 + 1, height - 1) * width;
+            int rowWeight = (int) ((src - x0) * 256);
+
+            int out = x * targetWidth;
+            for (int y = 0; y < targetWidth; y++) {
+                int w = colWeight[y];
+
+                // Interpolazione orizzontale sulle due righe, poi verticale
+                int top = (data[row0 + col0[y]] & 0xFF) * (256 - w) + (data[row0 + col1[y]] & 0xFF) * w;
+                int bottom = (data[row1 + col0[y]] & 0xFF) * (256 - w) + (data[row1 + col1[y]] & 0xFF) * w;
+                target.data[out + y] = (byte) ((top * (256 - rowWeight) + bottom * rowWeight + (1 << 15)) >>> 16);
+            }
+        }
+
+
+        return target;
+    }
+
+    /**
+     * Converte la maschera morbida in una maschera binaria.
+     * @param target la maschera di destinazione, delle stesse dimensioni.
+     * @param threshold l'opacità minima per il primo piano.
+     * @param fgColor il valore per il primo piano.
+     * @param bgColor il valore per lo sfondo.
+     * @return target.
+     */
+    public MaskRaster toMask(MaskRaster target, int threshold, int fgColor, int bgColor) {
+        if (target.width != width || target.height != height) throw new IllegalArgumentException();
+
+        for (int x = 0; x < height; x++) {
+            int row = x * target.stride;
+            for (int y = 0; y < width; y++) {
+                target.data[row + y] = (data[x * width + y] & 0xFF) >= threshold ? fgColor : bgColor;
+            }
+        }
+
+
+        return target;
+    }
+}
@@ -0,0 +1,201 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.learning.android.stickercreator.ImagePickerActiviy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BackendSelector {
+    /**
+     * Sceglie il backend di inferenza. Alla prima esecuzione (e ogni volta che cambia la
+     * preferenza sull'uso della GPU) ogni backend disponibile viene cronometrato su un ingresso
+     * sintetico e il più veloce viene salvato nelle SharedPreferences. Le esecuzioni successive
+     * creano direttamente il backend salvato; se questo non si inizializza si passa ai
+     * successivi in ordine GPU, NNAPI, XNNPACK, CPU.
+     */
+
+    private static final String TAG = "BackendSelector";
+
+    // Chiavi delle preferenze: backend scelto e valore di "usaGPU" al momento della scelta
+    static final String KEY_BACKEND = "backend";
+    static final String KEY_BACKEND_GPU = "backendConGPU";
+
+    // Inferenze cronometrate per ogni backend, dopo una di riscaldamento
+    private static final int BENCHMARK_RUNS = 3;
+
+    // Limite ai thread della CPU: oltre i 4 i core piccoli rallentano l'inferenza
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Crea un backend a partire dal nome, vedi {@link TfLiteBackend#fromName(ByteBuffer, String)}.
+     * Separata da TensorFlow Lite per poter provare la scelta con backend finti.
+     */
+    interface Factory {
+        /**
+         * @param name il nome del backend.
+         * @return il backend.
+         * @throws RuntimeException o LinkageError se il backend non si inizializza sul dispositivo.
+         */
+        SegmentationBackend create(String name);
+    }
+
+    /**
+     * Crea il backend preferito, eseguendo il benchmark se la scelta non è ancora stata fatta.
+     * Va chiamato dal thread che userà il backend.
+     * @param context contesto usato per accedere al modello e alle preferenze.
+     * @return il backend.
+     * @throws IOException se il modello non viene caricato o nessun backend si inizializza.
+     */
+    public static SegmentationBackend create(Context context) throws IOException {
+        if (context == null) throw new IllegalArgumentException();
+
+        SharedPreferences preferences = context.getSharedPreferences(ImagePickerActiviy.MY_PREFERENCES, Context.MODE_PRIVATE);
+        boolean allowGpu = preferences.getBoolean("usaGPU", true);
+        final ByteBuffer model = ModelRegistry.getModel(context);
+
+
+        return create(preferences, allowGpu, candidates(allowGpu), new Factory() {
+            @Override
+            public SegmentationBackend create(String name) {
+                return TfLiteBackend.fromName(model, name);
+            }
+        });
+    }
+
+    /**
+     * Crea il backend preferito tra i candidati: quello salvato nelle preferenze o, se manca,
+     * il più veloce del benchmark, poi gli altri in ordine di ripiego.
+     * @param preferences le preferenze in cui è salvata la scelta.
+     * @param allowGpu true se l'utente permette l'uso della GPU.
+     * @param candidates i nomi dei backend, in ordine di ripiego.
+     * @param factory crea i backend dai nomi.
+     * @return il primo backend che si inizializza.
+     * @throws IOException se nessun backend si inizializza.
+     */
+    static SegmentationBackend create(SharedPreferences preferences, boolean allowGpu, List<String> candidates,
+                                      Factory factory) throws IOException {
+        // Benchmark se manca la scelta, se è stata fatta con un'altra preferenza sulla GPU o
+        //  se il backend salvato non è più tra i candidati
+        String preferred = preferences.getString(KEY_BACKEND, null);
+        if (preferred == null || preferences.getBoolean(KEY_BACKEND_GPU, !allowGpu) != allowGpu ||
+                !candidates.contains(preferred)) {
+            preferred = benchmark(factory, candidates);
+            if (preferred != null) {
+                preferences.edit()
+                        .putString(KEY_BACKEND, preferred)
+                        .putBoolean(KEY_BACKEND_GPU, allowGpu)
+                        .apply();
+            }
+        }
+
+        // Prima il preferito, poi gli altri in ordine di ripiego
+        List<String> order = new ArrayList<>(candidates);
+        if (preferred != null) {
+            order.remove(preferred);
+            order.add(0, preferred);
+        }
+
+        for (String name : order) {
+            try {
+                SegmentationBackend backend = factory.create(name);
+                Log.d(TAG, "Backend: " + name);
+                return backend;
+            } catch (RuntimeException | LinkageError e) {
+                Log.w(TAG, "Backend " + name + " not available: " + e.getMessage());
+            }
+        }
+
+
+        throw new IOException("No inference backend available");
+    }
+
+    /**
+     * Elenca i backend da provare sul dispositivo, in ordine di ripiego.
+     * @param allowGpu true se l'utente permette l'uso della GPU.
+     * @return i nomi dei backend.
+     */
+    static List<String> candidates(boolean allowGpu) {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        List<String> candidates = new ArrayList<>();
+
+        if (allowGpu) candidates.add(TfLiteBackend.nameOf(TfLiteBackend.Kind.GPU, 1));
+
+        // NNAPI è affidabile solo da Android 8.1
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            candidates.add(TfLiteBackend.nameOf(TfLiteBackend.Kind.NNAPI, 1));
+        }
+        candidates.add(TfLiteBackend.nameOf(TfLiteBackend.Kind.XNNPACK, threads));
+        candidates.add(TfLiteBackend.nameOf(TfLiteBackend.Kind.CPU, threads));
+
+
+        return candidates;
+    }
+
+    /**
+     * Cronometra ogni backend candidato e restituisce il più veloce. I backend che non si
+     * inizializzano o falliscono l'inferenza vengono scartati.
+     * @param factory crea i backend dai nomi.
+     * @param candidates i nomi dei backend.
+     * @return il nome del backend più veloce, null se nessuno funziona.
+     */
+    static String benchmark(Factory factory, List<String> candidates) {
+        String fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+
+        for (String name : candidates) {
+            SegmentationBackend backend = null;
+            try {
+                backend = factory.create(name);
+                long time = time(backend);
+                Log.d(TAG, "Benchmark " + name + ": " + time + "ms");
+
+                if (time < fastestTime) {
+                    fastestTime = time;
+                    fastest = name;
+                }
+            } catch (RuntimeException | LinkageError e) {
+                Log.w(TAG, "Backend " + name + " not available: " + e.getMessage());
+            } finally {
+                if (backend != null) backend.close();
+            }
+        }
+
+
+        return fastest;
+    }
+
+    /**
+     * Misura il tempo di inferenza di un backend su un ingresso sintetico (tutto a zero).
+     * @param backend il backend da cronometrare.
+     * @return il tempo minimo in millisecondi su {@link #BENCHMARK_RUNS} inferenze, dopo una di riscaldamento.
+     */
+    static long time(SegmentationBackend backend) {
+        ByteBuffer input = ByteBuffer.allocateDirect(backend.getInputSpec().numBytes());
+        input.order(ByteOrder.nativeOrder());
+        ByteBuffer output = ByteBuffer.allocateDirect(backend.getOutputSpec().numBytes());
+        output.order(ByteOrder.nativeOrder());
+
+        // Riscaldamento: la prima inferenza paga allocazioni e compilazione dei kernel
+        backend.run(input, output);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            input.rewind();
+            output.rewind();
+            long start = System.currentTimeMillis();
+            backend.run(input, output);
+            best = Math.min(best, System.currentTimeMillis() - start);
+        }
+
+
+        return best;
+    }
+}
@@ -0,0 +1,293 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class BitMask {
+    /**
+     * Classe che definisce una maschera binaria a piani di bit: ogni riga è una sequenza di
+     * long da 64 pixel ciascuno, il bit meno significativo della parola w corrisponde alla
+     * colonna 64 * w. Una maschera 512x512 occupa 32 KB invece di 1 MB.
+     * Le operazioni (bordo, dilatazione, erosione, apertura e chiusura) lavorano su parole
+     * intere con shift e operazioni logiche, quindi con poche istruzioni ogni 64 pixel.
+     * Le coordinate seguono la convenzione di {@link MaskRaster}: x indice di riga, y di colonna.
+     * I bit oltre la larghezza nell'ultima parola di ogni riga sono sempre a zero.
+     */
+
+    // Lasciati pubblici per permettere cicli stretti senza chiamate a metodo
+    public final long[] words;
+    public final int width;
+    public final int height;
+    public final int wordsPerRow;
+
+    // Bit validi dell'ultima parola di ogni riga
+    private final long mLastWordMask;
+
+    /**
+     * Costruttore della classe. Alloca una maschera vuota.
+     * @param width la larghezza.
+     * @param height l'altezza.
+     */
+    public BitMask(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException();
+
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+
+        int tail = width & 63;
+        mLastWordMask = tail == 0 ? -1L : (1L << tail) - 1;
+    }
+
+    /**
+     * Crea una maschera a bit da una maschera di interi.
+     * @param mask la maschera di partenza.
+     * @param bgColor il colore di sfondo, ogni altro valore diventa un bit a uno.
+     * @return la maschera a bit.
+     */
+    public static BitMask fromRaster(MaskRaster mask, int bgColor) {
+        BitMask bits = new BitMask(mask.width, mask.height);
+
+        for (int x = 0; x < mask.height; x++) {
+            int row = x * mask.stride;
+            int wRow = x * bits.wordsPerRow;
+            for (int y = 0; y < mask.width; y++) {
+                if (mask.data[row + y] != bgColor) bits.words[wRow + (y >>> 6)] |= 1L << y;
+            }
+        }
+
+
+        return bits;
+    }
+
+    /**
+     * Scrive la maschera a bit su una maschera di interi delle stesse dimensioni.
+     * @param target la maschera di destinazione.
+     * @param fgColor il valore per i bit a uno.
+     * @param bgColor il valore per i bit a zero.
+     * @return target.
+     */
+    public MaskRaster toRaster(MaskRaster target, int fgColor, int bgColor) {
+        if (target.width != width || target.height != height) throw new IllegalArgumentException();
+
+        for (int x = 0; x < height; x++) {
+            int row = x * target.stride;
+            int wRow = x * wordsPerRow;
+            for (int y = 0; y < width; y++) {
+                target.data[row + y] = (words[wRow + (y >>> 6)] >>> y & 1L) != 0 ? fgColor : bgColor;
+            }
+        }
+
+
+        return target;
+    }
+
+    /**
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return true se il bit (x, y) è a uno.
+     */
+    public boolean get(int x, int y) {
+        return (words[x * wordsPerRow + (y >>> 6)] >>> y & 1L) != 0;
+    }
+
+    /**
+     * Assegna il bit (x, y).
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @param value il valore da assegnare.
+     */
+    public void set(int x, int y, boolean value) {
+        int k = x * wordsPerRow + (y >>> 6);
+        if (value) words[k] |= 1L << y;
+        else words[k] &= ~(1L << y);
+    }
+
+    /**
+     * @return il numero di bit a uno.
+     */
+    public int count() {
+        int count = 0;
+        for (long w : words) count += Long.bitCount(w);
+
+
+        return count;
+    }
+
+    /**
+     * Elenca i bit a uno in ordine di scansione, saltando le parole vuote.
+     * @return array di Pixel dei bit a uno.
+     */
+    public ArrayList<Pixel> toPixels() {
+        ArrayList<Pixel> pixels = new ArrayList<>();
+
+        for (int x = 0; x < height; x++) {
+            int wRow = x * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = words[wRow + w];
+                while (word != 0) {
+                    pixels.add(new Pixel(x, (w << 6) + Long.numberOfTrailingZeros(word)));
+                    word &= word - 1;
+                }
+            }
+        }
+
+
+        return pixels;
+    }
+
+    /**
+     * Estrae il bordo: i pixel a uno che hanno uno dei quattro vicini a zero o che stanno
+     * sul margine della maschera.
+     * @return una nuova maschera con il solo bordo.
+     */
+    public BitMask border() {
+        BitMask eroded = morphology(ConnectedComponentsLabeler.CONNECTIVITY_4, false, false);
+        for (int k = 0; k < words.length; k++) {
+            eroded.words[k] = words[k] & ~eroded.words[k];
+        }
+
+
+        return eroded;
+    }
+
+    /**
+     * Dilatazione di un passo con la croce 3x3 (4-connettività) o con il quadrato 3x3 (8-connettività).
+     * @param connectivity {@link ConnectedComponentsLabeler#CONNECTIVITY_4} o
+     *                     {@link ConnectedComponentsLabeler#CONNECTIVITY_8}.
+     * @return una nuova maschera dilatata.
+     */
+    public BitMask dilate(int connectivity) {
+        return morphology(connectivity, true, false);
+    }
+
+    /**
+     * Erosione di un passo con la croce 3x3 (4-connettività) o con il quadrato 3x3 (8-connettività).
+     * Fuori dalla maschera si considera primo piano, così che la chiusura non eroda il margine.
+     * @param connectivity {@link ConnectedComponentsLabeler#CONNECTIVITY_4} o
+     *                     {@link ConnectedComponentsLabeler#CONNECTIVITY_8}.
+     * @return una nuova maschera erosa.
+     */
+    public BitMask erode(int connectivity) {
+        return morphology(connectivity, false, true);
+    }
+
+    /**
+     * Apertura: erosione seguita da dilatazione, elimina macchie e protuberanze sottili.
+     * @param connectivity la connettività dell'elemento strutturante.
+     * @param iterations il numero di passi di erosione e poi di dilatazione.
+     * @return una nuova maschera aperta.
+     */
+    public BitMask open(int connectivity, int iterations) {
+        BitMask result = this;
+        for (int i = 0; i < iterations; i++) result = result.erode(connectivity);
+        for (int i = 0; i < iterations; i++) result = result.dilate(connectivity);
+
+
+        return result == this ? copy() : result;
+    }
+
+    /**
+     * Chiusura: dilatazione seguita da erosione, chiude piccoli buchi e fessure.
+     * @param connectivity la connettività dell'elemento strutturante.
+     * @param iterations il numero di passi di dilatazione e poi di erosione.
+     * @return una nuova maschera chiusa.
+     */
+    public BitMask close(int connectivity, int iterations) {
+        BitMask result = this;
+        for (int i = 0; i < iterations; i++) result = result.dilate(connectivity);
+        for (int i = 0; i < iterations; i++) result = result.erode(connectivity);
+
+
+        return result == this ? copy() : result;
+    }
+
+    /**
+     * @return una copia della maschera.
+     */
+    public BitMask copy() {
+        BitMask copy = new BitMask(width, height);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+
+
+        return copy;
+    }
+
+    /**
+     * Dilatazione o erosione di un passo, riga per riga su parole intere.
+     * @param connectivity la connettività dell'elemento strutturante.
+     * @param dilate true per la dilatazione (OR dei vicini), false per l'erosione (AND).
+     * @param outside il valore dei pixel fuori dalla maschera.
+     * @return la nuova maschera.
+     */
+    private BitMask morphology(int connectivity, boolean dilate, boolean outside) {
+        if (connectivity != ConnectedComponentsLabeler.CONNECTIVITY_4 &&
+                connectivity != ConnectedComponentsLabeler.CONNECTIVITY_8) throw new IllegalArgumentException();
+
+        boolean square = connectivity == ConnectedComponentsLabeler.CONNECTIVITY_8;
+        BitMask result = new BitMask(width, height);
+
+        // Riga fittizia per sopra la prima e sotto l'ultima
+        long[] outsideRow = new long[wordsPerRow];
+        if (outside) Arrays.fill(outsideRow, -1L);
+
+        for (int x = 0; x < height; x++) {
+            int row = x * wordsPerRow;
+            long[] upSrc = x > 0 ? words : outsideRow;
+            int upRow = x > 0 ? row - wordsPerRow : 0;
+            long[] downSrc = x < height - 1 ? words : outsideRow;
+            int downRow = x < height - 1 ? row + wordsPerRow : 0;
+
+            for (int w = 0; w < wordsPerRow; w++) {
+                long v = horizontal(words, row, w, dilate, outside);
+
+                // Con il quadrato anche le righe sopra e sotto includono le diagonali
+                long up = square ? horizontal(upSrc, upRow, w, dilate, outside) : word(upSrc, upRow, w, outside);
+                long down = square ? horizontal(downSrc, downRow, w, dilate, outside) : word(downSrc, downRow, w, outside);
+
+                v = dilate ? v | up | down : v & up & down;
+                if (w == wordsPerRow - 1) v &= mLastWordMask;
+                result.words[row + w] = v;
+            }
+        }
+
+
+        return result;
+    }
+
+    /**
+     * Parola w di una riga; con fuori a uno, i bit oltre la larghezza valgono come primo piano.
+     */
+    private long word(long[] src, int row, int w, boolean outside) {
+        long word = src[row + w];
+        if (outside && w == wordsPerRow - 1) word |= ~mLastWordMask;
+
+
+        return word;
+    }
+
+    /**
+     * Combina la parola w di una riga con i vicini a sinistra (colonna y - 1) e a destra
+     * (colonna y + 1), tramite shift con riporto dalle parole adiacenti.
+     * @param src il buffer di origine.
+     * @param row l'indice della prima parola della riga.
+     * @param w l'indice della parola nella riga.
+     * @param dilate true per OR, false per AND.
+     * @param outside il valore dei pixel fuori dalla maschera.
+     * @return la parola combinata.
+     */
+    private long horizontal(long[] src, int row, int w, boolean dilate, boolean outside) {
+        long word = word(src, row, w, outside);
+        long fill = outside ? -1L : 0L;
+
+        long previous = w > 0 ? word(src, row, w - 1, outside) : fill;
+        long next = w < wordsPerRow - 1 ? word(src, row, w + 1, outside) : fill;
+
+        long left = (word << 1) | (previous >>> 63);
+        long right = (word >>> 1) | (next << 63);
+
+
+        return dilate ? word | left | right : word & left & right;
+    }
+}
@@ -0,0 +1,178 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.Arrays;
+
+public class ComponentStatistics {
+    /**
+     * Tabella delle statistiche per componente connessa, riempita dall'etichettatore
+     * durante l'etichettatura: numero di pixel, bounding box, centroide e numero di
+     * pixel di bordo. Le componenti sono indicizzate dalla loro etichetta, da 1 a
+     * {@link #getCount()}; l'etichetta 0 è lo sfondo.
+     * La tabella è di sola lettura per gli utilizzatori e può essere interrogata
+     * a piacere senza rieseguire l'etichettatura.
+     */
+
+    private final int mCount;
+
+    // Una cella per etichetta, la cella 0 (sfondo) non è utilizzata
+    final int[] area;
+    final int[] minX;
+    final int[] minY;
+    final int[] maxX;
+    final int[] maxY;
+    final int[] borderPixels;
+    final long[] sumX;
+    final long[] sumY;
+
+    /**
+     * Costruttore della classe.
+     * @param count il numero di componenti.
+     */
+    ComponentStatistics(int count) {
+        mCount = count;
+
+        area = new int[count + 1];
+        minX = new int[count + 1];
+        minY = new int[count + 1];
+        maxX = new int[count + 1];
+        maxY = new int[count + 1];
+        borderPixels = new int[count + 1];
+        sumX = new long[count + 1];
+        sumY = new long[count + 1];
+
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+    }
+
+    /**
+     * Registra un pixel della componente.
+     * @param label l'etichetta della componente.
+     * @param x l'indice di riga del pixel.
+     * @param y l'indice di colonna del pixel.
+     * @param isBorder true se il pixel è di bordo.
+     */
+    void add(int label, int x, int y, boolean isBorder) {
+        area[label]++;
+        sumX[label] += x;
+        sumY[label] += y;
+        if (x < minX[label]) minX[label] = x;
+        if (x > maxX[label]) maxX[label] = x;
+        if (y < minY[label]) minY[label] = y;
+        if (y > maxY[label]) maxY[label] = y;
+        if (isBorder) borderPixels[label]++;
+    }
+
+    /**
+     * Accumula le statistiche di un'altra tabella con le stesse etichette, ad esempio
+     * quella calcolata su un'altra striscia della stessa maschera.
+     * @param other la tabella da accumulare.
+     */
+    void merge(ComponentStatistics other) {
+        if (other.mCount != mCount) throw new IllegalArgumentException();
+
+        for (int l = 1; l <= mCount; l++) {
+            if (other.area[l] == 0) continue;
+
+            area[l] += other.area[l];
+            sumX[l] += other.sumX[l];
+            sumY[l] += other.sumY[l];
+            borderPixels[l] += other.borderPixels[l];
+            if (other.minX[l] < minX[l]) minX[l] = other.minX[l];
+            if (other.maxX[l] > maxX[l]) maxX[l] = other.maxX[l];
+            if (other.minY[l] < minY[l]) minY[l] = other.minY[l];
+            if (other.maxY[l] > maxY[l]) maxY[l] = other.maxY[l];
+        }
+    }
+
+    /**
+     * @return il numero di componenti connesse trovate.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il numero di pixel della componente.
+     */
+    public int getArea(int label) {
+        return area[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il minimo indice di riga della componente.
+     */
+    public int getMinX(int label) {
+        return minX[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il minimo indice di colonna della componente.
+     */
+    public int getMinY(int label) {
+        return minY[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il massimo indice di riga della componente.
+     */
+    public int getMaxX(int label) {
+        return maxX[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il massimo indice di colonna della componente.
+     */
+    public int getMaxY(int label) {
+        return maxY[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return l'indice di riga medio dei pixel della componente.
+     */
+    public double getCentroidX(int label) {
+        return (double) sumX[label] / area[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return l'indice di colonna medio dei pixel della componente.
+     */
+    public double getCentroidY(int label) {
+        return (double) sumY[label] / area[label];
+    }
+
+    /**
+     * @param label l'etichetta della componente.
+     * @return il numero di pixel della componente che toccano lo sfondo (in 4 direzioni)
+     *         o il margine della maschera.
+     */
+    public int getBorderPixelCount(int label) {
+        return borderPixels[label];
+    }
+
+    /**
+     * Trova la componente più estesa. In caso di parità vince l'etichetta minore.
+     * @return l'etichetta della componente più estesa, 0 se non ci sono componenti.
+     */
+    public int getLargest() {
+        int max = 0;
+        int maxIndex = 0;
+        for (int i = 1; i <= mCount; i++) {
+            if (area[i] > max) {
+                max = area[i];
+                maxIndex = i;
+            }
+        }
+
+
+        return maxIndex;
+    }
+}
@@ -1,197 +1,413 @@
 package com.learning.android.stickercreator.stickerprocessing;
 
+import java.util.concurrent.ExecutorService;
+
 public class ConnectedComponentsLabeler {
     /**
      * Classe che definisce un etichettatore di componenti connesse
      * per un array 2-dimensionale con nozione di sfondo. Implementa l'algoritmo
-     * di Hoshen-Kopelman per etichettare le componenti.
+     * di Hoshen-Kopelman per etichettare le componenti, con una tabella delle
+     * equivalenze union-find che cresce con il numero di etichette provvisorie.
+     * Le etichette vengono scritte in una maschera propria, la maschera in ingresso
+     * non viene modificata; durante l'etichettatura viene riempita la tabella delle
+     * statistiche per componente. L'etichettatura può essere distribuita su più thread
+     * e può considerare la 4-connettività o l'8-connettività.
      */
 
-    // Etichette delle componenti. mLabels[0] è il numero di componenti trovate
-    private int[] mLabels;
-    private int[] clusterSizes;
+    // Equivalenze tra le etichette provvisorie
+    private UnionFind mEquivalences;
+
+    // Connettività considerata: 4 (sopra, sotto, destra, sinistra) o 8 (anche le diagonali)
+    public static final int CONNECTIVITY_4 = 4;
+    public static final int CONNECTIVITY_8 = 8;
+    private int mConnectivity;
+
+    // Executor e numero di strisce per l'etichettatura parallela
+    private ExecutorService mExecutor;
+    private int mStrips;
 
-    // La matrice da etichettare ..
-    private int[][] mMatBitmap;
-    // .. e le sue dimensioni
+    // Statistiche delle componenti, riempite durante l'etichettatura
+    private ComponentStatistics mStatistics;
+
+    // La maschera da etichettare ..
+    private MaskRaster mMatBitmap;
+    // .. le sue dimensioni ..
     private int mWidth;
     private int mHeight;
+    // .. e la maschera delle etichette
+    private MaskRaster mLabels;
 
     /**
      * Costruttore della classe. Esegue l'etichettatura.
-     * @param matBitmap la matrice da etichettare, avente 0 negli elementi considerati sfondo
+     * @param matBitmap la maschera da etichettare, avente 0 negli elementi considerati sfondo
      */
-    public ConnectedComponentsLabeler(int[][] matBitmap){
-        this.mMatBitmap = matBitmap;
-        this.mHeight = matBitmap.length;
-        this.mWidth = matBitmap[0].length;
+    public ConnectedComponentsLabeler(MaskRaster matBitmap){
+        this(matBitmap, CONNECTIVITY_4, null, 1);
+    }
 
-        this.mLabels = new int[ matBitmap.length * matBitmap[0].length];
-        //mLabels[0]=0;: implicito
+    /**
+     * Costruttore della classe. Esegue l'etichettatura con la connettività scelta.
+     * In 8-connettività la scansione procede per blocchi 2x2, con un costo paragonabile
+     * alla scansione per pixel in 4-connettività.
+     * @param matBitmap la maschera da etichettare, avente 0 negli elementi considerati sfondo
+     * @param connectivity {@link #CONNECTIVITY_4} o {@link #CONNECTIVITY_8}
+     */
+    public ConnectedComponentsLabeler(MaskRaster matBitmap, int connectivity){
+        this(matBitmap, connectivity, null, 1);
+    }
+
+    /**
+     * Costruttore della classe. Esegue l'etichettatura in parallelo, suddividendo la maschera
+     * in strisce orizzontali etichettate indipendentemente. Il risultato è identico a quello
+     * dell'etichettatura sequenziale.
+     * @param matBitmap la maschera da etichettare, avente 0 negli elementi considerati sfondo
+     * @param connectivity {@link #CONNECTIVITY_4} o {@link #CONNECTIVITY_8}
+     * @param executor l'executor su cui distribuire le strisce, null per l'esecuzione sequenziale
+     * @param strips il numero di strisce, tipicamente il numero di core disponibili
+     */
+    public ConnectedComponentsLabeler(MaskRaster matBitmap, int connectivity, ExecutorService executor, int strips){
+        if (strips < 1) throw new IllegalArgumentException();
+        if (connectivity != CONNECTIVITY_4 && connectivity != CONNECTIVITY_8) throw new IllegalArgumentException();
+
+        this.mConnectivity = connectivity;
+        this.mExecutor = executor;
+        this.mStrips = strips;
+        this.mMatBitmap = matBitmap;
+        this.mHeight = matBitmap.height;
+        this.mWidth = matBitmap.width;
+        this.mLabels = new MaskRaster(mWidth, mHeight);
 
         // Esegue l'etichettatura
         this.label();
     }
 
+    /**
+     * @return la maschera delle etichette: 0 per lo sfondo, da 1 a {@link #getComponentCount()}
+     *         per le componenti, numerate secondo l'ordine di scansione (per blocchi 2x2
+     *         in 8-connettività).
+     */
+    public MaskRaster getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * @return la tabella delle statistiche per componente.
+     */
+    public ComponentStatistics getStatistics() {
+        return mStatistics;
+    }
 
     /**
-     * Filtra la matrice lasciando solo la componente connessa più estesa, rietichettando
-     * sia quest'ultima che lo sfondo.
-     * Esegue l'etichettamento se non effettuato.
+     * @return il numero di componenti connesse trovate.
+     */
+    public int getComponentCount() {
+        return mStatistics.getCount();
+    }
+
+    /**
+     * Filtra la maschera lasciando solo la componente connessa più estesa, rietichettando
+     * sia quest'ultima che lo sfondo in una nuova maschera.
      * @param fgLabel l'etichetta per la componente connessa più estesa
      * @param bgLabel l'etichetta per lo sfondo
      * @param tollerance tolleranza in percentuale sulla dimensione della componente connessa più grande
-     * @return la matrice originale rietichettata. null se la dimensione della componente più grande è
+     * @return la maschera rietichettata. null se la dimensione della componente più grande è
      * troppo poco estesa, sotto la tolleranza impostata
      */
-    public int[][] largestConnectedComponentFilter(int fgLabel, int bgLabel, int tollerance) {
-
-        // Esegui l'etichettamento se non eseguito
-        if (mLabels[0] == 0) this.label();
+    public MaskRaster largestConnectedComponentFilter(int fgLabel, int bgLabel, int tollerance) {
+        return largestConnectedComponentFilter(fgLabel, bgLabel, tollerance, new MaskRaster(mWidth, mHeight));
+    }
 
+    /**
+     * Filtra la maschera lasciando solo la componente connessa più estesa, rietichettando
+     * sia quest'ultima che lo sfondo. Viene scansionata solo la bounding box della componente.
+     * @param fgLabel l'etichetta per la componente connessa più estesa
+     * @param bgLabel l'etichetta per lo sfondo
+     * @param tollerance tolleranza in percentuale sulla dimensione della componente connessa più grande
+     * @param target la maschera di destinazione, delle stesse dimensioni; può essere la maschera
+     *               in ingresso per eseguire il filtro sul posto.
+     * @return target rietichettata. null se la dimensione della componente più grande è
+     * troppo poco estesa, sotto la tolleranza impostata
+     */
+    public MaskRaster largestConnectedComponentFilter(int fgLabel, int bgLabel, int tollerance, MaskRaster target) {
         if (tollerance > 100 || tollerance < 0) throw new IllegalArgumentException();
+        if (!mLabels.sameSize(target)) throw new IllegalArgumentException();
 
-        // Conta per ogni componente il numero di pixel
-        int largestConnectedComponent = findLargestConnectedComponent();
+        // La componente più estesa è già nota dalle statistiche
+        int largestConnectedComponent = mStatistics.getLargest();
+        if (largestConnectedComponent == 0) return null;
 
         // Controllo sulla tolleranza
-        if ( (clusterSizes[largestConnectedComponent]+0.0)/(mWidth*mHeight)*100 < tollerance) return null;
-
-        // Scansione della matrice con rietichettamento secondo specifiche
-        for (int i = 0; i< mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                if (mMatBitmap[i][j] == largestConnectedComponent) mMatBitmap[i][j] = fgLabel;
-                else if (mMatBitmap[i][j] != 0 || mMatBitmap[i][j] == 0) mMatBitmap[i][j] = bgLabel;
+        int area = mStatistics.getArea(largestConnectedComponent);
+        if ( (area+0.0)/(mWidth*mHeight)*100 < tollerance) return null;
+
+        // Fuori dalla bounding box è tutto sfondo
+        target.fill(bgLabel);
+
+        // Scansione della bounding box con rietichettamento secondo specifiche
+        int[] labels = mLabels.data;
+        int[] data = target.data;
+        for (int i = mStatistics.getMinX(largestConnectedComponent); i <= mStatistics.getMaxX(largestConnectedComponent); i++) {
+            for (int j = mStatistics.getMinY(largestConnectedComponent); j <= mStatistics.getMaxY(largestConnectedComponent); j++) {
+                if (labels[i * mWidth + j] == largestConnectedComponent) data[i * target.stride + j] = fgLabel;
             }
         }
 
 
-        return mMatBitmap;
+        return target;
     }
 
     /**
-     * Trova la più grande componente connessa non di sfondo.
-     * Esegue l'etichettamento se non effettuato.
-     * @return l'indice della più grande componente connessa non di sfondo.
+     * Applica l'algoritmo di Hoshen-Kopelman per etichettare le
+     *  componenti connesse e riempie la tabella delle statistiche.
+     * In modalità parallela ogni striscia viene etichettata con una propria tabella
+     *  delle equivalenze, le tabelle vengono poi concatenate e le equivalenze lungo
+     *  le giunture tra strisce unite. Il risultato coincide con quello sequenziale.
      */
-    private int findLargestConnectedComponent(){
+    private void label(){
+
+        // In 8-connettività le strisce sono composte da righe di blocchi 2x2
+        final int unit = mConnectivity == CONNECTIVITY_8 ? 2 : 1;
+        final int units = (mHeight + unit - 1) / unit;
+        final int strips = Math.max(1, Math.min(mStrips, units));
+        final UnionFind[] stripEquivalences = new UnionFind[strips];
+
+        // Prima scansione: etichette provvisorie locali ad ogni striscia
+        ParallelStrips.run(mExecutor, strips, units, new ParallelStrips.StripTask() {
+            @Override
+            public void run(int strip, int unitStart, int unitEnd) {
+                int rowStart = unitStart * unit;
+                int rowEnd = Math.min(unitEnd * unit, mHeight);
+                stripEquivalences[strip] = unit == 2 ? labelBlocks(rowStart, rowEnd) : labelRows(rowStart, rowEnd);
+            }
+        });
+
+        // Concatenazione delle tabelle: le etichette di ogni striscia vengono traslate
+        mEquivalences = stripEquivalences[0];
+        final int[] offsets = new int[strips];
+        for (int s = 1; s < strips; s++) {
+            offsets[s] = mEquivalences.append(stripEquivalences[s]);
+        }
 
-        if (mLabels[0] == 0) this.label();
+        // Unione delle equivalenze lungo le giunture tra strisce
+        int[] data = mLabels.data;
+        for (int s = 1; s < strips; s++) {
+            int row = ParallelStrips.stripStart(s, strips, units) * unit * mWidth;
+            for (int j = 0; j < mWidth; j++) {
+                int k = row + j;
+                if (data[k] == 0) continue;
 
-        // Conteggio della dimensione delle componenti
-        clusterSizes = new int[ mWidth * mHeight];
+                int label = data[k] + offsets[s];
+                if (data[k - mWidth] != 0) mEquivalences.union(label, data[k - mWidth] + offsets[s - 1]);
 
-        for (int[] row : mMatBitmap) {
-            for (int lable : row) {
-                clusterSizes[lable]++;
+                // In 8-connettività anche le diagonali superiori
+                if (unit == 2) {
+                    if (j > 0 && data[k - mWidth - 1] != 0) mEquivalences.union(label, data[k - mWidth - 1] + offsets[s - 1]);
+                    if (j < mWidth - 1 && data[k - mWidth + 1] != 0) mEquivalences.union(label, data[k - mWidth + 1] + offsets[s - 1]);
+                }
             }
         }
-        // Si azzera la prima poichè di sfondo
-        clusterSizes[0]=0;
-
-        // Ricerca dell'indice con maggiori occorrenze
-        int max = 0;
-        int maxIndex = 0;
-        for (int i=0; i<clusterSizes.length; i++){
-            if (clusterSizes[i] > max) {
-                max = clusterSizes[i];
-                maxIndex = i;
+
+        // Etichette definitive: le etichette provvisorie sono create in ordine di scansione,
+        //  quindi numerando i rappresentanti nell'ordine di creazione si ottiene l'ordine
+        //  di prima apparizione delle componenti senza dover scansionare i pixel
+        final int[] newLabels = new int[mEquivalences.size() + 1];
+        int count = 0;
+        for (int l = 1; l < newLabels.length; l++) {
+            int root = mEquivalences.find(l);
+            if (newLabels[root] == 0) {
+                count++;
+                newLabels[root] = count;
             }
+            newLabels[l] = newLabels[root];
         }
 
+        // Seconda scansione: rietichettatura e statistiche per striscia, poi accumulate
+        final ComponentStatistics[] stripStatistics = new ComponentStatistics[strips];
+        final int componentCount = count;
+        ParallelStrips.run(mExecutor, strips, units, new ParallelStrips.StripTask() {
+            @Override
+            public void run(int strip, int unitStart, int unitEnd) {
+                stripStatistics[strip] = new ComponentStatistics(componentCount);
+                relabelRows(unitStart * unit, Math.min(unitEnd * unit, mHeight), offsets[strip], newLabels, stripStatistics[strip]);
+            }
+        });
 
-        return maxIndex;
+        mStatistics = stripStatistics[0];
+        for (int s = 1; s < strips; s++) {
+            mStatistics.merge(stripStatistics[s]);
+        }
     }
 
     /**
-     * Applica l'algoritmo di Hoshen-Kopelman per etichettare le
-     *  componenti connesse.
+     * Prima scansione in 8-connettività su una striscia di righe, per blocchi 2x2.
+     *  I pixel non di sfondo di un blocco sono sempre 8-connessi tra loro, quindi
+     *  l'etichetta viene assegnata al blocco intero. Per ogni blocco X vengono
+     *  considerati i blocchi già visitati P (in alto a sinistra), Q (in alto),
+     *  R (in alto a destra) e S (a sinistra):
+     *
+     *      +----+----+----+
+     *      | P  | Q  | R  |        a b    pixel del blocco X
+     *      +----+----+----+        c d
+     *      | S  | X  |
+     *      +----+----+
+     *
+     *  Un albero di decisione evita le unioni già note: ad esempio se X è unito a Q
+     *  e il pixel in basso a sinistra di Q è presente, P e Q sono già stati uniti
+     *  quando Q è stato etichettato.
+     * @param rowStart la prima riga (inclusa), pari.
+     * @param rowEnd l'ultima riga (esclusa).
+     * @return la tabella delle equivalenze delle etichette provvisorie della striscia.
      */
-    private void label(){
-
-        // Scansione della matrice
-        for (int i = 0; i< mHeight; i++)
-            for (int j = 0; j < mWidth; j++)
+    private UnionFind labelBlocks(int rowStart, int rowEnd) {
+        int[] src = mMatBitmap.data;
+        int srcStride = mMatBitmap.stride;
+        int[] data = mLabels.data;
+        int w = mWidth;
+
+        UnionFind equivalences = new UnionFind();
+
+        for (int i = rowStart; i < rowEnd; i += 2) {
+            boolean hasDown = i + 1 < rowEnd;
+            boolean hasUp = i > rowStart;
+
+            for (int j = 0; j < w; j += 2) {
+                boolean hasRight = j + 1 < w;
+                int k = i * w + j;
+                int s = i * srcStride + j;
+
+                // Pixel del blocco
+                boolean a = src[s] != 0;
+                boolean b = hasRight && src[s + 1] != 0;
+                boolean c = hasDown && src[s + srcStride] != 0;
+                boolean d = hasDown && hasRight && src[s + srcStride + 1] != 0;
+
+                int label = 0;
+                if (a || b || c || d) {
+
+                    // Etichette dei pixel dei blocchi vicini adiacenti a X (0 se sfondo o assenti)
+                    int qc = hasUp ? data[k - w] : 0;
+                    int qd = hasUp && hasRight ? data[k - w + 1] : 0;
+                    int pd = hasUp && j > 0 ? data[k - w - 1] : 0;
+                    int rc = hasUp && j + 2 < w ? data[k - w + 2] : 0;
+                    int sb = j > 0 ? data[k - 1] : 0;
+                    int sd = j > 0 && hasDown ? data[k + w - 1] : 0;
+
+                    boolean toQ = (a || b) && (qc != 0 || qd != 0);
+                    boolean toP = a && pd != 0;
+                    boolean toR = b && rc != 0;
+                    boolean toS = (a || c) && (sb != 0 || sd != 0);
+
+                    if (toQ) {
+                        label = qc != 0 ? qc : qd;
+
+                        // P-Q uniti se qc presente, Q-R uniti se qd presente, S-Q uniti se sb e qc presenti
+                        if (toP && qc == 0) label = equivalences.union(label, pd);
+                        if (toR && qd == 0) label = equivalences.union(label, rc);
+                        if (toS && !(sb != 0 && qc != 0)) label = equivalences.union(label, sb != 0 ? sb : sd);
+                    }
+                    else {
+                        if (toP) label = pd;
+                        if (toR) label = label == 0 ? rc : equivalences.union(label, rc);
+
+                        // S-P uniti se il pixel in alto di S è presente insieme a pd
+                        if (toS) {
+                            int sLabel = sb != 0 ? sb : sd;
+                            if (label == 0) label = sLabel;
+                            else if (!(toP && sb != 0)) label = equivalences.union(label, sLabel);
+                        }
+                    }
 
-                // Trovato un pixel non di sfondo
-                if (mMatBitmap[i][j] != 0) {
+                    // Nessun blocco vicino connesso: nuovo cluster
+                    if (label == 0) label = equivalences.makeSet();
+                }
 
-                    int up = (i == 0 ? 0 : mMatBitmap[i - 1][j]);
-                    int left = (j == 0 ? 0 : mMatBitmap[i][j - 1]);
+                // Scrittura dell'etichetta sui pixel del blocco
+                data[k] = a ? label : 0;
+                if (hasRight) data[k + 1] = b ? label : 0;
+                if (hasDown) {
+                    data[k + w] = c ? label : 0;
+                    if (hasRight) data[k + w + 1] = d ? label : 0;
+                }
+            }
+        }
 
-                    // Nuovo cluster
-                    if (up == 0 && left == 0) mMatBitmap[i][j] = makeSet();
 
-                    // Trovati due cluster: uniscili
-                    else if (up > 0 && left > 0) mMatBitmap[i][j] = union(up, left);
+        return equivalences;
+    }
 
-                    // Trovato cluster o a sinistra o sopra
-                    else mMatBitmap[i][j] = Math.max(up,left);
-                }
+    /**
+     * Prima scansione di Hoshen-Kopelman su una striscia di righe. La prima riga della
+     *  striscia non guarda la riga precedente, che appartiene ad un'altra striscia.
+     * @param rowStart la prima riga (inclusa).
+     * @param rowEnd l'ultima riga (esclusa).
+     * @return la tabella delle equivalenze delle etichette provvisorie della striscia.
+     */
+    private UnionFind labelRows(int rowStart, int rowEnd) {
+        int[] src = mMatBitmap.data;
+        int srcStride = mMatBitmap.stride;
+        int[] data = mLabels.data;
 
-        // Rietichetta tutte le componenti connesse
-        int[] newLabels = new int[mLabels.length];
+        // La tabella parte piccola e cresce con le etichette provvisorie
+        UnionFind equivalences = new UnionFind();
 
-        // Scansione della matrice per pixel
-        for (int i = 0; i< mHeight; i++)
-            for (int j = 0; j< mWidth; j++)
+        // Scansione della maschera
+        for (int i = rowStart; i< rowEnd; i++)
+            for (int j = 0; j < mWidth; j++) {
+                int k = i * mWidth + j;
 
                 // Trovato un pixel non di sfondo
-                if (mMatBitmap[i][j] != 0) {
-
-                    int x = find(mMatBitmap[i][j]);
+                if (src[i * srcStride + j] != 0) {
 
-                    // Crea una nuova etichetta se sprovvisto e ri-assegna
-                    if (newLabels[x] == 0) {
-                        newLabels[0]++;
-                        newLabels[x] = newLabels[0];
-                    }
-                    mMatBitmap[i][j] = newLabels[x];
-                }
+                    int up = (i == rowStart ? 0 : data[k - mWidth]);
+                    int left = (j == 0 ? 0 : data[k - 1]);
 
-        mLabels = newLabels;
-    }
+                    // Nuovo cluster
+                    if (up == 0 && left == 0) data[k] = equivalences.makeSet();
 
+                    // Trovati due cluster: uniscili
+                    else if (up > 0 && left > 0) data[k] = up == left ? up : equivalences.union(up, left);
 
-    /**
-     * Classico metodo find di un generico algoritmo union-find based che trova
-     * il punto più rappresentativo del set.
-     * @param x il punto del set.
-     * @return il punto più rappresentativo del set.
-     */
-    private int find(int x) {
-        while (mLabels[x] != x) x = mLabels[x];
+                    // Trovato cluster o a sinistra o sopra
+                    else data[k] = Math.max(up,left);
+                }
+                else data[k] = 0;
+            }
 
 
-        return x;
+        return equivalences;
     }
 
     /**
-     * Metodo union di un generico algoritmo union-find based che unisce due set
-     * disgiunti. Non possiede la nozione di rank o depth in quanto non esiste un
-     * costo da minimizzare, ma solo componenti da etichettare.
-     * @param x un punto di un set.
-     * @param y un punto di un set.
-     * @return il punto più rappresentativo dell'unione dei due set.
+     * Seconda scansione su una striscia di righe: assegna le etichette definitive
+     *  e raccoglie le statistiche.
+     * @param rowStart la prima riga (inclusa).
+     * @param rowEnd l'ultima riga (esclusa).
+     * @param offset la traslazione delle etichette provvisorie della striscia.
+     * @param newLabels le etichette definitive indicizzate per etichetta provvisoria globale.
+     * @param statistics la tabella da riempire.
      */
-    private int union(int x, int y) {
-        int label = find(y);
-        mLabels[find(x)] = label;
+    private void relabelRows(int rowStart, int rowEnd, int offset, int[] newLabels, ComponentStatistics statistics) {
+        int[] src = mMatBitmap.data;
+        int srcStride = mMatBitmap.stride;
+        int[] data = mLabels.data;
 
+        for (int i = rowStart; i< rowEnd; i++)
+            for (int j = 0; j< mWidth; j++) {
+                int k = i * mWidth + j;
 
-        return label;
-    }
-
-    /**
-     * Classico metodo makeSe di un generico algoritmo union-find based che
-     * crea un nuovo set.
-     * @return il set appena creato.
-     */
-    private int makeSet() {
-        mLabels[0]++;
-        mLabels[mLabels[0]] = mLabels[0];
+                // Trovato un pixel non di sfondo
+                if (data[k] != 0) {
+                    int label = newLabels[data[k] + offset];
+                    data[k] = label;
 
+                    // Pixel di bordo: al margine o con sfondo in una delle quattro direzioni
+                    int s = i * srcStride + j;
+                    boolean isBorder = i == 0 || j == 0 || i == mHeight - 1 || j == mWidth - 1 ||
+                            src[s - srcStride] == 0 || src[s - 1] == 0 ||
+                            src[s + srcStride] == 0 || src[s + 1] == 0;
 
-        return mLabels[0];
+                    statistics.add(label, i, j, isBorder);
+                }
+            }
     }
 }
@@ -0,0 +1,115 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.Arrays;
+
+public class DistanceTransform {
+    /**
+     * Trasformata distanza euclidea esatta di una maschera, con l'algoritmo separabile di
+     * Meijster, Roerdink e Hesselink: una passata per colonna calcola la distanza verticale
+     * dal primo piano più vicino, una passata per riga la combina con l'inviluppo inferiore
+     * delle parabole. Il costo è lineare nel numero di pixel e non dipende da alcun raggio,
+     * per cui qualsiasi contorno si ottiene come soglia sul campo di distanza.
+     * Le distanze sono restituite al quadrato, così da restare intere.
+     */
+
+    /**
+     * Calcola per ogni pixel il quadrato della distanza euclidea dal pixel di primo piano più vicino.
+     * @param mask la maschera.
+     * @param bgColor il colore di sfondo, ogni altro valore è primo piano.
+     * @return una maschera delle stesse dimensioni con le distanze al quadrato, 0 sul primo piano.
+     *         Se la maschera è tutta sfondo le distanze valgono Integer.MAX_VALUE, così che
+     *         nessuna soglia, per quanto ampia, selezioni pixel.
+     */
+    public static MaskRaster squaredDistance(MaskRaster mask, int bgColor) {
+        int height = mask.height;
+        int width = mask.width;
+        int stride = mask.stride;
+        int[] data = mask.data;
+
+        MaskRaster result = new MaskRaster(width, height);
+        int[] g = result.data;
+        boolean foreground = false;
+
+        // Distanza "infinita", maggiore di qualsiasi distanza possibile
+        int inf = width + height;
+
+        // Prima passata: distanza verticale dal primo piano più vicino nella stessa colonna
+        for (int y = 0; y < width; y++) {
+            g[y] = data[y] != bgColor ? 0 : inf;
+            for (int x = 1; x < height; x++) {
+                int k = x * width + y;
+                g[k] = data[x * stride + y] != bgColor ? 0 : g[k - width] + 1;
+            }
+
+            // Con del primo piano nella colonna l'ultima riga ne dista meno di inf
+            foreground |= g[(height - 1) * width + y] < inf;
+            for (int x = height - 2; x >= 0; x--) {
+                int k = x * width + y;
+                if (g[k + width] < g[k]) g[k] = g[k + width] + 1;
+            }
+        }
+
+        // Senza primo piano nessuna distanza è definita
+        if (!foreground) {
+            Arrays.fill(g, Integer.MAX_VALUE);
+            return result;
+        }
+
+        // Seconda passata: per ogni riga, inviluppo inferiore delle parabole (y - i)^2 + g(i)^2
+        int[] s = new int[width];
+        int[] t = new int[width];
+        int[] row = new int[width];
+        for (int x = 0; x < height; x++) {
+            int offset = x * width;
+
+            // Quadrati delle distanze verticali della riga
+            for (int y = 0; y < width; y++) {
+                int gy = g[offset + y];
+                row[y] = gy * gy;
+            }
+
+            int q = 0;
+            s[0] = 0;
+            t[0] = 0;
+            for (int u = 1; u < width; u++) {
+
+                // Scarta le parabole superate da quella in u
+                while (q >= 0 && f(t[q], s[q], row) > f(t[q], u, row)) q--;
+
+                if (q < 0) {
+                    q = 0;
+                    s[0] = u;
+                } else {
+                    int w = 1 + sep(s[q], u, row);
+                    if (w < width) {
+                        q++;
+                        s[q] = u;
+                        t[q] = w;
+                    }
+                }
+            }
+
+            for (int u = width - 1; u >= 0; u--) {
+                g[offset + u] = f(u, s[q], row);
+                if (u == t[q]) q--;
+            }
+        }
+
+
+        return result;
+    }
+
+    /**
+     * Valore in y della parabola con vertice in i.
+     */
+    private static int f(int y, int i, int[] row) {
+        return (y - i) * (y - i) + row[i];
+    }
+
+    /**
+     * Prima ascissa (a meno di uno) dalla quale la parabola in u è sotto quella in i, con i < u.
+     */
+    private static int sep(int i, int u, int[] row) {
+        return (u * u - i * i + row[u] - row[i]) / (2 * (u - i));
+    }
+}
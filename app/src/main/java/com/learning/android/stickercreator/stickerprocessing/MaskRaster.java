@@ -0,0 +1,128 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.Arrays;
+
+public class MaskRaster {
+    /**
+     * Classe che definisce una maschera bidimensionale memorizzata in un unico array
+     * contiguo di interi, con larghezza, altezza e passo di riga (stride).
+     * Sostituisce le matrici int[][] usate nelle fasi di elaborazione: un solo oggetto
+     * da allocare, un solo controllo sui limiti e accessi sequenziali in memoria.
+     *
+     * Le coordinate seguono la convenzione di Pixel e delle vecchie matrici: l'elemento
+     * (x, y) corrisponde a matrice[x][y] e si trova in data[x * stride + y], con
+     * 0 <= x < height e 0 <= y < width.
+     */
+
+    // Lasciati pubblici per permettere cicli stretti senza chiamate a metodo
+    public final int[] data;
+    public final int width;
+    public final int height;
+    public final int stride;
+
+    /**
+     * Costruttore della classe. Alloca una maschera azzerata.
+     * @param width la larghezza (dimensione del secondo indice).
+     * @param height l'altezza (dimensione del primo indice).
+     */
+    public MaskRaster(int width, int height) {
+        this(new int[width * height], width, height, width);
+    }
+
+    /**
+     * Costruttore della classe su un buffer già allocato, utile per riutilizzare
+     * la memoria tra un'elaborazione e l'altra.
+     * @param data il buffer, di almeno stride * height elementi.
+     * @param width la larghezza.
+     * @param height l'altezza.
+     * @param stride il numero di elementi tra l'inizio di una riga e la successiva.
+     * @throws IllegalArgumentException se le dimensioni non sono coerenti con il buffer.
+     */
+    public MaskRaster(int[] data, int width, int height, int stride) {
+        if (data == null || width <= 0 || height <= 0 || stride < width ||
+                data.length < stride * (height - 1) + width) throw new IllegalArgumentException();
+
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * Indice nel buffer dell'elemento (x, y).
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return la posizione dell'elemento in {@link #data}.
+     */
+    public int index(int x, int y) {
+        return x * stride + y;
+    }
+
+    /**
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return il valore dell'elemento (x, y).
+     */
+    public int get(int x, int y) {
+        return data[x * stride + y];
+    }
+
+    /**
+     * Assegna il valore all'elemento (x, y).
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @param value il valore da assegnare.
+     */
+    public void set(int x, int y, int value) {
+        data[x * stride + y] = value;
+    }
+
+    /**
+     * Controlla se le coordinate cadono dentro la maschera.
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return true se (x, y) è un elemento valido, false altrimenti.
+     */
+    public boolean contains(int x, int y) {
+        return x >= 0 && x < height && y >= 0 && y < width;
+    }
+
+    /**
+     * Assegna lo stesso valore a tutti gli elementi.
+     * @param value il valore da assegnare.
+     */
+    public void fill(int value) {
+        if (stride == width) {
+            Arrays.fill(data, 0, width * height, value);
+            return;
+        }
+
+        for (int x = 0; x < height; x++) {
+            int row = x * stride;
+            Arrays.fill(data, row, row + width, value);
+        }
+    }
+
+    /**
+     * Controlla se due maschere hanno le stesse dimensioni.
+     * @param other la maschera da confrontare.
+     * @return true se larghezza e altezza coincidono, false altrimenti.
+     */
+    public boolean sameSize(MaskRaster other) {
+        return other != null && other.width == width && other.height == height;
+    }
+
+    /**
+     * Crea una copia compatta (stride uguale alla larghezza) della maschera.
+     * @return la copia.
+     */
+    public MaskRaster copy() {
+        MaskRaster copy = new MaskRaster(width, height);
+        for (int x = 0; x < height; x++) {
+            System.arraycopy(data, x * stride, copy.data, x * width, width);
+        }
+
+
+        return copy;
+    }
+}
@@ -0,0 +1,142 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ModelRegistry {
+    /**
+     * Registro dei modelli, unico per tutto il processo: il file del modello viene mappato in
+     * memoria una sola volta e lo stesso MappedByteBuffer è condiviso da tutti gli interpreti
+     * (benchmark dei backend, segmentatori del pool). La mappatura resta valida anche dopo
+     * la chiusura del file e vive quanto il processo.
+     * Accanto al modello può esserci un file di etichette, una per riga nell'ordine delle
+     * classi in uscita, da cui il segmentatore ricava l'indice della classe persona.
+     */
+
+    // Nome del model nella directory 'assets'
+    public static final String MODEL_PATH = "graph.tflite";
+
+    // Nome del file opzionale delle etichette nella directory 'assets'
+    public static final String LABELS_PATH = "labels.txt";
+
+    private static MappedByteBuffer sModel;
+    private static String sModelId;
+    private static List<String> sLabels;
+    private static boolean sLabelsLoaded;
+
+    /**
+     * Restituisce il modello di segmentazione, mappandolo alla prima richiesta.
+     * @param context contesto usato per accedere agli assets.
+     * @return il modello mappato in memoria, in sola lettura.
+     * @throws IOException se il modello non viene caricato.
+     */
+    public static synchronized MappedByteBuffer getModel(Context context) throws IOException {
+        if (context == null) throw new IllegalArgumentException();
+
+        if (sModel == null) sModel = map(context, MODEL_PATH);
+
+
+        return sModel;
+    }
+
+    /**
+     * Identifica il modello in uso, ad esempio per invalidare i risultati salvati quando il
+     * modello viene sostituito. L'identificativo dipende dal contenuto, non solo dalla
+     * dimensione, e viene calcolato una sola volta per processo.
+     * @param context contesto usato per accedere agli assets.
+     * @return lo SHA-256 del modello mappato, in esadecimale.
+     * @throws IOException se il modello non viene caricato.
+     */
+    public static synchronized String getModelId(Context context) throws IOException {
+        if (sModelId == null) sModelId = StickerCache.hash(getModel(context));
+
+
+        return sModelId;
+    }
+
+    /**
+     * Restituisce le etichette delle classi del modello, leggendole alla prima richiesta.
+     * @param context contesto usato per accedere agli assets.
+     * @return le etichette in ordine di classe, null se il file delle etichette non esiste.
+     * @throws IOException se il file delle etichette non viene letto.
+     */
+    public static synchronized List<String> getLabels(Context context) throws IOException {
+        if (context == null) throw new IllegalArgumentException();
+
+        if (!sLabelsLoaded) {
+            sLabels = readLabels(context, LABELS_PATH);
+            sLabelsLoaded = true;
+        }
+
+
+        return sLabels;
+    }
+
+    /**
+     * Legge un file di etichette, una per riga.
+     * @param context contesto usato per accedere alla risorsa.
+     * @param path il percorso del file negli assets.
+     * @return le etichette, null se il file non esiste.
+     * @throws IOException se il file non viene letto.
+     */
+    private static List<String> readLabels(Context context, String path) throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(context.getAssets().open(path), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        List<String> labels = new ArrayList<>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) labels.add(line);
+        } finally {
+            reader.close();
+        }
+
+
+        return Collections.unmodifiableList(labels);
+    }
+
+    /**
+     * Mappa in memoria un file della directory 'assets', che deve essere salvato non compresso.
+     * @param context contesto usato per accedere alla risorsa.
+     * @param path il percorso del file negli assets.
+     * @return il file mappato in memoria.
+     * @throws IOException se il file non viene mappato.
+     */
+    private static MappedByteBuffer map(Context context, String path) throws IOException {
+        // Crea assetFileDescriptor per accedere al model
+        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(path);
+        try {
+            // Stream di Input per accedere al model
+            FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+            try {
+                FileChannel fileChannel = inputStream.getChannel();
+
+                // Offset del file in memoria
+                long startOffset = fileDescriptor.getStartOffset();
+                long declaredLength = fileDescriptor.getDeclaredLength();
+
+                // Mappatura del file
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            fileDescriptor.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+class ParallelStrips {
+    /**
+     * Esecuzione di un lavoro suddiviso in strisce orizzontali di righe su un ExecutorService.
+     * Il thread chiamante esegue a sua volta le strisce non ancora avviate dal pool, così
+     * che la chiamata non possa bloccarsi anche se invocata da un thread dello stesso pool.
+     */
+
+    /**
+     * Lavoro da eseguire su una striscia di righe.
+     */
+    interface StripTask {
+        /**
+         * @param strip l'indice della striscia.
+         * @param rowStart la prima riga della striscia (inclusa).
+         * @param rowEnd l'ultima riga della striscia (esclusa).
+         */
+        void run(int strip, int rowStart, int rowEnd);
+    }
+
+    /**
+     * @param strip l'indice della striscia.
+     * @param strips il numero di strisce.
+     * @param rows il numero di righe totali.
+     * @return la prima riga della striscia.
+     */
+    static int stripStart(int strip, int strips, int rows) {
+        return (int) ((long) strip * rows / strips);
+    }
+
+    /**
+     * Esegue il lavoro sulle strisce e attende che tutte siano terminate.
+     * @param executor l'executor sul quale distribuire le strisce, se null vengono eseguite
+     *                 in sequenza dal thread chiamante.
+     * @param strips il numero di strisce, al più pari al numero di righe.
+     * @param rows il numero di righe totali.
+     * @param task il lavoro da eseguire su ogni striscia.
+     * @throws IllegalStateException se una striscia fallisce o il thread viene interrotto.
+     */
+    static void run(ExecutorService executor, int strips, final int rows, final StripTask task) {
+        if (strips < 1 || strips > rows) throw new IllegalArgumentException();
+
+        // Esecuzione sequenziale
+        if (executor == null || strips == 1) {
+            for (int s = 0; s < strips; s++) {
+                task.run(s, stripStart(s, strips, rows), stripStart(s + 1, strips, rows));
+            }
+            return;
+        }
+
+        // Una striscia per FutureTask. Gli array generici non esistono: array grezzo, convertito
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FutureTask<Void>[] futures = new FutureTask[strips];
+        for (int s = 0; s < strips; s++) {
+            final int strip = s;
+            final int rowStart = stripStart(s, strips, rows);
+            final int rowEnd = stripStart(s + 1, strips, rows);
+            futures[s] = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(strip, rowStart, rowEnd);
+                }
+            }, null);
+        }
+
+        // La prima striscia resta al chiamante, le altre vanno al pool
+        for (int s = 1; s < strips; s++) {
+            try {
+                executor.execute(futures[s]);
+            } catch (RejectedExecutionException e) {
+                // Executor saturo o chiuso: la striscia verrà eseguita dal chiamante
+            }
+        }
+
+        // Il chiamante esegue ciò che il pool non ha ancora avviato (run() di un
+        //  FutureTask già avviato o terminato non fa nulla) e attende il resto
+        try {
+            for (int s = 0; s < strips; s++) {
+                futures[s].run();
+            }
+            for (int s = 0; s < strips; s++) {
+                futures[s].get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for strips", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Strip task failed", e.getCause());
+        }
+    }
+}
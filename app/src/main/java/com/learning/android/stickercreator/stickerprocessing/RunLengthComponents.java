@@ -0,0 +1,341 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.Arrays;
+
+public class RunLengthComponents {
+    /**
+     * Classe che definisce un etichettatore di componenti connesse basato sulle run:
+     * ogni riga della maschera viene ridotta a una sequenza di run di pixel non di sfondo
+     * e vengono unite le run sovrapposte di righe adiacenti. Il risultato è una mappa
+     * delle componenti in forma run-length, con memoria e tempo proporzionali al numero
+     * di run e non al numero di pixel.
+     * Le etichette sono numerate secondo l'ordine di prima apparizione nella scansione
+     * (come in {@link ConnectedComponentsLabeler} in 4-connettività) e viene riempita
+     * la stessa tabella di statistiche.
+     */
+
+    private static final int INITIAL_RUNS = 1024;
+
+    // Connettività: in 8-connettività sono sovrapposte anche le run che si toccano in diagonale
+    private final int mConnectivity;
+
+    // Dimensioni della maschera
+    private final int mWidth;
+    private final int mHeight;
+
+    // Le run della riga x sono quelle con indice in [mRowStart[x], mRowStart[x + 1]).
+    //  Per ogni run: prima colonna (inclusa), ultima colonna (esclusa) ed etichetta
+    private final int[] mRowStart;
+    private int[] mStart;
+    private int[] mEnd;
+    private int[] mLabel;
+    private int mRunCount;
+
+    // Statistiche delle componenti
+    private ComponentStatistics mStatistics;
+
+    /**
+     * Costruttore della classe. Estrae le run ed esegue l'etichettatura in 4-connettività.
+     * @param mask la maschera da etichettare, avente 0 negli elementi considerati sfondo.
+     */
+    public RunLengthComponents(MaskRaster mask) {
+        this(mask, ConnectedComponentsLabeler.CONNECTIVITY_4);
+    }
+
+    /**
+     * Costruttore della classe. Estrae le run ed esegue l'etichettatura.
+     * @param mask la maschera da etichettare, avente 0 negli elementi considerati sfondo.
+     * @param connectivity {@link ConnectedComponentsLabeler#CONNECTIVITY_4} o
+     *                     {@link ConnectedComponentsLabeler#CONNECTIVITY_8}.
+     */
+    public RunLengthComponents(MaskRaster mask, int connectivity) {
+        if (connectivity != ConnectedComponentsLabeler.CONNECTIVITY_4 &&
+                connectivity != ConnectedComponentsLabeler.CONNECTIVITY_8) throw new IllegalArgumentException();
+
+        mConnectivity = connectivity;
+        mWidth = mask.width;
+        mHeight = mask.height;
+        mRowStart = new int[mHeight + 1];
+        mStart = new int[INITIAL_RUNS];
+        mEnd = new int[INITIAL_RUNS];
+        mLabel = new int[INITIAL_RUNS];
+
+        label(mask);
+        collectStatistics();
+    }
+
+    /**
+     * @return la tabella delle statistiche per componente.
+     */
+    public ComponentStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * @return il numero di componenti connesse trovate.
+     */
+    public int getComponentCount() {
+        return mStatistics.getCount();
+    }
+
+    /**
+     * @return la larghezza della maschera etichettata.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return l'altezza della maschera etichettata.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return il numero totale di run.
+     */
+    public int getRunCount() {
+        return mRunCount;
+    }
+
+    /**
+     * @param x l'indice di riga.
+     * @return l'indice della prima run della riga; le run della riga terminano
+     *         all'indice restituito per la riga x + 1.
+     */
+    public int getRowStart(int x) {
+        return mRowStart[x];
+    }
+
+    /**
+     * @param run l'indice della run.
+     * @return la prima colonna della run (inclusa).
+     */
+    public int getRunStart(int run) {
+        return mStart[run];
+    }
+
+    /**
+     * @param run l'indice della run.
+     * @return l'ultima colonna della run (esclusa).
+     */
+    public int getRunEnd(int run) {
+        return mEnd[run];
+    }
+
+    /**
+     * @param run l'indice della run.
+     * @return l'etichetta della componente a cui appartiene la run.
+     */
+    public int getRunLabel(int run) {
+        return mLabel[run];
+    }
+
+    /**
+     * Controlla se la colonna y della riga x è coperta da una run.
+     * @param x l'indice di riga.
+     * @param y l'indice di colonna.
+     * @return true se il pixel appartiene a una componente, false se è sfondo o fuori dai limiti.
+     */
+    public boolean isForeground(int x, int y) {
+        if (x < 0 || x >= mHeight || y < 0 || y >= mWidth) return false;
+
+        // Ricerca binaria tra le run della riga
+        int lo = mRowStart[x];
+        int hi = mRowStart[x + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mEnd[mid] <= y) lo = mid + 1;
+            else if (mStart[mid] > y) hi = mid - 1;
+            else return true;
+        }
+
+
+        return false;
+    }
+
+    /**
+     * Disegna le run di una componente su una maschera.
+     * @param target la maschera su cui disegnare, delle stesse dimensioni.
+     * @param label l'etichetta della componente, 0 per disegnarle tutte.
+     * @param value il valore da assegnare ai pixel della componente.
+     */
+    public void paint(MaskRaster target, int label, int value) {
+        if (target.width != mWidth || target.height != mHeight) throw new IllegalArgumentException();
+
+        for (int x = 0; x < mHeight; x++) {
+            int row = x * target.stride;
+            for (int r = mRowStart[x]; r < mRowStart[x + 1]; r++) {
+                if (label == 0 || mLabel[r] == label) {
+                    Arrays.fill(target.data, row + mStart[r], row + mEnd[r], value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Filtra la maschera lasciando solo la componente connessa più estesa, equivalente a
+     * {@link ConnectedComponentsLabeler#largestConnectedComponentFilter(int, int, int, MaskRaster)}.
+     * @param fgLabel l'etichetta per la componente connessa più estesa
+     * @param bgLabel l'etichetta per lo sfondo
+     * @param tollerance tolleranza in percentuale sulla dimensione della componente connessa più grande
+     * @param target la maschera di destinazione, delle stesse dimensioni.
+     * @return target rietichettata. null se la dimensione della componente più grande è
+     * troppo poco estesa, sotto la tolleranza impostata
+     */
+    public MaskRaster largestConnectedComponentFilter(int fgLabel, int bgLabel, int tollerance, MaskRaster target) {
+        if (tollerance > 100 || tollerance < 0) throw new IllegalArgumentException();
+
+        int largest = mStatistics.getLargest();
+        if (largest == 0) return null;
+
+        // Controllo sulla tolleranza
+        if ((mStatistics.getArea(largest) + 0.0) / (mWidth * mHeight) * 100 < tollerance) return null;
+
+        target.fill(bgLabel);
+        paint(target, largest, fgLabel);
+
+
+        return target;
+    }
+
+    /**
+     * Estrae le run riga per riga e le etichetta unendo quelle sovrapposte
+     *  alle run della riga precedente.
+     * @param mask la maschera da etichettare.
+     */
+    private void label(MaskRaster mask) {
+        int[] data = mask.data;
+        UnionFind equivalences = new UnionFind();
+
+        // In 8-connettività due run si toccano anche se distano una colonna in diagonale
+        int slack = mConnectivity == ConnectedComponentsLabeler.CONNECTIVITY_8 ? 1 : 0;
+
+        for (int x = 0; x < mHeight; x++) {
+            int row = x * mask.stride;
+            mRowStart[x] = mRunCount;
+
+            // Run della riga precedente da confrontare
+            int prev = x == 0 ? 0 : mRowStart[x - 1];
+            int prevEnd = mRunCount;
+
+            int y = 0;
+            while (y < mWidth) {
+
+                // Salta lo sfondo
+                while (y < mWidth && data[row + y] == 0) y++;
+                if (y == mWidth) break;
+
+                // Estende la run
+                int start = y;
+                while (y < mWidth && data[row + y] != 0) y++;
+                int end = y;
+
+                // Scarta le run precedenti che terminano prima di questa
+                while (prev < prevEnd && mEnd[prev] + slack <= start) prev++;
+
+                // Unione con le run sovrapposte della riga precedente
+                int label = 0;
+                for (int p = prev; p < prevEnd && mStart[p] < end + slack; p++) {
+                    if (label == 0) label = mLabel[p];
+                    else if (label != mLabel[p]) label = equivalences.union(label, mLabel[p]);
+                }
+                if (label == 0) label = equivalences.makeSet();
+
+                addRun(start, end, label);
+            }
+        }
+        mRowStart[mHeight] = mRunCount;
+
+        // Etichette definitive nell'ordine di creazione, cioè di prima apparizione
+        int[] newLabels = new int[equivalences.size() + 1];
+        int count = 0;
+        for (int l = 1; l < newLabels.length; l++) {
+            int root = equivalences.find(l);
+            if (newLabels[root] == 0) {
+                count++;
+                newLabels[root] = count;
+            }
+            newLabels[l] = newLabels[root];
+        }
+
+        for (int r = 0; r < mRunCount; r++) {
+            mLabel[r] = newLabels[mLabel[r]];
+        }
+
+        mStatistics = new ComponentStatistics(count);
+    }
+
+    /**
+     * Accoda una run, facendo crescere gli array se necessario.
+     */
+    private void addRun(int start, int end, int label) {
+        if (mRunCount == mStart.length) {
+            int capacity = mStart.length * 2;
+            mStart = Arrays.copyOf(mStart, capacity);
+            mEnd = Arrays.copyOf(mEnd, capacity);
+            mLabel = Arrays.copyOf(mLabel, capacity);
+        }
+
+        mStart[mRunCount] = start;
+        mEnd[mRunCount] = end;
+        mLabel[mRunCount] = label;
+        mRunCount++;
+    }
+
+    /**
+     * Calcola le statistiche per componente direttamente dalle run.
+     *  I pixel interni (non di bordo) di una run sono quelli esclusi gli estremi
+     *  coperti da run sia nella riga precedente che nella successiva.
+     */
+    private void collectStatistics() {
+        ComponentStatistics stats = mStatistics;
+
+        for (int x = 0; x < mHeight; x++) {
+            for (int r = mRowStart[x]; r < mRowStart[x + 1]; r++) {
+                int label = mLabel[r];
+                int start = mStart[r];
+                int end = mEnd[r];
+                int length = end - start;
+
+                stats.area[label] += length;
+                stats.sumX[label] += (long) x * length;
+                stats.sumY[label] += (long) (start + end - 1) * length / 2;
+                if (x < stats.minX[label]) stats.minX[label] = x;
+                if (x > stats.maxX[label]) stats.maxX[label] = x;
+                if (start < stats.minY[label]) stats.minY[label] = start;
+                if (end - 1 > stats.maxY[label]) stats.maxY[label] = end - 1;
+
+                int interior = (x == 0 || x == mHeight - 1) ? 0 : countCovered(start + 1, end - 1, x - 1, x + 1);
+                stats.borderPixels[label] += length - interior;
+            }
+        }
+    }
+
+    /**
+     * Conta le colonne dell'intervallo [from, to) coperte da run sia nella riga a che nella riga b.
+     */
+    private int countCovered(int from, int to, int a, int b) {
+        int covered = 0;
+        int q = mRowStart[b];
+        int qEnd = mRowStart[b + 1];
+
+        for (int p = mRowStart[a]; p < mRowStart[a + 1] && mStart[p] < to; p++) {
+
+            // Intersezione dell'intervallo con la run della riga a
+            int lo = Math.max(from, mStart[p]);
+            int hi = Math.min(to, mEnd[p]);
+            if (lo >= hi) continue;
+
+            // Intersezione con le run della riga b
+            while (q < qEnd && mEnd[q] <= lo) q++;
+            for (int n = q; n < qEnd && mStart[n] < hi; n++) {
+                covered += Math.min(hi, mEnd[n]) - Math.max(lo, mStart[n]);
+            }
+        }
+
+
+        return covered;
+    }
+}
@@ -0,0 +1,266 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+public class ScaleNx {
+    /**
+     * Ingranditore di maschere con gli algoritmi Scale2x e Scale3x utilizzati in emulatori
+     * e per fare pixel art (https://www.scale2x.it/algorithm), scritto direttamente nella
+     * maschera di destinazione passata dal chiamante.
+     * Per ogni riga i vicini sopra e sotto vengono fissati una volta sola; le colonne interne
+     * sono elaborate da un ciclo senza controlli sui limiti, la prima e l'ultima colonna da
+     * codice separato che replica il pixel di margine.
+     * I fattori 4x, 6x, 8x, ... si ottengono componendo Scale2x e Scale3x.
+     */
+
+    /**
+     * Ingrandisce una maschera del fattore dato.
+     * @param src la maschera da scalare.
+     * @param factor il fattore di scala, prodotto di potenze di 2 e di 3 (1, 2, 3, 4, 6, 8, 9, ...).
+     * @param target la maschera di destinazione, di dimensioni pari a quelle di src per factor.
+     * @return target.
+     * @throws IllegalArgumentException se il fattore non è scomponibile in 2 e 3 o se le
+     *         dimensioni di target non sono coerenti.
+     */
+    public static MaskRaster scale(MaskRaster src, int factor, MaskRaster target) {
+        if (factor < 1) throw new IllegalArgumentException();
+        checkTarget(src, factor, target);
+
+        // Scomposizione del fattore in passi da 2 e da 3
+        int twos = 0;
+        int threes = 0;
+        int rest = factor;
+        while (rest % 2 == 0) {
+            rest /= 2;
+            twos++;
+        }
+        while (rest % 3 == 0) {
+            rest /= 3;
+            threes++;
+        }
+        if (rest != 1) throw new IllegalArgumentException("Factor must be a product of 2s and 3s: " + factor);
+
+        // Fattore 1: semplice copia
+        if (factor == 1) {
+            for (int x = 0; x < src.height; x++) {
+                System.arraycopy(src.data, x * src.stride, target.data, x * target.stride, src.width);
+            }
+            return target;
+        }
+
+        // Prima i passi da 2, così che le maschere intermedie siano le più piccole possibili.
+        //  L'ultimo passo scrive direttamente nella destinazione
+        MaskRaster current = src;
+        int steps = twos + threes;
+        for (int s = 0; s < steps; s++) {
+            int stepFactor = s < twos ? 2 : 3;
+            MaskRaster next = s == steps - 1 ? target :
+                    new MaskRaster(current.width * stepFactor, current.height * stepFactor);
+
+            if (stepFactor == 2) scale2x(current, next);
+            else scale3x(current, next);
+            current = next;
+        }
+
+
+        return target;
+    }
+
+    /**
+     * Ingrandisce una maschera di due volte con l'algoritmo Scale2x.
+     * @param src la maschera da scalare.
+     * @param target la maschera di destinazione, di dimensioni doppie.
+     * @return target.
+     */
+    public static MaskRaster scale2x(MaskRaster src, MaskRaster target) {
+        checkTarget(src, 2, target);
+
+        int height = src.height;
+        int width = src.width;
+        int stride = src.stride;
+        int[] data = src.data;
+        int[] out = target.data;
+        int ts = target.stride;
+
+        // Per rispetto verso il progettista dell'algoritmo NON sono stati rinominati i nomi delle
+        //  variabili
+        //
+        //  ABC
+        //  DEF -> E0E1
+        //  GHI    E2E3
+        //
+        // L'algoritmo 'espande' il pixel E in quattro pixel E0, E1, E2, E3 calcolando il valore di questi
+        //  confrontando il valore dei pixel adiacenti a E (i vertici A, C, G, I non sono utilizzati)
+        int b, d, e, f, h;
+
+        for (int x = 0; x < height; x++) {
+
+            // Righe sopra e sotto, replicate al margine
+            int rowB = (x > 0 ? x - 1 : 0) * stride;
+            int rowE = x * stride;
+            int rowH = (x < height - 1 ? x + 1 : x) * stride;
+            int k = 2 * x * ts;
+
+            // Prima colonna
+            b = data[rowB];
+            d = data[rowE];
+            e = data[rowE];
+            f = data[rowE + (width > 1 ? 1 : 0)];
+            h = data[rowH];
+            put2x(out, k, ts, b, d, e, f, h);
+
+            // Colonne interne, senza controlli sui limiti
+            for (int y = 1; y < width - 1; y++) {
+                b = data[rowB + y];
+                d = data[rowE + y - 1];
+                e = data[rowE + y];
+                f = data[rowE + y + 1];
+                h = data[rowH + y];
+                put2x(out, k + 2 * y, ts, b, d, e, f, h);
+            }
+
+            // Ultima colonna
+            if (width > 1) {
+                int y = width - 1;
+                b = data[rowB + y];
+                d = data[rowE + y - 1];
+                e = data[rowE + y];
+                f = e;
+                h = data[rowH + y];
+                put2x(out, k + 2 * y, ts, b, d, e, f, h);
+            }
+        }
+
+
+        return target;
+    }
+
+    /**
+     * Ingrandisce una maschera di tre volte con l'algoritmo Scale3x.
+     * @param src la maschera da scalare.
+     * @param target la maschera di destinazione, di dimensioni triple.
+     * @return target.
+     */
+    public static MaskRaster scale3x(MaskRaster src, MaskRaster target) {
+        checkTarget(src, 3, target);
+
+        int height = src.height;
+        int width = src.width;
+        int stride = src.stride;
+        int[] data = src.data;
+        int[] out = target.data;
+        int ts = target.stride;
+
+        //  ABC    E0E1E2
+        //  DEF -> E3E4E5
+        //  GHI    E6E7E8
+        int a, b, c, d, e, f, g, h, i;
+
+        for (int x = 0; x < height; x++) {
+
+            // Righe sopra e sotto, replicate al margine
+            int rowB = (x > 0 ? x - 1 : 0) * stride;
+            int rowE = x * stride;
+            int rowH = (x < height - 1 ? x + 1 : x) * stride;
+            int k = 3 * x * ts;
+
+            // Prima colonna
+            int right = width > 1 ? 1 : 0;
+            a = data[rowB];
+            b = data[rowB];
+            c = data[rowB + right];
+            d = data[rowE];
+            e = data[rowE];
+            f = data[rowE + right];
+            g = data[rowH];
+            h = data[rowH];
+            i = data[rowH + right];
+            put3x(out, k, ts, a, b, c, d, e, f, g, h, i);
+
+            // Colonne interne, senza controlli sui limiti
+            for (int y = 1; y < width - 1; y++) {
+                a = data[rowB + y - 1];
+                b = data[rowB + y];
+                c = data[rowB + y + 1];
+                d = data[rowE + y - 1];
+                e = data[rowE + y];
+                f = data[rowE + y + 1];
+                g = data[rowH + y - 1];
+                h = data[rowH + y];
+                i = data[rowH + y + 1];
+                put3x(out, k + 3 * y, ts, a, b, c, d, e, f, g, h, i);
+            }
+
+            // Ultima colonna
+            if (width > 1) {
+                int y = width - 1;
+                a = data[rowB + y - 1];
+                b = data[rowB + y];
+                c = b;
+                d = data[rowE + y - 1];
+                e = data[rowE + y];
+                f = e;
+                g = data[rowH + y - 1];
+                h = data[rowH + y];
+                i = h;
+                put3x(out, k + 3 * y, ts, a, b, c, d, e, f, g, h, i);
+            }
+        }
+
+
+        return target;
+    }
+
+    /**
+     * Scrive il blocco 2x2 del pixel E a partire dall'indice k.
+     */
+    private static void put2x(int[] out, int k, int ts, int b, int d, int e, int f, int h) {
+        if (b != h && d != f) {
+            out[k] = d == b ? d : e;
+            out[k + 1] = b == f ? f : e;
+            out[k + ts] = d == h ? d : e;
+            out[k + ts + 1] = h == f ? f : e;
+        } else {
+            out[k] = e;
+            out[k + 1] = e;
+            out[k + ts] = e;
+            out[k + ts + 1] = e;
+        }
+    }
+
+    /**
+     * Scrive il blocco 3x3 del pixel E a partire dall'indice k.
+     */
+    private static void put3x(int[] out, int k, int ts, int a, int b, int c, int d, int e, int f, int g, int h, int i) {
+        int k1 = k + ts;
+        int k2 = k1 + ts;
+
+        if (b != h && d != f) {
+            out[k] = d == b ? d : e;
+            out[k + 1] = (d == b && e != c) || (b == f && e != a) ? b : e;
+            out[k + 2] = b == f ? f : e;
+            out[k1] = (d == b && e != g) || (d == h && e != a) ? d : e;
+            out[k1 + 1] = e;
+            out[k1 + 2] = (b == f && e != i) || (h == f && e != c) ? f : e;
+            out[k2] = d == h ? d : e;
+            out[k2 + 1] = (d == h && e != i) || (h == f && e != g) ? h : e;
+            out[k2 + 2] = h == f ? f : e;
+        } else {
+            out[k] = e;
+            out[k + 1] = e;
+            out[k + 2] = e;
+            out[k1] = e;
+            out[k1 + 1] = e;
+            out[k1 + 2] = e;
+            out[k2] = e;
+            out[k2 + 1] = e;
+            out[k2 + 2] = e;
+        }
+    }
+
+    /**
+     * Controlla che la destinazione abbia le dimensioni della sorgente moltiplicate per il fattore.
+     */
+    private static void checkTarget(MaskRaster src, int factor, MaskRaster target) {
+        if (target == null || target.width != src.width * factor || target.height != src.height * factor ||
+                target == src) throw new IllegalArgumentException();
+    }
+}
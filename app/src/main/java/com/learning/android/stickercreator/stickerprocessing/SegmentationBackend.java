@@ -0,0 +1,52 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+public interface SegmentationBackend extends Closeable {
+    /**
+     * Motore di inferenza usato da {@link SemanticSegmentator}: esegue il modello su un buffer
+     * di ingresso già preparato e scrive il risultato nel buffer di uscita. Le implementazioni
+     * non sono thread-safe e, con delegati come quello GPU, vanno usate dal thread che le ha create.
+     * Vedi {@link TfLiteBackend} per i backend di TensorFlow Lite e {@link BackendSelector}
+     * per la scelta automatica.
+     */
+
+    /**
+     * @return il nome della configurazione, ad esempio "GPU" o "XNNPACK:4".
+     */
+    String getName();
+
+    /**
+     * @return la descrizione del tensore di ingresso.
+     */
+    TensorSpec getInputSpec();
+
+    /**
+     * @return la descrizione del tensore di uscita.
+     */
+    TensorSpec getOutputSpec();
+
+    /**
+     * Ridimensiona il lotto del tensore di ingresso a [batchSize, 257, 257, 3] e rialloca i
+     * tensori; da qui in poi {@link #getInputSpec()} e {@link #getOutputSpec()} descrivono la
+     * nuova forma e i buffer di {@link #run(ByteBuffer, ByteBuffer)} devono contenere
+     * batchSize immagini consecutive.
+     * @param batchSize il numero di immagini per inferenza.
+     * @throws IllegalArgumentException se il backend non supporta il lotto richiesto.
+     */
+    void resizeBatch(int batchSize);
+
+    /**
+     * Esegue un'inferenza.
+     * @param input il buffer di ingresso, nel formato descritto da {@link #getInputSpec()}.
+     * @param output il buffer di uscita, nel formato descritto da {@link #getOutputSpec()}.
+     */
+    void run(ByteBuffer input, ByteBuffer output);
+
+    /**
+     * Rilascia le risorse del backend. Dopo la chiusura il backend non è più utilizzabile.
+     */
+    @Override
+    void close();
+}
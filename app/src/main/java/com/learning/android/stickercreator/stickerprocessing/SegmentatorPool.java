@@ -0,0 +1,290 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.learning.android.stickercreator.ImagePickerActiviy;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class SegmentatorPool {
+    /**
+     * Pool di segmentatori a lunga vita, condiviso da tutta l'app. Ogni segmentatore è
+     * confinato in un proprio thread: viene creato, usato e chiuso sempre da quel thread,
+     * come richiesto dal delegato GPU. I chiamanti concorrenti prendono un thread libero,
+     * gli consegnano la bitmap e attendono la maschera, così che la preparazione del grafo
+     * e l'allocazione dei buffer avvengano una volta sola e non ad ogni sticker.
+     * Se la preferenza sull'uso della GPU cambia, il segmentatore viene ricreato alla
+     * segmentazione successiva, con il backend scelto da {@link BackendSelector}.
+     */
+
+    private static final String TAG = "SegmentatorPool";
+
+    // Un solo interprete di default: ognuno tiene in memoria i propri tensori (circa 6 MB
+    //  di soli buffer di ingresso e uscita) e l'app elabora uno sticker alla volta
+    private static final int DEFAULT_POOL_SIZE = 1;
+
+    private static SegmentatorPool sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final Worker[] mWorkers;
+    private final BlockingQueue<Worker> mIdle;
+    private boolean mClosed;
+
+    /**
+     * Thread con il proprio segmentatore.
+     */
+    private static class Worker {
+        final ExecutorService executor;
+        SemanticSegmentator segmentator;
+
+        // Preferenza sulla GPU con cui è stato creato il segmentatore
+        boolean gpuAllowed;
+
+        // True dopo l'inferenza di riscaldamento del segmentatore corrente
+        boolean warmedUp;
+
+        Worker(final int index) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Segmentator-" + index);
+                }
+            });
+        }
+    }
+
+    /**
+     * Operazione da eseguire su un segmentatore, nel suo thread.
+     */
+    public interface Task<T> {
+        /**
+         * @param segmentator il segmentatore, da non conservare oltre la chiamata.
+         * @return il risultato dell'operazione.
+         * @throws IOException se l'operazione fallisce.
+         */
+        T run(SemanticSegmentator segmentator) throws IOException;
+    }
+
+    /**
+     * Restituisce il pool condiviso, creandolo alla prima richiesta.
+     * @param context un contesto qualsiasi, viene conservato solo quello dell'applicazione.
+     * @return il pool condiviso.
+     */
+    public static synchronized SegmentatorPool getInstance(Context context) {
+        if (sInstance == null || sInstance.isClosed()) {
+            sInstance = new SegmentatorPool(context.getApplicationContext(), DEFAULT_POOL_SIZE);
+        }
+
+
+        return sInstance;
+    }
+
+    /**
+     * Chiude il pool condiviso, se esiste, rilasciando interpreti e delegati.
+     */
+    public static synchronized void shutdown() {
+        if (sInstance != null) {
+            sInstance.close();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Costruttore della classe. I segmentatori vengono creati alla prima segmentazione
+     * sul proprio thread.
+     * @param context contesto usato per accedere al modello e alle preferenze.
+     * @param size il numero di segmentatori, cioè di segmentazioni concorrenti.
+     */
+    public SegmentatorPool(Context context, int size) {
+        if (context == null || size < 1) throw new IllegalArgumentException();
+
+        mContext = context;
+        mPreferences = context.getSharedPreferences(ImagePickerActiviy.MY_PREFERENCES, Context.MODE_PRIVATE);
+        mWorkers = new Worker[size];
+        mIdle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            mWorkers[i] = new Worker(i);
+            mIdle.add(mWorkers[i]);
+        }
+    }
+
+    /**
+     * Segmenta una bitmap con il primo segmentatore libero, attendendo se sono tutti occupati.
+     * @param bmp immagine da segmentare, con i vincoli di {@link SemanticSegmentator#segment(Bitmap, int, AlphaMatte)}.
+     * @param sampling il fattore di campionamento alla risoluzione della rete.
+     * @param alpha la maschera morbida da riempire, o null.
+     * @return la maschera della persona, null se non è stata trovata alcuna persona.
+     * @throws IOException se il modello non viene caricato.
+     * @throws IllegalStateException se il pool è chiuso o il thread viene interrotto.
+     */
+    public MaskRaster segment(Bitmap bmp, int sampling, AlphaMatte alpha) throws IOException {
+        if (bmp == null || sampling < 1 || bmp.getWidth() / sampling == 0) throw new IllegalArgumentException();
+
+
+        return segment(bmp, sampling, alpha, new MaskRaster(bmp.getWidth() / sampling, bmp.getHeight() / sampling));
+    }
+
+    /**
+     * Segmenta una bitmap scrivendo il risultato nella maschera passata dal chiamante.
+     * @param bmp immagine da segmentare, con i vincoli di {@link SemanticSegmentator#segment(Bitmap, int, AlphaMatte)}.
+     * @param sampling il fattore di campionamento alla risoluzione della rete.
+     * @param alpha la maschera morbida da riempire, o null.
+     * @param target la maschera di destinazione, di dimensioni pari a quelle della bitmap divise per sampling.
+     * @return target, null se non è stata trovata alcuna persona.
+     * @throws IOException se il modello non viene caricato.
+     * @throws IllegalStateException se il pool è chiuso o il thread viene interrotto.
+     */
+    public MaskRaster segment(final Bitmap bmp, final int sampling, final AlphaMatte alpha,
+                              final MaskRaster target) throws IOException {
+        return execute(new Task<MaskRaster>() {
+            @Override
+            public MaskRaster run(SemanticSegmentator segmentator) {
+                return segmentator.segment(bmp, sampling, alpha, target);
+            }
+        });
+    }
+
+    /**
+     * Esegue un'operazione sul primo segmentatore libero, nel thread del segmentatore,
+     * attendendo se sono tutti occupati. Permette di comporre i passi della segmentazione
+     * (preparazione, inferenza, decodifica) e di cronometrarli separatamente.
+     * @param task l'operazione da eseguire.
+     * @return il risultato dell'operazione.
+     * @throws IOException se il modello non viene caricato o l'operazione la solleva.
+     * @throws IllegalStateException se il pool è chiuso o il thread viene interrotto.
+     */
+    public <T> T execute(final Task<T> task) throws IOException {
+        if (task == null) throw new IllegalArgumentException();
+
+        final Worker worker;
+        try {
+            worker = mIdle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a segmentator", e);
+        }
+
+        try {
+            if (isClosed()) throw new IllegalStateException("Pool already closed");
+
+            return worker.executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return task.run(obtain(worker));
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while segmenting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException("Segmentation failed", cause);
+        } finally {
+            mIdle.add(worker);
+        }
+    }
+
+    /**
+     * Crea i segmentatori in anticipo ed esegue un'inferenza di riscaldamento, così che la
+     * prima segmentazione non paghi mappatura del modello, eventuale benchmark dei backend,
+     * preparazione del grafo e prima inferenza. Non attende la fine del riscaldamento e
+     * non fa nulla sui segmentatori già riscaldati.
+     */
+    public void warmUp() {
+        if (isClosed()) return;
+
+        for (final Worker worker : mWorkers) {
+            worker.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SemanticSegmentator segmentator = obtain(worker);
+                        if (worker.warmedUp) return;
+
+                        long start = System.currentTimeMillis();
+                        segmentator.warmUp();
+                        worker.warmedUp = true;
+                        Log.d(TAG, "Warm up: " + (System.currentTimeMillis() - start) + "ms");
+                    } catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "Warm up failed: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true se il pool è stato chiuso.
+     */
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Chiude i segmentatori, ognuno sul proprio thread, e termina i thread.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+        }
+
+        for (final Worker worker : mWorkers) {
+            worker.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (worker.segmentator != null) {
+                        worker.segmentator.close();
+                        worker.segmentator = null;
+                    }
+                }
+            });
+            worker.executor.shutdown();
+        }
+    }
+
+    /**
+     * Restituisce il segmentatore del worker, creandolo o ricreandolo se la preferenza
+     * sull'uso della GPU è cambiata. Va chiamato solo dal thread del worker, così che il
+     * benchmark dei backend e il delegato GPU girino sul thread che li userà.
+     */
+    private SemanticSegmentator obtain(Worker worker) throws IOException {
+        boolean useGpu = mPreferences.getBoolean("usaGPU", true);
+
+        if (worker.segmentator != null && worker.gpuAllowed != useGpu) {
+            worker.segmentator.close();
+            worker.segmentator = null;
+        }
+        if (worker.segmentator == null) {
+            worker.segmentator = createSegmentator();
+            worker.gpuAllowed = useGpu;
+            worker.warmedUp = false;
+        }
+
+
+        return worker.segmentator;
+    }
+
+    /**
+     * Crea un segmentatore con il backend scelto da {@link BackendSelector}, nel thread del
+     * worker. Sovrascritto nei test per usare un backend finto.
+     * @return il nuovo segmentatore.
+     * @throws IOException se il modello non viene caricato.
+     */
+    SemanticSegmentator createSegmentator() throws IOException {
+        return new SemanticSegmentator(mContext);
+    }
+}
@@ -1,81 +1,230 @@
 package com.learning.android.stickercreator.stickerprocessing;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-import com.learning.android.stickercreator.ImagePickerActiviy;
+import org.tensorflow.lite.DataType;
 
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.GpuDelegate;
-
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-public class SemanticSegmentator {
+public class SemanticSegmentator implements Closeable {
     /**
      * Classe che definisce un segmentatore semantico basato su TensorFlow Lite
      * e sul modello DeepLab_v3+, opportunamente convertito per essere utilizzato
-     * da TensorFlow Lite e non quantizzato. La classe si focalizza sul riconoscimento e
+     * da TensorFlow Lite, sia in virgola mobile sia quantizzato a 8 bit (uint8 o int8): il tipo
+     * e i parametri di quantizzazione dei tensori vengono letti dal modello e ingresso e uscita
+     * sono scritti e letti nel formato nativo. La classe si focalizza sul riconoscimento e
      * segmentazione di persone.
+     * Il numero di classi viene letto dalla forma dell'uscita e l'indice della classe persona
+     * dal file delle etichette, se presente: oltre a DeepLab con le 21 classi di PASCAL VOC
+     * sono supportati modelli binari persona/sfondo (due classi) o con un solo logit, per
+     * cui la persona è il pixel con logit positivo.
+     * L'inferenza è delegata a un {@link SegmentationBackend}, creato una volta sola e
+     * riutilizzato da ogni segmentazione fino alla chiamata di {@link #close()}.
+     * Con {@link #segmentBatch(List)} più immagini vengono segmentate con un'unica inferenza
+     * su un tensore [N, 257, 257, 3], se il backend supporta il ridimensionamento del lotto.
+     * L'istanza non è thread-safe e, con il delegato GPU, deve essere usata dallo stesso
+     * thread che l'ha creata: per chiamanti concorrenti vedi {@link SegmentatorPool}.
      */
 
     private static final String TAG = "SemanticSegmentator";
 
-    // Nome del model nella directory 'assets'
-    private static final String MODEL_PATH = "graph.tflite";
-
     // Parametri del modello
     private static final float IMAGE_MEAN = 128.0f;
     private static final float IMAGE_STD = 128.0f;
     private final static int INPUT_SIZE = 257;
-    private final static int NUM_CLASSES = 21;
+    // Modello DeepLab su PASCAL VOC: 21 classi, la persona è la 15
+    private final static int VOC_CLASSES = 21;
+    private final static int VOC_PERSON_CLASS = 15;
+    private static final String PERSON_LABEL = "person";
     private final static int COLOR_CHANNELS = 3;
-    private final static int BYTES_PER_POINT = 4;
+    private final static int INPUT_ELEMENTS = INPUT_SIZE * INPUT_SIZE * COLOR_CHANNELS;
 
-    // Mappatura in memoria del model
-    ByteBuffer mModelBuffer;
+    // Massimo numero di immagini per inferenza: con 21 classi float ogni immagine occupa circa
+    //  6 MB di buffer, i lotti più lunghi vengono spezzati
+    private final static int MAX_BATCH = 4;
 
-    // ByteBuffer utilizzati per l'input e output dalla rete
-    private ByteBuffer mImageData;
-    private ByteBuffer mOutputs;
-    private SharedPreferences sharedpreferences;
+    // Lato dei blocchi della trasposizione in decodifica: 32 righe di punteggi (circa 86 KB con
+    //  21 classi float) e 32 righe della maschera restano in cache per tutto il blocco
+    private final static int DECODE_BLOCK = 32;
+
+    // Tabella di normalizzazione: per ogni valore di un canale a 8 bit il valore in ingresso alla rete
+    private static final float[] NORMALIZATION = new float[256];
+    static {
+        for (int v = 0; v < 256; v++) NORMALIZATION[v] = (v - IMAGE_MEAN) / IMAGE_STD;
+    }
 
     /**
-     * Costruttore del segmentatore.
-     * @param context utilizzato per accedere alla rete neurale in memoria.
-     * @throws IOException
+     * Buffer di ingresso e uscita della rete per un lotto di immagini, consecutive nei buffer.
+     * Le viste float sono lette e scritte direttamente; sono nulle con tensori quantizzati.
+     */
+    private static class TensorBuffers {
+        final int images;
+        final ByteBuffer input;
+        final ByteBuffer output;
+        final FloatBuffer inputFloats;
+        final FloatBuffer outputFloats;
+
+        TensorBuffers(int images, TensorSpec inputSpec, TensorSpec outputSpec, int numClasses) {
+            this.images = images;
+
+            // Alloca il ByteBuffer di input: dimensioni pari alle dimensioni di input della rete (257x257)
+            //  per il numero di canali colore (RGB = 3) per il numero di byte per pixel (4 byte per un
+            //  float, 1 byte per un modello quantizzato). Tot: 792588 o 198147 byte per immagine.
+            input = ByteBuffer.allocateDirect(images * INPUT_ELEMENTS * inputSpec.bytesPerElement());
+            // htons per ordinare i byte in Little/Big endian secondo l'architettura
+            input.order(ByteOrder.nativeOrder());
+            inputFloats = inputSpec.type == DataType.FLOAT32 ? input.asFloatBuffer() : null;
+
+            // Alloca il ByteBuffer di output: dimensioni pari alle dimensioni di input della rete (257x257)
+            //  per il numero di classi di oggetti che riesce a segmentare il model (21 per DeepLab, 1 o 2
+            //  per un modello binario) per il numero di byte per pixel. Con 21 classi float: 5548116 byte
+            //  per immagine.
+            output = ByteBuffer.allocateDirect(images * INPUT_SIZE * INPUT_SIZE * numClasses * outputSpec.bytesPerElement());
+            output.order(ByteOrder.nativeOrder());
+            outputFloats = outputSpec.type == DataType.FLOAT32 ? output.asFloatBuffer() : null;
+        }
+    }
+
+    // Buffer per una immagine alla volta e buffer dei lotti, sempre di MAX_BATCH immagini e
+    //  allocati al primo lotto: riutilizzati tra le chiamate qualunque sia la lunghezza del lotto
+    private TensorBuffers mBuffers;
+    private TensorBuffers mBatchBuffers;
+
+    // False se il backend ha rifiutato un lotto: si segmenta un'immagine alla volta
+    private boolean mBatchSupported = true;
+
+    // Riga di ingresso in preparazione e pixel della sorgente. Con un modello quantizzato la
+    //  riga float è nulla e si usa la riga di byte
+    private float[] mInputRow;
+    private byte[] mInputBytes;
+    private int[] mSourcePixels;
+
+    // Modello quantizzato: valore in ingresso per ogni valore di un canale a 8 bit e valore reale
+    //  di ogni byte in uscita (indicizzato come byte senza segno)
+    private byte[] mInputQuantization;
+    private float[] mOutputDequantization;
+
+    // Numero di classi in uscita e indice della classe persona
+    private int mNumClasses;
+    private int mPersonClass;
+
+    // Lato della bitmap preparata alla risoluzione della rete, 0 prima della prima preparazione
+    private int mPreparedSize;
+
+    // Motore di inferenza, vive quanto il segmentatore
+    private SegmentationBackend mBackend;
+
+    /**
+     * Costruttore del segmentatore, con il backend scelto da {@link BackendSelector}.
+     * @param context utilizzato per accedere alla rete neurale in memoria e alle preferenze.
+     * @throws IOException se il modello non viene caricato o nessun backend si inizializza.
      */
     public SemanticSegmentator(Context context) throws IOException {
-        if (context == null) throw new IllegalArgumentException();
+        this(BackendSelector.create(context), ModelRegistry.getLabels(context));
+    }
+
+    /**
+     * Costruttore del segmentatore con un backend dato, ad esempio un backend finto nei test.
+     * Il segmentatore diventa proprietario del backend e lo chiude in {@link #close()}.
+     * @param backend il motore di inferenza.
+     */
+    public SemanticSegmentator(SegmentationBackend backend) {
+        this(backend, null);
+    }
+
+    /**
+     * Costruttore del segmentatore con un backend e le etichette delle classi del modello.
+     * @param backend il motore di inferenza.
+     * @param labels le etichette delle classi in ordine di indice, o null: in tal caso la
+     *               persona è la classe 15 con 21 classi, l'ultima classe altrimenti.
+     */
+    public SemanticSegmentator(SegmentationBackend backend, List<String> labels) {
+        if (backend == null) throw new IllegalArgumentException();
+
+        mBackend = backend;
+        try {
+            allocateBuffers(labels);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
 
-        // raccolgo le preferences per l'utilizzo di NNAPI o GPU
-        sharedpreferences = context.getSharedPreferences(ImagePickerActiviy.MY_PREFERENCES, Context.MODE_PRIVATE);
+    /**
+     * Alloca i buffer di ingresso e uscita in base alla forma, al tipo e alla quantizzazione
+     * dei tensori del modello.
+     * @param labels le etichette delle classi, o null.
+     * @throws IllegalArgumentException se la forma o il tipo dei tensori non sono supportati.
+     */
+    private void allocateBuffers(List<String> labels) {
+        // Tipo e forma dei tensori di ingresso e uscita letti dal modello
+        TensorSpec inputSpec = mBackend.getInputSpec();
+        TensorSpec outputSpec = mBackend.getOutputSpec();
+
+        // Ingresso [1, 257, 257, 3], uscita [1, 257, 257, classi] oppure [1, 257, 257] per un solo logit
+        int[] in = inputSpec.shape;
+        int[] out = outputSpec.shape;
+        if (in.length != 4 || in[1] != INPUT_SIZE || in[2] != INPUT_SIZE || in[3] != COLOR_CHANNELS) {
+            throw new IllegalArgumentException("Unsupported input shape");
+        }
+        if ((out.length != 3 && out.length != 4) || out[1] != INPUT_SIZE || out[2] != INPUT_SIZE) {
+            throw new IllegalArgumentException("Unsupported output shape");
+        }
+        mNumClasses = out.length == 4 ? out[3] : 1;
+        mPersonClass = personClass(mNumClasses, labels);
+        if (mNumClasses < 1 || mPersonClass < 0) throw new IllegalArgumentException("No person class in the model");
 
-        // Carica il model nel ByteBuffer
-        mModelBuffer = loadModelFile(context);
-        if (mModelBuffer == null) throw new IllegalArgumentException();
+        Log.d(TAG, "Backend " + mBackend.getName() + ", tensori: ingresso " + inputSpec.type +
+                ", uscita " + outputSpec.type + ", " + mNumClasses + " classi, persona " + mPersonClass);
 
-        // Alloca il ByteBuffer di input: dimensioni pari alle dimensioni di input della rete (257x257)
-        //  per il numero di canali colore (RGB = 3) per il numero di byte per pixel (Un float in Java pesa
-        //  4 byte). Tot: 792588 byte.
-        mImageData = ByteBuffer.allocateDirect(
-        1 * INPUT_SIZE * INPUT_SIZE * COLOR_CHANNELS * BYTES_PER_POINT);
-        // htons per ordinare i byte in Little/Big endian secondo l'architettura
-        mImageData.order(ByteOrder.nativeOrder());
+        mBuffers = new TensorBuffers(1, inputSpec, outputSpec, mNumClasses);
 
-        // Alloca il ByteBuffer di output: dimensioni pari alle dimensioni di input della rete (257x257)
-        //  per il numero di classi di oggetti che riesce a segmentare il model (21) per il numero di byte
-        //  per pixel (float = 4byte). Tot: 5548116
-        mOutputs = ByteBuffer.allocateDirect(
-        1 * INPUT_SIZE * INPUT_SIZE * NUM_CLASSES * BYTES_PER_POINT);
-        mOutputs.order(ByteOrder.nativeOrder());
+        if (inputSpec.type == DataType.FLOAT32) {
+            mInputRow = new float[INPUT_SIZE * COLOR_CHANNELS];
+        } else {
+            mInputQuantization = inputQuantization(inputSpec);
+            mInputBytes = new byte[INPUT_SIZE * COLOR_CHANNELS];
+        }
 
+        if (outputSpec.type != DataType.FLOAT32) {
+            mOutputDequantization = outputDequantization(outputSpec);
+        }
+    }
+
+    /**
+     * @return il nome del backend in uso, vedi {@link SegmentationBackend#getName()}.
+     */
+    public String getBackendName() {
+        return mBackend != null ? mBackend.getName() : null;
+    }
+
+    /**
+     * Esegue un'inferenza a vuoto sui buffer del segmentatore, così che allocazioni e
+     * compilazione dei kernel del backend non pesino sulla prima segmentazione reale.
+     */
+    public void warmUp() {
+        if (mBackend == null) throw new IllegalStateException("Segmentator already closed");
+
+        run(mBuffers);
+    }
+
+    /**
+     * Rilascia il backend. Dopo la chiusura il segmentatore non è più utilizzabile.
+     */
+    @Override
+    public void close() {
+        if (mBackend != null) {
+            mBackend.close();
+            mBackend = null;
+        }
     }
 
 
@@ -83,158 +232,571 @@ public class SemanticSegmentator {
      * Segmenta la figura delle persone utilizzando la rete neurale.
      * @param bmp immagine da segmentare. Deve essere quadrata e di dimensioni minori o uguali delle dimensioni
      *               di input della rete recuperabili con il metodo {@link #getInputSize()}.
-     * @return l'immagine segmentata sottoforma di un matrice di interi con un '1' se nel corrispondente
+     * @return l'immagine segmentata sottoforma di una maschera con un '1' se nel corrispondente
      *         pixel è stata trovata la figura di una persona, '0' altrimenti.
      * @throws IllegalArgumentException nel caso in cui i vincoli sulla Bitamp non sono stati rispettati
      */
-    public int[][] segment(Bitmap bmp) {
-        if (bmp == null) throw new IllegalArgumentException();
-        int bmpHeight = bmp.getHeight();
-        int bmpWidth = bmp.getWidth();
+    public MaskRaster segment(Bitmap bmp) {
+        return segment(bmp, null);
+    }
+
+    /**
+     * Segmenta la figura delle persone utilizzando la rete neurale, restituendo anche la
+     * probabilità della classe persona (softmax sulle classi) come maschera morbida.
+     * @param bmp immagine da segmentare, con gli stessi vincoli di {@link #segment(Bitmap)}.
+     * @param alpha la maschera morbida da riempire, delle dimensioni della bitmap; se null
+     *              viene calcolata solo la maschera binaria.
+     * @return l'immagine segmentata sottoforma di una maschera con un '1' se nel corrispondente
+     *         pixel è stata trovata la figura di una persona, '0' altrimenti.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulla Bitamp non sono stati rispettati
+     */
+    public MaskRaster segment(Bitmap bmp, AlphaMatte alpha) {
+        return segment(bmp, 1, alpha);
+    }
+
+    /**
+     * Segmenta la figura delle persone utilizzando la rete neurale, campionando la bitmap
+     * direttamente alla risoluzione della rete senza bitmap intermedie.
+     * @param bmp immagine da segmentare, quadrata. Divisa per sampling deve avere dimensioni minori
+     *            o uguali delle dimensioni di input della rete, vedi {@link #getSampling(int)}.
+     * @param sampling il fattore di campionamento: ogni pixel in ingresso alla rete è la media di
+     *                 un blocco sampling x sampling della bitmap.
+     * @param alpha la maschera morbida da riempire, delle dimensioni della maschera restituita;
+     *              se null viene calcolata solo la maschera binaria.
+     * @return l'immagine segmentata sottoforma di una maschera, di dimensioni pari a quelle della
+     *         bitmap divise per sampling, con un '1' se nel corrispondente pixel è stata trovata
+     *         la figura di una persona, '0' altrimenti.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulla Bitamp non sono stati rispettati
+     */
+    public MaskRaster segment(Bitmap bmp, int sampling, AlphaMatte alpha) {
+        if (bmp == null || sampling < 1) throw new IllegalArgumentException();
+
+        int size = bmp.getWidth() / sampling;
+        if (size == 0) throw new IllegalArgumentException();
+
+
+        return segment(bmp, sampling, alpha, new MaskRaster(size, bmp.getHeight() / sampling));
+    }
+
+    /**
+     * Segmenta la figura delle persone scrivendo il risultato in una maschera fornita dal
+     * chiamante, che può così riutilizzarla tra più segmentazioni.
+     * @param bmp immagine da segmentare, con gli stessi vincoli di {@link #segment(Bitmap, int, AlphaMatte)}.
+     * @param sampling il fattore di campionamento alla risoluzione della rete.
+     * @param alpha la maschera morbida da riempire, o null.
+     * @param target la maschera di destinazione, di dimensioni pari a quelle della bitmap divise
+     *               per sampling; ogni elemento viene sovrascritto con '1' o '0'.
+     * @return target, oppure null se non è stata trovata alcuna persona.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulla Bitamp non sono stati rispettati
+     */
+    public MaskRaster segment(Bitmap bmp, int sampling, AlphaMatte alpha, MaskRaster target) {
+        if (bmp == null || sampling < 1) throw new IllegalArgumentException();
+        checkOutputs(bmp.getWidth() / sampling, target, alpha);
+
+        // Carica la bitmap nel buffer in ingresso, avvia la segmentazione e decodifica
+        //  il risultato direttamente nella maschera del chiamante
+        prepare(bmp, sampling);
+        infer();
+        boolean foundPerson = decode(target, alpha);
+
+        // Se non è stata trovata alcuna persona ritorno nullo
+        if (!foundPerson) return null;
+
+
+        return target;
+    }
+
+    /**
+     * Primo passo della segmentazione: campiona la bitmap alla risoluzione della rete e la
+     * carica nel buffer di ingresso. I passi successivi sono {@link #infer()} e
+     * {@link #decode(MaskRaster, AlphaMatte)}, separati per poterli cronometrare.
+     * @param bmp immagine da segmentare, con i vincoli di {@link #segment(Bitmap, int, AlphaMatte)}.
+     * @param sampling il fattore di campionamento.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulla Bitamp non sono stati rispettati
+     */
+    public void prepare(Bitmap bmp, int sampling) {
+        if (bmp == null || sampling < 1) throw new IllegalArgumentException();
+        if (mBackend == null) throw new IllegalStateException("Segmentator already closed");
+
+        // Dimensioni della bitmap alla risoluzione della rete
+        int bmpHeight = bmp.getHeight() / sampling;
+        int bmpWidth = bmp.getWidth() / sampling;
 
         // Controllo delle dimensioni della Bitmap in ingresso
-        if ( bmpWidth != bmpHeight|| bmpWidth > INPUT_SIZE) throw new IllegalArgumentException();
-
-        // Converti la bitmap in una matrice di interi per l'elborazione,
-        //  la matrice è sovradimensionata alle dimensioni della rete,
-        //  i pixel non apparteneti all'immagine originale sono neri e non interferiscono
-        //  con la bontà del risultato finale
-        int[][] bmpPixels = new int[INPUT_SIZE][INPUT_SIZE];
-        for (int i = 0; i < bmpHeight; i++) {
-            for (int j = 0; j < bmpWidth; j++) {
-                bmpPixels[i][j] = bmp.getPixel(j, i);
-            }
+        if ( bmpWidth != bmpHeight|| bmpWidth > INPUT_SIZE || bmpWidth == 0) throw new IllegalArgumentException();
+
+        // Carica la bitmap nel buffer in ingresso
+        preprocess(bmp, sampling, mBuffers, 0);
+        mPreparedSize = bmpWidth;
+    }
+
+    /**
+     * Secondo passo della segmentazione: esegue la rete sul buffer di ingresso preparato.
+     */
+    public void infer() {
+        if (mBackend == null) throw new IllegalStateException("Segmentator already closed");
+        if (mPreparedSize == 0) throw new IllegalStateException("No input prepared");
+
+        // Avvio della segmentazione
+        final long start = System.currentTimeMillis();
+        run(mBuffers);
+
+        Log.d(TAG,"Tempo inferenza: " + (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Ultimo passo della segmentazione: decodifica l'uscita della rete nella maschera del chiamante.
+     * @param target la maschera di destinazione, di lato pari a quello della bitmap preparata
+     *               divisa per sampling; ogni elemento viene sovrascritto con '1' o '0'.
+     * @param alpha la maschera morbida da riempire, delle stesse dimensioni, o null.
+     * @return true se almeno un pixel è stato classificato come persona.
+     */
+    public boolean decode(MaskRaster target, AlphaMatte alpha) {
+        if (mPreparedSize == 0) throw new IllegalStateException("No input prepared");
+        checkOutputs(mPreparedSize, target, alpha);
+
+
+        return decodeScores(target, alpha, mBuffers, 0);
+    }
+
+    /**
+     * Segmenta più bitmap con un'unica inferenza, vedi {@link #segmentBatch(List, int, List, List)}.
+     * @param bitmaps le immagini da segmentare, con i vincoli di {@link #segment(Bitmap)}.
+     * @return per ogni bitmap la maschera, null dove non è stata trovata alcuna persona.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulle Bitmap non sono stati rispettati
+     */
+    public List<MaskRaster> segmentBatch(List<Bitmap> bitmaps) {
+        return segmentBatch(bitmaps, 1, null, null);
+    }
+
+    /**
+     * Segmenta più bitmap ridimensionando il tensore di ingresso a [N, 257, 257, 3]: le immagini
+     * vengono caricate una dopo l'altra nello stesso buffer, la rete viene eseguita una volta
+     * sola e le N uscite decodificate in ordine, così che il costo fisso di ogni inferenza sia
+     * pagato una volta per lotto e i kernel della CPU lavorino su più dati. Oltre MAX_BATCH
+     * immagini la lista viene divisa in più lotti. Il tensore ha sempre MAX_BATCH immagini, così
+     * che buffer e interprete non vengano riallocati a ogni cambio di lunghezza, e la rete costa
+     * sempre MAX_BATCH inferenze: un lotto finale di al più MAX_BATCH / 2 immagini viene quindi
+     * segmentato una immagine alla volta, uno più lungo occupa le prime posizioni e le altre
+     * vengono azzerate. Se il backend non supporta lotti (ad esempio un modello con lotto fisso
+     * o il delegato GPU) le immagini vengono segmentate una alla volta.
+     * @param bitmaps le immagini da segmentare, con i vincoli di {@link #segment(Bitmap, int, AlphaMatte)}.
+     * @param sampling il fattore di campionamento alla risoluzione della rete, uguale per tutte.
+     * @param targets le maschere di destinazione, una per bitmap, oppure null per allocarle.
+     * @param alphas le maschere morbide da riempire, una per bitmap (anche nulle), oppure null.
+     * @return per ogni bitmap la maschera, null dove non è stata trovata alcuna persona.
+     * @throws IllegalArgumentException nel caso in cui i vincoli sulle Bitmap non sono stati rispettati
+     */
+    public List<MaskRaster> segmentBatch(List<Bitmap> bitmaps, int sampling, List<MaskRaster> targets,
+                                         List<AlphaMatte> alphas) {
+        if (bitmaps == null || sampling < 1) throw new IllegalArgumentException();
+        if (targets != null && targets.size() != bitmaps.size()) throw new IllegalArgumentException();
+        if (alphas != null && alphas.size() != bitmaps.size()) throw new IllegalArgumentException();
+        if (mBackend == null) throw new IllegalStateException("Segmentator already closed");
+
+        // Controllo di tutte le bitmap prima di toccare i buffer, allocazione delle maschere mancanti
+        int count = bitmaps.size();
+        MaskRaster[] masks = new MaskRaster[count];
+        AlphaMatte[] mattes = new AlphaMatte[count];
+        for (int k = 0; k < count; k++) {
+            Bitmap bmp = bitmaps.get(k);
+            if (bmp == null) throw new IllegalArgumentException();
+
+            int size = bmp.getWidth() / sampling;
+            if (size != bmp.getHeight() / sampling || size > INPUT_SIZE || size == 0) throw new IllegalArgumentException();
+
+            masks[k] = targets != null ? targets.get(k) : new MaskRaster(size, size);
+            mattes[k] = alphas != null ? alphas.get(k) : null;
+            checkOutputs(size, masks[k], mattes[k]);
         }
 
-        // Riavvolgi i ByteBuffer per preparali a ricevere dati
-        mImageData.rewind();
-        mOutputs.rewind();
+        List<MaskRaster> results = new ArrayList<>(count);
+        for (int from = 0; from < count; from += MAX_BATCH) {
+            int n = Math.min(MAX_BATCH, count - from);
 
-        // Carica la bitmap nel ByteBuffer in ingresso
-        for (int[] row : bmpPixels) {
-            for (int pixel : row) {
+            // Lotto corto, che nel tensore pieno costerebbe almeno il doppio, o backend che non
+            //  supporta lotti: un'inferenza per immagine
+            if (n <= MAX_BATCH / 2 || !enableBatch()) {
+                for (int k = from; k < from + n; k++) {
+                    results.add(segment(bitmaps.get(k), sampling, mattes[k], masks[k]));
+                }
+                continue;
+            }
 
-                // Rappresentazione di un int che memorizza un colore ARGB
-                // +--------+--------+--------+--------+
-                // |  ALPHA |   RED  |  GREEN |  BLUE  |
-                // +--------+--------+--------+--------+
-                // I byte sono selezionabili tramite shift a destra e mascheramento
-                //  RED: shift a destra di 16 e mascheramento sui primi 8bit
-                //  GREEN: shift a destra di 8 e masheramento sui primi 8bit
-                //  BLUE: (shift a destra di 0), mascheramento sui primi 8bit
+            // Le posizioni oltre n non vengono decodificate: azzerate, invece di rieseguire la rete
+            //  sulle immagini del lotto precedente
+            for (int k = 0; k < n; k++) preprocess(bitmaps.get(from + k), sampling, mBatchBuffers, k);
+            if (n < MAX_BATCH) clearInputs(mBatchBuffers, n);
 
-                // La rete non è quantizzata: float (32bit) in ingresso
-                mImageData.putFloat((((pixel >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                mImageData.putFloat((((pixel >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                mImageData.putFloat(((pixel & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+            final long start = System.currentTimeMillis();
+            run(mBatchBuffers);
+            Log.d(TAG,"Tempo inferenza lotto di " + n + ": " + (System.currentTimeMillis() - start));
+
+            for (int k = 0; k < n; k++) {
+                boolean foundPerson = decodeScores(masks[from + k], mattes[from + k], mBatchBuffers, k);
+                results.add(foundPerson ? masks[from + k] : null);
             }
         }
 
-        // Crea l'interprete utilizzando TensorFlow Lite
-        Interpreter.Options options = new Interpreter.Options();
 
-         //imposto uso GPU in base a sharedpreferences
-        if (sharedpreferences.getBoolean("usaGPU",true)) {
+        return results;
+    }
 
-            GpuDelegate delegate = new GpuDelegate();
-            options.addDelegate(delegate);
-            Log.d(TAG,"Sto usando GPU");
+    /**
+     * @return il numero massimo di immagini segmentate con un'unica inferenza da
+     *         {@link #segmentBatch(List, int, List, List)}.
+     */
+    public static int getMaxBatch() {
+        return MAX_BATCH;
+    }
+
+    /**
+     * Porta il lotto del backend a MAX_BATCH immagini, se non lo è già, e alloca i buffer dei
+     * lotti alla prima richiesta. Al primo rifiuto del backend il lotto torna a una immagine
+     * e i lotti non vengono più tentati.
+     * @return true se il backend ha accettato il lotto.
+     * @throws IllegalStateException se dopo il rifiuto il backend non torna a una immagine.
+     */
+    private boolean enableBatch() {
+        if (!mBatchSupported) return false;
+
+        try {
+            mBackend.resizeBatch(MAX_BATCH);
+            if (mBackend.getOutputSpec().shape[0] == MAX_BATCH) {
+                if (mBatchBuffers == null) {
+                    mBatchBuffers = new TensorBuffers(MAX_BATCH, mBackend.getInputSpec(), mBackend.getOutputSpec(),
+                            mNumClasses);
+                }
+                return true;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Batch of " + MAX_BATCH + " not supported by " + mBackend.getName() + ": " + e.getMessage());
         }
 
-        // Istanziamento dell'interprete
-        Interpreter interpreter = new Interpreter(mModelBuffer, options);
+        mBatchSupported = false;
+        mBatchBuffers = null;
+        try {
+            mBackend.resizeBatch(1);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Backend unusable after rejecting a batch", e);
+        }
 
 
-        // Avvio della segmentazione
-        final long start = System.currentTimeMillis();
-        interpreter.run(mImageData, mOutputs);
+        return false;
+    }
 
-        Log.d(TAG,"Tempo inferenza: " + (System.currentTimeMillis() - start));
+    /**
+     * Azzera l'ingresso delle immagini dei buffer dalla posizione data in poi.
+     */
+    private static void clearInputs(TensorBuffers buffers, int from) {
+        int imageBytes = buffers.input.capacity() / buffers.images;
+        ByteBuffer input = buffers.input.duplicate();
+        input.position(from * imageBytes);
 
+        byte[] zeros = new byte[Math.min(input.remaining(), 64 * 1024)];
+        while (input.hasRemaining()) input.put(zeros, 0, Math.min(zeros.length, input.remaining()));
+    }
 
-        // Creazione della maschera di uscita, dimensioni maggiorate
-        int[][] oversizedMaskBitmap = new int[INPUT_SIZE][INPUT_SIZE];
+    /**
+     * Esegue la rete sui buffer, riportando prima il lotto del backend alle immagini dei buffer:
+     * il lotto cambia solo al passaggio tra lotti e immagini singole.
+     */
+    private void run(TensorBuffers buffers) {
+        if (mBackend.getInputSpec().shape[0] != buffers.images) mBackend.resizeBatch(buffers.images);
 
-        float maxScore = 0;
-        float score = 0;
-        boolean notFoundPerson = true;
+        buffers.input.rewind();
+        buffers.output.rewind();
+        mBackend.run(buffers.input, buffers.output);
+    }
 
-        // Scansione per pixel della maschera di uscita
-        for (int i = 0; i < INPUT_SIZE; i++) {
-            for (int j = 0; j < INPUT_SIZE; j++) {
-                int classIndex = 0;
-
-                // Selezione della classe di oggetto che ha avuto score più elevato in quel pixel,
-                //  trattasi di un argmax in c
-                for (int c = 0; c < NUM_CLASSES; c++) {
-                    score = mOutputs.getFloat((i * INPUT_SIZE * NUM_CLASSES + j * NUM_CLASSES + c) * BYTES_PER_POINT);
-                    if (c == 0 || score > maxScore) {
-                        maxScore = score;
-                        classIndex = c;
-                    }
-                }
+    /**
+     * Controlla che maschera e maschera morbida abbiano il lato della bitmap alla risoluzione della rete.
+     */
+    private static void checkOutputs(int size, MaskRaster target, AlphaMatte alpha) {
+        if (target == null || target.width != size || target.height != size) throw new IllegalArgumentException();
+        if (alpha != null && (alpha.width != size || alpha.height != size)) throw new IllegalArgumentException();
+    }
 
-                // La rete ruota l'immagine (trasposizione della matrice con indici j e i invertiti)
-                // Selezioniamo solo la classe di indice 15 (persone)
-                if (classIndex == 15) {
-                    oversizedMaskBitmap[j][i] = 1;
-                    notFoundPerson = false;
-                } else {
-                    oversizedMaskBitmap[j][i] = 0;
+    /**
+     * Decodifica l'uscita della rete nella maschera, leggendo i punteggi tramite la vista float
+     * del buffer di uscita senza copie intermedie. La rete ruota l'immagine, quindi il pixel
+     * (i, j) della rete corrisponde all'elemento (j, i) della maschera: la trasposizione avviene
+     * a blocchi di DECODE_BLOCK x DECODE_BLOCK pixel, così che le righe della rete lette e le
+     * righe della maschera scritte restino in cache per tutto il blocco.
+     * Vengono decodificati solo i pixel coperti dalla bitmap, il resto è imbottitura nera.
+     * @param target la maschera di destinazione, ogni elemento viene sovrascritto.
+     * @param alpha la maschera morbida da riempire, o null.
+     * @param buffers i buffer letti.
+     * @param image la posizione dell'immagine nel lotto.
+     * @return true se almeno un pixel è stato classificato come persona.
+     */
+    private boolean decodeScores(MaskRaster target, AlphaMatte alpha, TensorBuffers buffers, int image) {
+        int[] data = target.data;
+        int stride = target.stride;
+        int offset = image * INPUT_SIZE * INPUT_SIZE * mNumClasses;
+
+        // La maschera è alta quanto la bitmap è larga e viceversa
+        int netRows = target.width;
+        int netCols = target.height;
+        boolean foundPerson = false;
+
+        for (int bi = 0; bi < netRows; bi += DECODE_BLOCK) {
+            int endI = Math.min(bi + DECODE_BLOCK, netRows);
+            for (int bj = 0; bj < netCols; bj += DECODE_BLOCK) {
+                int endJ = Math.min(bj + DECODE_BLOCK, netCols);
+
+                // Riga j della maschera scritta in modo contiguo, righe i della rete riusate dal blocco
+                for (int j = bj; j < endJ; j++) {
+                    int row = j * stride;
+                    for (int i = bi; i < endI; i++) {
+                        int base = offset + (i * INPUT_SIZE + j) * mNumClasses;
+                        boolean person = isPerson(buffers, base);
+                        data[row + i] = person ? 1 : 0;
+                        foundPerson |= person;
+
+                        if (alpha != null) alpha.set(j, i, Math.round(255 * personProbability(buffers, base)));
+                    }
                 }
             }
         }
 
-        // Se non è stata trovata alcuna persona ritorno nullo
-        if (notFoundPerson) return null;
 
-        // La matrice-maschera deve corrispondere alle dimensioni originali della Bitmap passata.
-        int[][] maskBitmap = new int[bmpHeight][bmpWidth];
-        for (int i = 0; i < bmpHeight; i++) {
-            for (int j = 0; j < bmpWidth; j++) {
-                maskBitmap[i][j] = oversizedMaskBitmap[i][j];
+        return foundPerson;
+    }
+
+    /**
+     * Verifica se la classe persona vince l'argmax del pixel, fermandosi alla prima classe che
+     * la batte. Come nell'argmax, a parità di punteggio vince la classe di indice minore.
+     * Con un solo logit la persona è il pixel con logit positivo.
+     * @param buffers i buffer letti.
+     * @param base l'indice del primo punteggio del pixel.
+     * @return true se l'argmax del pixel è la classe persona.
+     */
+    private boolean isPerson(TensorBuffers buffers, int base) {
+        if (mNumClasses == 1) return score(buffers, base) > 0;
+
+        float person = score(buffers, base + mPersonClass);
+
+        // Le classi precedenti vincono anche a parità, le successive solo se strettamente maggiori
+        for (int c = 0; c < mPersonClass; c++) {
+            if (score(buffers, base + c) >= person) return false;
+        }
+        for (int c = mPersonClass + 1; c < mNumClasses; c++) {
+            if (score(buffers, base + c) > person) return false;
+        }
+
+
+        return true;
+    }
+
+    /**
+     * Probabilità della classe persona nel pixel: softmax calcolata come 1 / sum(exp(s_c - s_persona)),
+     * oppure sigmoide del logit con un solo logit.
+     * @param buffers i buffer letti.
+     * @param base l'indice del primo punteggio del pixel.
+     * @return la probabilità, tra 0 e 1.
+     */
+    private float personProbability(TensorBuffers buffers, int base) {
+        if (mNumClasses == 1) return 1 / (1 + (float) Math.exp(-score(buffers, base)));
+
+        float person = score(buffers, base + mPersonClass);
+        float sum = 0;
+        for (int c = 0; c < mNumClasses; c++) {
+            sum += (float) Math.exp(score(buffers, base + c) - person);
+        }
+
+
+        return 1 / sum;
+    }
+
+    /**
+     * Individua la classe persona: l'etichetta "person" se le etichette sono disponibili,
+     * altrimenti la classe 15 per le 21 classi di PASCAL VOC e l'ultima classe negli altri
+     * casi (lo sfondo è la classe 0 nei modelli binari).
+     * @param numClasses il numero di classi in uscita.
+     * @param labels le etichette delle classi, o null.
+     * @return l'indice della classe persona, -1 se le etichette non la contengono.
+     */
+    static int personClass(int numClasses, List<String> labels) {
+        if (labels != null) {
+            for (int c = 0; c < Math.min(numClasses, labels.size()); c++) {
+                if (PERSON_LABEL.equalsIgnoreCase(labels.get(c).trim())) return c;
             }
+            return -1;
         }
 
-        // Chiusura del'interprete
-        interpreter.close();
+
+        return numClasses == VOC_CLASSES ? VOC_PERSON_CLASS : numClasses - 1;
+    }
+
+    /**
+     * Legge un punteggio dal buffer di uscita. Con un'uscita quantizzata il byte viene convertito
+     * nel valore reale tramite tabella: la scala è positiva, quindi l'ordinamento e le parità
+     * tra i punteggi sono gli stessi dei valori quantizzati.
+     * @param buffers i buffer letti.
+     * @param index l'indice del punteggio, in elementi.
+     * @return il punteggio.
+     */
+    private float score(TensorBuffers buffers, int index) {
+        if (buffers.outputFloats != null) return buffers.outputFloats.get(index);
 
 
-        return maskBitmap;
+        return mOutputDequantization[buffers.output.get(index) & 0xFF];
     }
 
     /**
-     * Ritorna la dimensione (uguale in larghezza e altezza) di input accettata dal model.
-     * Eventuale Bitmap da segmentare dovrà avere dimensioni minori o uguali di quelle specificate.
-     * @return la dimensione in altezza (e larghezza) dell'input del model.
+     * Campiona la bitmap alla risoluzione della rete, normalizza i canali e scrive il risultato
+     * nel buffer di ingresso, in un unico passaggio: lettura in blocco dei pixel, media di ogni
+     * blocco sampling x sampling, normalizzazione tramite tabella e scrittura di una riga alla
+     * volta nella vista float del buffer, a partire dalla posizione dell'immagine nel lotto.
+     * I pixel in ingresso alla rete non coperti dalla bitmap sono neri e non interferiscono
+     * con la bontà del risultato finale.
+     * @param bmp la bitmap sorgente.
+     * @param sampling il fattore di campionamento.
+     * @param buffers i buffer da riempire.
+     * @param image la posizione dell'immagine nel lotto.
      */
-    public static int getInputSize(){
-        return INPUT_SIZE;
+    private void preprocess(Bitmap bmp, int sampling, TensorBuffers buffers, int image) {
+        int srcWidth = bmp.getWidth();
+        int srcHeight = bmp.getHeight();
+        int width = srcWidth / sampling;
+        int height = srcHeight / sampling;
+        int area = sampling * sampling;
+
+        // Lettura in blocco dei pixel della sorgente, il buffer è riutilizzato tra le chiamate
+        if (mSourcePixels == null || mSourcePixels.length < srcWidth * srcHeight) {
+            mSourcePixels = new int[srcWidth * srcHeight];
+        }
+        int[] pixels = mSourcePixels;
+        bmp.getPixels(pixels, 0, srcWidth, 0, 0, srcWidth, srcHeight);
+
+        // Rappresentazione di un int che memorizza un colore ARGB
+        // +--------+--------+--------+--------+
+        // |  ALPHA |   RED  |  GREEN |  BLUE  |
+        // +--------+--------+--------+--------+
+        // I byte sono selezionabili tramite shift a destra e mascheramento
+        //  RED: shift a destra di 16 e mascheramento sui primi 8bit
+        //  GREEN: shift a destra di 8 e masheramento sui primi 8bit
+        //  BLUE: (shift a destra di 0), mascheramento sui primi 8bit
+
+        // Rete non quantizzata: float (32bit) in ingresso, altrimenti un byte per canale
+        float[] row = mInputRow;
+        byte[] bytes = mInputBytes;
+        byte[] quantization = mInputQuantization;
+        int rowLength = INPUT_SIZE * COLOR_CHANNELS;
+        FloatBuffer input = buffers.inputFloats;
+        if (input != null) input.position(image * INPUT_ELEMENTS);
+        else buffers.input.position(image * INPUT_ELEMENTS);
+
+        for (int i = 0; i < INPUT_SIZE; i++) {
+            int k = 0;
+
+            if (i < height) {
+                for (int j = 0; j < width; j++) {
+
+                    // Media del blocco della sorgente corrispondente al pixel (i, j)
+                    int sumR = 0;
+                    int sumG = 0;
+                    int sumB = 0;
+                    for (int bi = 0; bi < sampling; bi++) {
+                        int p = (i * sampling + bi) * srcWidth + j * sampling;
+                        for (int bj = 0; bj < sampling; bj++) {
+                            int pixel = pixels[p + bj];
+                            sumR += (pixel >> 16) & 0xFF;
+                            sumG += (pixel >> 8) & 0xFF;
+                            sumB += pixel & 0xFF;
+                        }
+                    }
+
+                    int r = (sumR + area / 2) / area;
+                    int g = (sumG + area / 2) / area;
+                    int b = (sumB + area / 2) / area;
+                    if (row != null) {
+                        row[k++] = NORMALIZATION[r];
+                        row[k++] = NORMALIZATION[g];
+                        row[k++] = NORMALIZATION[b];
+                    } else {
+                        bytes[k++] = quantization[r];
+                        bytes[k++] = quantization[g];
+                        bytes[k++] = quantization[b];
+                    }
+                }
+            }
+
+            // Completamento della riga con pixel neri
+            if (row != null) {
+                while (k < rowLength) row[k++] = NORMALIZATION[0];
+                input.put(row);
+            } else {
+                while (k < rowLength) bytes[k++] = quantization[0];
+                buffers.input.put(bytes);
+            }
+        }
+    }
+
+    /**
+     * Costruisce la tabella di quantizzazione dell'ingresso: ogni valore di un canale a 8 bit
+     * viene normalizzato come per il modello float e poi quantizzato con q = round(f / scale) + zeroPoint,
+     * saturando all'intervallo del tipo.
+     * @param spec la descrizione del tensore di ingresso, UINT8 o INT8.
+     * @return la tabella di 256 valori.
+     */
+    private static byte[] inputQuantization(TensorSpec spec) {
+        float scale = spec.scale;
+        if (scale <= 0) throw new IllegalArgumentException("Invalid input quantization scale: " + scale);
+
+        int min = spec.type == DataType.UINT8 ? 0 : -128;
+        int max = spec.type == DataType.UINT8 ? 255 : 127;
+        byte[] table = new byte[256];
+        for (int v = 0; v < 256; v++) {
+            int q = Math.round(NORMALIZATION[v] / scale) + spec.zeroPoint;
+            table[v] = (byte) Math.max(min, Math.min(max, q));
+        }
+
+
+        return table;
     }
 
     /**
-     * Carica in un ByteBuffer il model della rete neurale.
-     * @param context contesto usato per accedere alla risorsa.
-     * @return il model caricato in un ByteBuffer
-     * @throws IOException se il model non viene caricato
+     * Costruisce la tabella di dequantizzazione dell'uscita: per ogni byte, letto senza segno,
+     * il valore reale (q - zeroPoint) * scale.
+     * @param spec la descrizione del tensore di uscita, UINT8 o INT8.
+     * @return la tabella di 256 valori.
      */
-    private static ByteBuffer loadModelFile(Context context)
-            throws IOException {
+    private static float[] outputDequantization(TensorSpec spec) {
+        float scale = spec.scale;
+        if (scale <= 0) throw new IllegalArgumentException("Invalid output quantization scale: " + scale);
+
+        float[] table = new float[256];
+        for (int b = 0; b < 256; b++) {
+            int q = spec.type == DataType.UINT8 ? b : (byte) b;
+            table[b] = (q - spec.zeroPoint) * scale;
+        }
 
-        if (context == null) throw new IllegalArgumentException();
 
-        // Crea assetFileDescriptor per accedere al model
-        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_PATH);
+        return table;
+    }
+
+    /**
+     * Calcola il fattore di campionamento, potenza di due, con cui portare una bitmap di
+     * dimensione size alle dimensioni di input della rete.
+     * @param size la dimensione della bitmap.
+     * @return il più piccolo fattore 2^k tale che size / 2^k sia minore o uguale a {@link #getInputSize()}.
+     */
+    public static int getSampling(int size) {
+        int sampling = 1;
+        while (size / sampling > INPUT_SIZE) sampling *= 2;
 
-        // Stream di Input per accedere al model
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
 
-        // Offset del file in memoria
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
+        return sampling;
+    }
 
-        // Mappatura del file
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    /**
+     * Ritorna la dimensione (uguale in larghezza e altezza) di input accettata dal model.
+     * Eventuale Bitmap da segmentare dovrà avere dimensioni minori o uguali di quelle specificate.
+     * @return la dimensione in altezza (e larghezza) dell'input del model.
+     */
+    public static int getInputSize(){
+        return INPUT_SIZE;
     }
 }
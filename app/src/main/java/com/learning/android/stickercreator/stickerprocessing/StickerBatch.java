@@ -0,0 +1,257 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StickerBatch {
+    /**
+     * Elaborazione in blocco di una lista di immagini, con le fasi di {@link StickerPipeline}
+     * sovrapposte: il caricamento gira su un pool di thread per l'I/O, l'inferenza su un unico
+     * thread che alimenta il segmentatore, la post-elaborazione su un pool di thread per la CPU.
+     * Tra le fasi ci sono code limitate: se una fase è più lenta, quelle a monte si fermano
+     * invece di accumulare bitmap in memoria. Mentre un'immagine viene post-elaborata la
+     * successiva è già in inferenza, quindi il tempo totale tende a quello della sola inferenza.
+     * Ogni fase intercetta qualsiasi errore, anche un OutOfMemoryError, e chiude il job con
+     * errore invece di perdere la voce: ogni immagine arriva sempre in fondo alla pipeline.
+     * Il thread di inferenza segmenta insieme, con un'unica inferenza, le immagini già caricate,
+     * fino a {@link SemanticSegmentator#getMaxBatch()}: non attende un lotto completo, così che
+     * la prima immagine non aspetti il caricamento delle successive. Quando l'inferenza è la
+     * fase più lenta la coda si riempie nel frattempo e i lotti tornano pieni.
+     */
+
+    private static final String TAG = "StickerBatch";
+
+    // Attesa massima di un'altra immagine caricata prima di avviare l'inferenza su un lotto incompleto
+    private static final long BATCH_WAIT_MS = 10;
+
+    // Voce delle code: indice dell'immagine nella lista e job. Indice negativo per terminare
+    private static class Entry {
+        final int index;
+        final StickerJob job;
+
+        Entry(int index, StickerJob job) {
+            this.index = index;
+            this.job = job;
+        }
+    }
+
+    private static final Entry END = new Entry(-1, null);
+
+    /**
+     * Notifica del completamento di ogni immagine, chiamata da un thread di post-elaborazione.
+     */
+    public interface Callback {
+        /**
+         * @param index l'indice dell'immagine nella lista.
+         * @param result il risultato dell'elaborazione.
+         */
+        void onStickerCompleted(int index, StickerResult result);
+    }
+
+    private final StickerPipeline mPipeline;
+    private final int mIoThreads;
+    private final int mCpuThreads;
+    private final int mQueueCapacity;
+
+    /**
+     * Costruttore della classe.
+     * @param context contesto usato per caricare le immagini, il modello e le preferenze.
+     * @param ioThreads i thread per il caricamento delle immagini.
+     * @param cpuThreads i thread per la post-elaborazione.
+     * @param queueCapacity il numero massimo di job in attesa tra una fase e la successiva.
+     */
+    public StickerBatch(Context context, int ioThreads, int cpuThreads, int queueCapacity) {
+        this(new StickerPipeline(context), ioThreads, cpuThreads, queueCapacity);
+    }
+
+    /**
+     * Costruttore con una pipeline data, le cui fasi vengono distribuite dal batch.
+     */
+    StickerBatch(StickerPipeline pipeline, int ioThreads, int cpuThreads, int queueCapacity) {
+        if (pipeline == null || ioThreads < 1 || cpuThreads < 1 || queueCapacity < 1) throw new IllegalArgumentException();
+
+        mPipeline = pipeline;
+        mIoThreads = ioThreads;
+        mCpuThreads = cpuThreads;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Costruttore con valori adatti al dispositivo: due thread per l'I/O, i core rimanenti
+     * per la post-elaborazione, code da due job.
+     * @param context contesto usato per caricare le immagini, il modello e le preferenze.
+     */
+    public StickerBatch(Context context) {
+        this(context, 2, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 2);
+    }
+
+    /**
+     * Elabora le immagini, attendendo la fine di tutte.
+     * @param uris le immagini da elaborare.
+     * @param width la larghezza degli sticker.
+     * @param height l'altezza degli sticker.
+     * @param callback notificato al termine di ogni immagine, o null.
+     * @return i risultati, nello stesso ordine delle immagini.
+     * @throws InterruptedException se il thread viene interrotto: l'elaborazione viene annullata.
+     */
+    public List<StickerResult> process(List<Uri> uris, int width, int height, final Callback callback)
+            throws InterruptedException {
+        if (uris == null) throw new IllegalArgumentException();
+
+        final int count = uris.size();
+        final StickerResult[] results = new StickerResult[count];
+        if (count == 0) return new ArrayList<>();
+
+        final BlockingQueue<Entry> decoded = new ArrayBlockingQueue<>(mQueueCapacity);
+        final BlockingQueue<Entry> segmented = new ArrayBlockingQueue<>(mQueueCapacity);
+        final CountDownLatch done = new CountDownLatch(count);
+
+        ExecutorService io = Executors.newFixedThreadPool(mIoThreads, threads("io"));
+        ExecutorService inference = Executors.newSingleThreadExecutor(threads("inference"));
+        ExecutorService cpu = Executors.newFixedThreadPool(mCpuThreads, threads("cpu"));
+
+        try {
+            // Caricamento: un compito per immagine, bloccato se l'inferenza è indietro
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new Entry(i, mPipeline.newJob(uris.get(i), width, height));
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mPipeline.decode(entry.job, null);
+                        } catch (Throwable e) {
+                            fail(entry, e);
+                        } finally {
+                            put(decoded, entry);
+                        }
+                    }
+                });
+            }
+
+            // Inferenza: un solo thread, nell'ordine in cui le immagini sono pronte. Il lotto è la
+            //  prima immagine più quelle che arrivano entro BATCH_WAIT_MS l'una dall'altra
+            inference.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<Entry> batch = new ArrayList<>();
+                        List<StickerJob> jobs = new ArrayList<>();
+                        int remaining = count;
+                        while (remaining > 0) {
+                            int size = Math.min(remaining, SemanticSegmentator.getMaxBatch());
+                            batch.add(decoded.take());
+                            while (batch.size() < size) {
+                                Entry next = decoded.poll(BATCH_WAIT_MS, TimeUnit.MILLISECONDS);
+                                if (next == null) break;
+                                batch.add(next);
+                            }
+                            remaining -= batch.size();
+
+                            for (Entry entry : batch) jobs.add(entry.job);
+                            try {
+                                mPipeline.segment(jobs, null);
+                            } catch (Throwable e) {
+                                for (Entry entry : batch) fail(entry, e);
+                            }
+                            for (Entry entry : batch) segmented.put(entry);
+
+                            batch.clear();
+                            jobs.clear();
+                        }
+                        for (int t = 0; t < mCpuThreads; t++) segmented.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            // Post-elaborazione: ogni thread consuma la coda fino alla voce di terminazione
+            for (int t = 0; t < mCpuThreads; t++) {
+                cpu.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Entry entry;
+                            while ((entry = segmented.take()) != END) {
+                                try {
+                                    mPipeline.finish(entry.job, null);
+                                } catch (Throwable e) {
+                                    fail(entry, e);
+                                }
+
+                                try {
+                                    StickerResult result = entry.job.toResult();
+                                    results[entry.index] = result;
+                                    if (callback != null) callback.onStickerCompleted(entry.index, result);
+                                } catch (Throwable e) {
+                                    Log.e(TAG, "Callback failed on image " + entry.index + ": " + e.getMessage());
+                                } finally {
+                                    done.countDown();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            done.await();
+        } finally {
+            // Con un'interruzione i thread ancora bloccati sulle code vengono interrotti
+            io.shutdownNow();
+            inference.shutdownNow();
+            cpu.shutdownNow();
+        }
+
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Inserisce una voce in coda dal pool di I/O, attendendo se la coda è piena.
+     */
+    private static void put(BlockingQueue<Entry> queue, Entry entry) {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Chiude con errore il job di una voce la cui fase ha sollevato un'eccezione.
+     */
+    private static void fail(Entry entry, Throwable e) {
+        Log.e(TAG, "Image " + entry.index + " failed: " + e.getMessage());
+        entry.job.fail(StickerResult.Status.ERROR);
+    }
+
+    /**
+     * Crea i thread di una fase con nomi riconoscibili.
+     */
+    private static ThreadFactory threads(final String stage) {
+        final AtomicInteger counter = new AtomicInteger();
+
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "StickerBatch-" + stage + "-" + counter.getAndIncrement());
+            }
+        };
+    }
+}
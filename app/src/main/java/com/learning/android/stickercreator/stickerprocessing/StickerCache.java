@@ -0,0 +1,342 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class StickerCache {
+    /**
+     * Cache su disco dei risultati di {@link StickerPipeline}, indirizzata per contenuto: la
+     * chiave è lo SHA-256 dei byte dell'immagine e dei parametri dell'elaborazione, quindi la
+     * stessa foto riaperta o rielaborata con gli stessi parametri restituisce lo sticker senza
+     * caricare l'immagine a piena risoluzione né eseguire la rete.
+     * Ogni voce è un unico file con la maschera finale (compressa) e lo sticker in PNG, scritto
+     * in un file temporaneo e poi rinominato: una scrittura interrotta non lascia mai una voce
+     * incompleta. Superata la dimensione massima vengono eliminate le voci usate meno di recente.
+     * Lettura, codifica e scrittura avvengono fuori dal lock, così che più thread possano usare
+     * la cache insieme: il lock protegge solo l'elenco delle scritture in corso e l'eliminazione.
+     */
+
+    private static final String TAG = "StickerCache";
+
+    // Cartella della cache dentro getCacheDir(), da non eliminare con il resto della cache
+    public static final String DIRECTORY = "stickers";
+
+    private static final long DEFAULT_MAX_BYTES = 20L * 1024 * 1024;
+
+    // Versione del formato delle voci, scritta in testa a ogni file
+    private static final int FORMAT_VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Lunghezza dell'intestazione: versione, larghezza, altezza e lunghezza della maschera
+    private static final int HEADER_BYTES = 4 * 4;
+
+    // La maschera salvata è quella alla risoluzione della rete, mai più grande del suo input
+    private static final int MAX_MASK_PIXELS = SemanticSegmentator.getInputSize() * SemanticSegmentator.getInputSize();
+
+    private static StickerCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // File temporanei in scrittura, da non eliminare in trim()
+    private final Set<File> mWriting = new HashSet<>();
+
+    /**
+     * Voce della cache.
+     */
+    public static class Entry {
+        public final MaskRaster mask;
+        public final Bitmap sticker;
+
+        Entry(MaskRaster mask, Bitmap sticker) {
+            this.mask = mask;
+            this.sticker = sticker;
+        }
+    }
+
+    /**
+     * Restituisce la cache condivisa, creandola alla prima richiesta.
+     * @param context un contesto qualsiasi, usato solo per la cartella della cache.
+     * @return la cache condivisa.
+     */
+    public static synchronized StickerCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StickerCache(new File(context.getCacheDir(), DIRECTORY), DEFAULT_MAX_BYTES);
+        }
+
+
+        return sInstance;
+    }
+
+    /**
+     * Costruttore della classe. La cartella viene creata alla prima scrittura.
+     * @param directory la cartella delle voci, usata solo da questa cache.
+     * @param maxBytes la dimensione massima complessiva delle voci.
+     */
+    public StickerCache(File directory, long maxBytes) {
+        if (directory == null || maxBytes <= 0) throw new IllegalArgumentException();
+
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Calcola la chiave di una voce.
+     * @param input i byte dell'immagine, letti fino alla fine ma non chiusi.
+     * @param params i parametri dell'elaborazione che influenzano il risultato.
+     * @return lo SHA-256 dei parametri e dei byte, in esadecimale.
+     * @throws IOException se l'immagine non viene letta.
+     */
+    public static String key(InputStream input, String params) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(params.getBytes("UTF-8"));
+        digest.update((byte) 0);
+
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) digest.update(buffer, 0, read);
+
+
+        return hex(digest.digest());
+    }
+
+    /**
+     * Calcola lo SHA-256 del contenuto di un buffer, ad esempio di un modello mappato in memoria.
+     * @param buffer il buffer, dalla posizione al limite; la sua posizione non cambia.
+     * @return lo SHA-256 in esadecimale.
+     */
+    public static String hash(ByteBuffer buffer) {
+        MessageDigest digest = sha256();
+        digest.update(buffer.duplicate());
+
+
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) hex.append(String.format("%02x", b & 0xFF));
+
+
+        return hex.toString();
+    }
+
+    /**
+     * Cerca una voce e la segna come usata di recente. La lettura non prende il lock: una voce
+     * sostituita o eliminata nel frattempo resta leggibile fino alla chiusura del file.
+     * @param key la chiave, vedi {@link #key(InputStream, String)}.
+     * @return la voce, null se non esiste o non è leggibile (in tal caso viene eliminata).
+     */
+    public Entry get(String key) {
+        File file = new File(mDirectory, key);
+        if (!file.isFile()) return null;
+
+        Entry entry;
+        try {
+            entry = read(file);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Corrupted entry " + key + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+
+
+        return entry;
+    }
+
+    /**
+     * Salva una voce, sostituendo quella con la stessa chiave, ed elimina le voci usate meno
+     * di recente se la cache supera la dimensione massima. Un errore di scrittura viene solo
+     * registrato: la cache resta com'era. Ogni scrittura usa un proprio file temporaneo, così
+     * che codifica e scrittura su disco avvengano fuori dal lock.
+     * @param key la chiave, vedi {@link #key(InputStream, String)}.
+     * @param mask la maschera finale.
+     * @param sticker lo sticker.
+     */
+    public void put(String key, MaskRaster mask, Bitmap sticker) {
+        if (key == null || mask == null || sticker == null) throw new IllegalArgumentException();
+
+        File tmp = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) throw new IOException("Cannot create " + mDirectory);
+
+            synchronized (this) {
+                tmp = File.createTempFile(key, TMP_SUFFIX, mDirectory);
+                mWriting.add(tmp);
+            }
+            write(tmp, mask, sticker);
+
+            // La rinomina nella stessa cartella è atomica: la voce compare già completa
+            if (!tmp.renameTo(new File(mDirectory, key))) throw new IOException("Cannot rename " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store entry " + key + ": " + e.getMessage());
+            if (tmp != null) tmp.delete();
+            return;
+        } finally {
+            if (tmp != null) {
+                synchronized (this) {
+                    mWriting.remove(tmp);
+                }
+            }
+        }
+
+        trim();
+    }
+
+    /**
+     * Scrive una voce: intestazione, maschera compressa e sticker in PNG, poi forza i dati su
+     * disco prima della chiusura.
+     */
+    private static void write(File file, MaskRaster mask, Bitmap sticker) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+            byte[] packed = pack(mask);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mask.width);
+            out.writeInt(mask.height);
+            out.writeInt(packed.length);
+            out.write(packed);
+            if (!sticker.compress(Bitmap.CompressFormat.PNG, 100, out)) throw new IOException("PNG encoding failed");
+
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Legge una voce scritta da {@link #write(File, MaskRaster, Bitmap)}. Dimensioni e lunghezze
+     * dell'intestazione vengono controllate prima di allocare: una voce troncata o corrotta
+     * solleva IOException invece di richiedere un array enorme.
+     */
+    private static Entry read(File file) throws IOException {
+        long length = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unknown format");
+
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width <= 0 || height <= 0 || (long) width * height > MAX_MASK_PIXELS) {
+                throw new IOException("Invalid mask size " + width + "x" + height);
+            }
+            int packedLength = in.readInt();
+            if (packedLength < 0 || packedLength > length - HEADER_BYTES) {
+                throw new IOException("Invalid mask length " + packedLength);
+            }
+            byte[] packed = new byte[packedLength];
+            in.readFully(packed);
+            MaskRaster mask = unpack(packed, width, height);
+
+            Bitmap sticker = BitmapFactory.decodeStream(in);
+            if (sticker == null) throw new IOException("PNG decoding failed");
+
+
+            return new Entry(mask, sticker);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Comprime la maschera: le lunghe sequenze di valori uguali si riducono a pochi byte.
+     */
+    private static byte[] pack(MaskRaster mask) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+        for (int x = 0; x < mask.height; x++) {
+            int row = x * mask.stride;
+            for (int y = 0; y < mask.width; y++) out.writeInt(mask.data[row + y]);
+        }
+        out.close();
+
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decomprime una maschera prodotta da {@link #pack(MaskRaster)}. Le dimensioni sono già
+     * state controllate da {@link #read(File)}.
+     */
+    private static MaskRaster unpack(byte[] packed, int width, int height) throws IOException {
+        MaskRaster mask = new MaskRaster(width, height);
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(packed)));
+        try {
+            for (int i = 0; i < mask.data.length; i++) mask.data[i] = in.readInt();
+        } finally {
+            in.close();
+        }
+
+
+        return mask;
+    }
+
+    /**
+     * Elimina le voci usate meno di recente finché la cache non rientra nella dimensione
+     * massima. Anche i file temporanei rimasti da scritture interrotte vengono contati ed eliminati.
+     */
+    private synchronized void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        // Le scritture in corso non si contano né si eliminano
+        int count = 0;
+        for (File file : files) {
+            if (!mWriting.contains(file)) files[count++] = file;
+        }
+        files = Arrays.copyOf(files, count);
+
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= mMaxBytes) return;
+
+        // Dalla voce usata meno di recente
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) total -= length;
+        }
+    }
+}
@@ -11,9 +11,7 @@ import android.os.Build;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 import static com.learning.android.stickercreator.ResultActivity.STICKER_HEIGHT;
 import static com.learning.android.stickercreator.ResultActivity.STICKER_WIDTH;
@@ -200,196 +198,146 @@ public class StickerCreationUtils {
     }
 
     /**
-     * Scala una bitmap rappresentata con una matrice, usando l'algoritmo scale2x utilizzato
-     * in emulatori e per fare pixel arts.
-     * @param bmp la matrice da scalare.
-     * @return la matrice scalata.
+     * Riempie i buchi della maschera ed elimina le isole troppo piccole in un'unica etichettatura.
+     * Primo piano (in 8-connettività) e sfondo (in 4-connettività, la connettività duale) vengono
+     * etichettati insieme: ogni componente di sfondo che non tocca il margine è un buco.
+     * Per ogni componente si ricorda quella che la racchiude, cioè quella del pixel sopra al suo
+     * primo pixel in ordine di scansione, così che un'isola dentro un buco riempito resti piena
+     * e un buco dentro un'isola eliminata torni sfondo.
+     * @param mask la maschera, modificata sul posto.
+     * @param fgColor il colore del primo piano.
+     * @param bgColor il colore di sfondo.
+     * @param maxHoleArea i buchi con area minore vengono riempiti.
+     * @param minIslandArea le isole di primo piano con area minore vengono eliminate.
+     * @return la maschera, con solo fgColor e bgColor.
      */
-    public static int[][] scale2x (int[][] bmp) {
-
-        // Creazione della matrice scalata
-        int[][] scaledBmp = new int[bmp.length *2 ][bmp[0].length * 2];
-
-        // https://www.scale2x.it/algorithm
-        // Per rispetto verso il progettista dell'algoritmo NON sono stati rinominati i nomi delle
-        //  variabili così come la struttura del codice
-        //
-        //  ABC
-        //  DEF -> E0E1
-        //  GHI    E2E3
-        //
-        // L'algoritmo 'espande' il pixel E in quattro pixel E0, E1, E2, E3 calcolando il valore di questi
-        //  confrontando il valore dei pixel adiacenti a E:
-        //  controlla il colore dei pixel in verticale (B e H) e in orizzontale (D e F): se entrambi diversi assegna
-        //  i valori di Ex in base al colore dei pixel 'vicini'. Ad esempio E1 si trova nel vertice in alto a destra,
-        //  gli verrà assegnato il valore di B o F se uguali, E altrimenti
-
-        // Commentate le chiamate di codice inutile, ma mantenuta la struttura (vertici mai utilizzati)
-        int e0, e1, e2, e3;
-        int a, b, c, d, e, f, g, h, i;
-
-        for (int x=0; x<bmp.length; x++) {
-            for (int y=0; y<bmp[0].length; y++) {
-
-                //a = StickerCreationUtils.getPixel(bmp,x-1,y-1);
-                b = StickerCreationUtils.getPixel(bmp,x-1,y);
-                //c = StickerCreationUtils.getPixel(bmp,x-1,y+1);
-                d = StickerCreationUtils.getPixel(bmp,x,y-1);
-                e = StickerCreationUtils.getPixel(bmp,x,y);
-                f = StickerCreationUtils.getPixel(bmp,x,y+1);
-                //g = StickerCreationUtils.getPixel(bmp,x+1,y-1);
-                h = StickerCreationUtils.getPixel(bmp,x+1,y);
-                //i = StickerCreationUtils.getPixel(bmp,x+1,y+1);
-
-                if (b != h && d != f) {
-                    e0 = d == b ? d : e;
-                    e1 = b == f ? f : e;
-                    e2 = d == h ? d : e;
-                    e3 = h == f ? f : e;
-                } else {
-                    e0 = e;
-                    e1 = e;
-                    e2 = e;
-                    e3 = e;
+    public static MaskRaster fillHoles(MaskRaster mask, int fgColor, int bgColor, int maxHoleArea, int minIslandArea) {
+        int[] data = mask.data;
+        int stride = mask.stride;
+        int width = mask.width;
+        int height = mask.height;
+
+        UnionFind equivalences = new UnionFind();
+
+        // Per ogni etichetta provvisoria: classe, area, contatto col margine e componente che la racchiude
+        int capacity = 256;
+        boolean[] isFg = new boolean[capacity];
+        int[] area = new int[capacity];
+        boolean[] touchesEdge = new boolean[capacity];
+        int[] enclosing = new int[capacity];
+
+        // Prima passata: etichettatura provvisoria di primo piano e sfondo insieme
+        int[] labels = new int[width * height];
+        for (int x = 0; x < height; x++) {
+            int row = x * stride;
+            int lRow = x * width;
+            boolean edgeRow = x == 0 || x == height - 1;
+
+            for (int y = 0; y < width; y++) {
+                boolean fg = data[row + y] != bgColor;
+                int label = 0;
+
+                // Vicini già visitati della stessa classe: sinistra e sopra, più le diagonali in primo piano
+                if (y > 0 && (data[row + y - 1] != bgColor) == fg) label = labels[lRow + y - 1];
+                if (x > 0) {
+                    int up = lRow - width + y;
+                    if ((data[row - stride + y] != bgColor) == fg) label = label == 0 ? labels[up] : equivalences.union(label, labels[up]);
+                    if (fg && y > 0 && data[row - stride + y - 1] != bgColor)
+                        label = label == 0 ? labels[up - 1] : equivalences.union(label, labels[up - 1]);
+                    if (fg && y < width - 1 && data[row - stride + y + 1] != bgColor)
+                        label = label == 0 ? labels[up + 1] : equivalences.union(label, labels[up + 1]);
                 }
 
-                scaledBmp[ x*2 ][ y*2 ] = e0;
-                scaledBmp[ x*2 ][ y*2 +1 ] = e1;
-                scaledBmp[ x*2 +1 ][ y*2 ] = e2;
-                scaledBmp[ x*2 +1 ][ y*2 +1 ] = e3;
-            }
-        }
-
-
-        return scaledBmp;
-    }
-
-
-    /**
-     * Involucro dell'accesso bmp[x][y] che esegue controlli OutOfBound, in caso assegna il valore più
-     *  vicino al bordo.
-     * @param bmp la matrice dalla quale accedere al valore.
-     * @param x la coordinata.
-     * @param y l'ascissa.
-     * @return bmp[x][y] con controllo di OutOfBounds.
-     */
-    private static int getPixel(int[][] bmp, int x, int y){
-        if (x < 0) x = 0;
-        if (x >= bmp.length) x = bmp.length -1;
-        if (y < 0) y = 0;
-        if (y >= bmp[0].length) y = bmp[0].length -1;
-
-
-        return bmp[x][y];
-    }
-
-
-    /**
-     * Implementazione dell'algoritmo flood fill in quattro direzioni.
-     * https://en.wikipedia.org/wiki/Flood_fill.
-     * @param matrixBmp la matrice sulla quale eseguire il fill.
-     * @param startPixel il pixel di partenza.
-     * @param replaceColor colore di rimpiazzamento.
-     * @param borderColor colore del bordo.
-     * @return la matrice riempita di colore.
-     */
-    public static int[][] floodFill(int[][] matrixBmp, Pixel startPixel, int replaceColor, int borderColor) {
-        matrixBmp[startPixel.x][startPixel.y] = replaceColor;
-
-        // Implementazione a coda
-        LinkedList<Pixel> queue = new LinkedList<>();
-        queue.add(startPixel);
-
-        while (!queue.isEmpty()) {
-            Pixel p = queue.remove();
-
-            // Controlla se il pixel in alto è da colorare
-            if (p.x -1 >= 0 && matrixBmp[p.x -1][p.y] != borderColor && matrixBmp[p.x -1][p.y] != replaceColor) {
+                if (label == 0) {
+                    label = equivalences.makeSet();
+                    if (label == capacity) {
+                        capacity *= 2;
+                        isFg = Arrays.copyOf(isFg, capacity);
+                        area = Arrays.copyOf(area, capacity);
+                        touchesEdge = Arrays.copyOf(touchesEdge, capacity);
+                        enclosing = Arrays.copyOf(enclosing, capacity);
+                    }
+                    isFg[label] = fg;
 
-                // Coloralo
-                matrixBmp[p.x -1][p.y] = replaceColor;
-                // Accodalo
-                queue.add(new Pixel(p.x -1, p.y));
-            }
+                    // Il pixel sopra il primo pixel di una componente è dell'altra classe e
+                    //  appartiene alla componente che la racchiude (0 se è il margine)
+                    enclosing[label] = x == 0 ? 0 : labels[lRow - width + y];
+                }
 
-            // Controlla se il pixel a sinistra è da colorare
-            if (p.y -1 >= 0 && matrixBmp[p.x][p.y -1] != borderColor && matrixBmp[p.x][p.y -1] != replaceColor) {
-                matrixBmp[p.x][p.y -1] = replaceColor;
-                queue.add(new Pixel(p.x, p.y -1));
+                labels[lRow + y] = label;
+                area[label]++;
+                if (edgeRow || y == 0 || y == width - 1) touchesEdge[label] = true;
             }
+        }
 
-            // Controlla se il pixel in basso è da colorare
-            if (p.x +1 < matrixBmp.length && matrixBmp[p.x +1][p.y] != borderColor && matrixBmp[p.x +1][p.y] != replaceColor) {
-                matrixBmp[p.x +1][p.y] = replaceColor;
-                queue.add(new Pixel(p.x +1, p.y));
+        // Accumulo delle proprietà sulle radici
+        int count = equivalences.size();
+        for (int l = 1; l <= count; l++) {
+            int root = equivalences.find(l);
+            if (root != l) {
+                area[root] += area[l];
+                touchesEdge[root] |= touchesEdge[l];
             }
+        }
 
-            // Controlla se il pixel a destra è da colorare
-            if (p.y +1 < matrixBmp[0].length && matrixBmp[p.x][p.y +1] != borderColor && matrixBmp[p.x][p.y +1] != replaceColor) {
-                matrixBmp[p.x][p.y +1] = replaceColor;
-                queue.add(new Pixel(p.x, p.y +1));
+        // Decisione per componente, in ordine di creazione: la componente che racchiude
+        //  è sempre creata prima, quindi la sua decisione è già nota
+        boolean[] decided = new boolean[count + 1];
+        boolean[] keepFg = new boolean[count + 1];
+        int[] colors = new int[count + 1];
+        for (int l = 1; l <= count; l++) {
+            int root = equivalences.find(l);
+            if (!decided[root]) {
+                decided[root] = true;
+                boolean enclosingFg = enclosing[l] != 0 && keepFg[equivalences.find(enclosing[l])];
+
+                if (isFg[root]) {
+                    // Isola: resta se dentro un buco riempito o se abbastanza estesa
+                    keepFg[root] = enclosingFg || area[root] >= minIslandArea;
+                } else {
+                    // Buco: riempito se non tocca il margine, è racchiuso da primo piano tenuto ed è piccolo
+                    keepFg[root] = !touchesEdge[root] && enclosingFg && area[root] < maxHoleArea;
+                }
             }
+            colors[l] = keepFg[root] ? fgColor : bgColor;
         }
 
-
-        return matrixBmp;
-    }
-
-    /**
-     * Trova il bordo in una matrice dato il colore di sfondo.
-     * @param matBmp la matrice sulla quale ricercare il bordo.
-     * @param bgColor il colore di sfondo.
-     * @return array di Pixel del bordo
-     */
-    public static ArrayList<Pixel> findBorder(int[][] matBmp, int bgColor) {
-        int bmpHeight = matBmp.length;
-        int bmpWidth = matBmp[0].length;
-
-        ArrayList<Pixel> border = new ArrayList<>();
-
-        // Scansione della matrice
-        for (int i = 0; i < bmpHeight; i++) {
-            for (int j = 0; j < bmpWidth; j++) {
-
-                // Trovato pixel non di sfondo
-                if (matBmp[i][j] != bgColor) {
-
-                    if ((i == 0) || (j == 0) || (i == bmpHeight - 1) || (j == bmpWidth - 1) ||      // Se sono al bordo
-                            (i > 0 && matBmp[i - 1][j] == bgColor) ||                               // Se sopra c'è sfondo
-                            (j > 0 && matBmp[i][j - 1] == bgColor) ||                               // Se a sinistra c'è sfondo
-                            (i < bmpHeight - 1 && matBmp[i + 1][j] == bgColor) ||                   // Se sotto c'è sfondo
-                            (j < bmpWidth - 1 && matBmp[i][j + 1] == bgColor)) {                    // Se a destra c'è sfondo
-
-                        border.add(new Pixel(i,j));
-                    }
-                }
+        // Seconda passata: scrittura del risultato
+        for (int x = 0; x < height; x++) {
+            int row = x * stride;
+            int lRow = x * width;
+            for (int y = 0; y < width; y++) {
+                data[row + y] = colors[labels[lRow + y]];
             }
         }
 
 
-        return border;
+        return mask;
     }
 
-
     /**
-     * Espandi il bordo di una matrice.
-     * @param matrixBmp la matrice sulla quale far crescre il bordo.
-     * @param border il bordo come array di pixel.
+     * Espandi il bordo di una maschera: diventano di bordo i pixel di sfondo che distano al più
+     * radious dal primo piano. Il contorno è una soglia sulla trasformata distanza, quindi il
+     * costo non dipende dal raggio.
+     * @param matrixBmp la maschera sulla quale far crescre il bordo.
      * @param radious il raggio del bordo.
+     * @param bgColor il colore di sfondo.
      * @param borderColor il colore del bordo.
-     * @return la matrice col bordo espanso.
+     * @return la maschera col bordo espanso.
      */
-    public static int[][] growBorder (int[][] matrixBmp, ArrayList<Pixel> border, int radious, int borderColor){
-
-        for (Pixel px : border){
-            // Pattern circolare attorno al pixel del bordo
-            ArrayList<Pixel> pattern =
-                    StickerCreationUtils.getCircularPattern(px.x, px.y,radious,
-                            0,0, matrixBmp.length, matrixBmp[0].length);
-
-            // Applicazione del pattern per ricolorare
-            for (Pixel patternPixel : pattern)
-                matrixBmp[patternPixel.x][patternPixel.y] = borderColor;
+    public static MaskRaster growBorder (MaskRaster matrixBmp, int radious, int bgColor, int borderColor){
+        MaskRaster distance = DistanceTransform.squaredDistance(matrixBmp, bgColor);
+        int squaredRadious = radious * radious;
+
+        for (int i = 0; i < matrixBmp.height; i++) {
+            int row = i * matrixBmp.stride;
+            int dRow = i * distance.stride;
+            for (int j = 0; j < matrixBmp.width; j++) {
+
+                // Sfondo abbastanza vicino al primo piano
+                if (matrixBmp.data[row + j] == bgColor && distance.data[dRow + j] <= squaredRadious)
+                    matrixBmp.data[row + j] = borderColor;
+            }
         }
 
 
@@ -397,175 +345,114 @@ public class StickerCreationUtils {
     }
 
     /**
-     * Prende un bordo come array di pixel e isola la parte connessa di lunghezza maggiore.
-     * @param b il bordo da raffinare.
-     * @return il bordo con la parte connessa di lunghezza maggiore isolata.
+     * Applica una maschera contornata ad una bitmap. Rende trasparente le parti di sfondo e colora
+     * le parti di contorno. I pixel vengono letti e scritti in blocco, un'unica volta.
+     * @param bmp la bitmap da mascherare della stessa dimensione della maschera.
+     * @param matrixMask la maschera della stessa dimensione della bitmap, indicizzata (x, y) come la bitmap.
+     * @param bgColor il colore di sfondo della maschera.
+     * @param borderColor il colore di bordo della maschera da riportare sulla bitmap.
+     * @return la bitmap mascherata e contornata, trasparente nello sfondo.
+     * @throws IllegalArgumentException se le dimensioni della maschera e della bitmap non coincidono.
      */
-    public static ArrayList<Pixel> refineBorder(ArrayList<Pixel> b) {
-
-        // Coda per mantenere la connettività. La coda è di interi, indici di b
-        //  poichè si usa un approccio a sentinella (null / not null) sugli elementi di b
-        LinkedList<Integer> queue = new LinkedList<>();
-        // Lista dei bordi trovati
-        ArrayList<ArrayList<Pixel>> borders = new ArrayList<>();
+    public static Bitmap applyMask(Bitmap bmp, MaskRaster matrixMask, int targetWidth, int targetHeight, int bgColor, int borderColor){
+        int bmpWidth = bmp.getWidth();
+        int bmpHeight = bmp.getHeight();
 
-        // Il valore null viene utilizzato come sentinella in b, ogni pixel viene ricopiato
-        //  in una delle liste dentro borders, per ogni ciclo di questo while troviamo un
-        //  bordo connesso
-        while (!containsAllNull(b)) {
-
-            // Bordo attuale
-            ArrayList<Pixel> border = new ArrayList<>();
-
-            // Trova il primo Pixel non nullo, legale poichè siamo dentro al while
-            for (int i=0; queue.isEmpty(); i++) {
-                if (b.get(i) != null) queue.add(i);
-            }
-
-            while (!queue.isEmpty()) {
-
-                // Indice del Pixel attuale
-                int pxIndex = queue.remove();
-
-                // Ricopia pixel in uno nuovo e appendi alla lista
-                Pixel p = new Pixel(b.get(pxIndex).x, b.get(pxIndex).y);
-                border.add(p);
-                // Rendi nullo il pixle in b
-                b.set(pxIndex, null);
-
-                // Ricerca di pixel vicini (8 direzioni)
-                for (int i = 0; i < b.size(); i++) {
-                    if (b.get(i) != null && isNeighbour(p, b.get(i))) {
-
-                        // Accoda i pixel trovati
-                        if (!queue.contains(i)) queue.add(i);
-                    }
-                }
-            }
-
-            // Attuale bordo non ha più pixel connessi, aggiungi alla lista dei bordi
-            borders.add(border);
-        }
-
-        // Ricerca sui bordi trovati e trova il max
-        ArrayList<Pixel> maxSizeBorder = borders.get(0);
-        for (ArrayList<Pixel> border : borders) {
-            if (border.size() > maxSizeBorder.size()) maxSizeBorder = border;
-        }
-
-
-        return maxSizeBorder;
-    }
-
-    /**
-     * Controlla se un ArrayList contiene tutti valori nulli
-     * @param a l'ArrayList da controllare
-     * @return true se contiene tutti nulli, false altrimenti
-     */
-    private static boolean containsAllNull(ArrayList<Pixel> a) {
-        for (Pixel p : a) {
-            if (p != null) return false;
+        // Controllo sulle dimensioni
+        if (bmpWidth != matrixMask.width || bmpHeight != matrixMask.height) {
+            throw new IllegalArgumentException();
         }
 
+        // Rendi la bitmap mutable se non lo è già
+        if (!bmp.isMutable()) bmp = bmp.copy(Bitmap.Config.ARGB_8888,true);
 
-        return true;
-    }
-
-
-    /**
-     * Controlla se i due pixel sono adiacenti (anche diagonalmente)
-     * @param a il primo pixel
-     * @param b il secondo pixel
-     * @return true se i due pixel sono vicini, false altrimenti
-     */
-    private static boolean isNeighbour(Pixel a, Pixel b) {
-
-        // Controllo sulla vicinanza
-        if (a.x - b.x <= 1 && a.x - b.x >= -1 &&
-            a.y - b.y <= 1 && a.y - b.y >= -1) {
-            return true;
+        // Lettura in blocco dei pixel, riga per riga dell'immagine
+        int[] pixels = new int[bmpWidth * bmpHeight];
+        bmp.getPixels(pixels, 0, bmpWidth, 0, 0, bmpWidth, bmpHeight);
+
+        // La maschera ha come primo indice l'ascissa della bitmap: i pixel fuori
+        //  dalla bitmap vengono ignorati
+        int maxX = Math.min(targetHeight, bmpWidth);
+        int maxY = Math.min(targetWidth, bmpHeight);
+        int[] mask = matrixMask.data;
+
+        for (int i = 0; i < maxX; i++) {
+            int row = i * matrixMask.stride;
+            for (int j = 0; j < maxY; j++) {
+                int value = mask[row + j];
+
+                // Trovato sfondo
+                if (value == Color.TRANSPARENT) pixels[j * bmpWidth + i] = bgColor;
+                // Trovato contorno
+                else if (value == borderColor) pixels[j * bmpWidth + i] = borderColor;
+            }
         }
 
+        // Scrittura in blocco dei pixel
+        bmp.setPixels(pixels, 0, bmpWidth, 0, 0, bmpWidth, bmpHeight);
 
-        return false;
-    }
-
-    /**
-     * Crea un pattern circolare attorno ad un pixel dato bordo e raggio. Controlla ed elimina eventuali
-     * OutOfBounds.
-     * @param x l'ascissa di partenza del pattern.
-     * @param y l'ordinata di partenza del pattern.
-     * @param radious il raggio del pattern.
-     * @param lowerBoundX bound inferiore sulla ascissa.
-     * @param lowerBoundY bound inferiore per l'ordinata.
-     * @param upperBoundX bound superiore per l'ascissa.
-     * @param upperBoundY bound superiore per l'ordinata.
-     * @return il pattern circolare.
-     */
-    private static ArrayList<Pixel> getCircularPattern(int x, int y, int radious, int lowerBoundX, int lowerBoundY, int upperBoundX, int upperBoundY){
-        ArrayList<Pixel> pattern = new ArrayList<>();
-
-        // Crea quadrato attorno al punti desiderato
-        for (int i=-radious; i<radious; i++) {
-            for (int j=-radious; j<radious; j++) {
-                pattern.add( new Pixel(x+i,y+j) );
-            }}
-
-        // Smussa per creare cerchio e elimina punti che vanno fuori dai limiti
-        Iterator<Pixel> itr = pattern.iterator();
-        while (itr.hasNext()) {
-            Pixel px = itr.next();
-
-            // Calcola la distanza euclidea tra il punto e il centro del pattern
-            double euclideanDistance = Math.sqrt((px.x- x)*(px.x - x) + (px.y - y)*(px.y - y));
 
-            // Elimina punti fuori dal raggio o in OutOfBounds
-            if (euclideanDistance < radious ||
-                    px.x < lowerBoundX || px.x >= upperBoundX ||
-                    px.y < lowerBoundY || px.y >= upperBoundY){
-                itr.remove();
-            }}
-
-
-        return pattern;
+        return bmp;
     }
 
-
     /**
-     * Applica una maschera contornata ad una bitmap. Rende trasparente le parti di sfondo e colora
-     * le parti di contorno.
-     * @param bmp la bitmap da mascherare della stessa dimensione della maschera.
-     * @param matrixMask la matrice-maschera della stessa dimensione della bitmap.
-     * @param bgColor il colore di sfondo della matrice-maschera.
-     * @param borderColor il colore di bordo della matrice-maschera da riportare sulla bitmap.
-     * @return la bitmap mascherata e contornata, trasparente nello sfondo.
-     * @throws IllegalArgumentException se le dimensioni della matrice e della bitmap non coincidono.
+     * Applica una maschera morbida ad una bitmap come vero canale alpha, sopra un eventuale
+     * contorno: dentro la figura contornata (i pixel non di sfondo di outline) il pixel resta
+     * opaco e la figura viene sfumata sul colore del contorno, altrove prende l'opacità della maschera.
+     * @param bmp la bitmap sulla quale applicare la maschera.
+     * @param alpha la maschera morbida, con il primo indice sull'ascissa della bitmap.
+     * @param outline la figura contornata delle stesse dimensioni, o null per nessun contorno.
+     * @param bgColor il colore di sfondo di outline.
+     * @param borderColor il colore del contorno.
+     * @return la bitmap con il canale alpha applicato.
      */
-    public static Bitmap applyMask(Bitmap bmp, int[][] matrixMask, int targetWidth, int targetHeight, int bgColor, int borderColor){
+    public static Bitmap applyMask(Bitmap bmp, AlphaMatte alpha, MaskRaster outline, int bgColor, int borderColor){
+        int bmpWidth = bmp.getWidth();
+        int bmpHeight = bmp.getHeight();
 
         // Controllo sulle dimensioni
-        if (bmp.getWidth() != matrixMask[0].length || bmp.getHeight() != matrixMask.length) {
+        if (bmpWidth != alpha.height || bmpHeight != alpha.width ||
+                (outline != null && (outline.width != alpha.width || outline.height != alpha.height))) {
             throw new IllegalArgumentException();
         }
 
         // Rendi la bitmap mutable se non lo è già
         if (!bmp.isMutable()) bmp = bmp.copy(Bitmap.Config.ARGB_8888,true);
 
-        for (int i = 0; i < targetHeight; i++) {
-            for (int j = 0; j < targetWidth; j++) {
+        // Lettura in blocco dei pixel, riga per riga dell'immagine
+        int[] pixels = new int[bmpWidth * bmpHeight];
+        bmp.getPixels(pixels, 0, bmpWidth, 0, 0, bmpWidth, bmpHeight);
+
+        int borderR = (borderColor >> 16) & 0xFF;
+        int borderG = (borderColor >> 8) & 0xFF;
+        int borderB = borderColor & 0xFF;
+
+        for (int i = 0; i < bmpWidth; i++) {
+            int row = i * alpha.width;
+            for (int j = 0; j < bmpHeight; j++) {
+                int a = alpha.data[row + j] & 0xFF;
+                int k = j * bmpWidth + i;
+                int pixel = pixels[k];
 
-                try {
-                    // Trovato sfondo
-                    if (matrixMask[i][j] == Color.TRANSPARENT) bmp.setPixel(i, j, bgColor); //TODO:!!!
-                    // Trovato contorno
-                    else if (matrixMask[i][j] == borderColor) bmp.setPixel(i, j, borderColor);
+                if (outline != null && outline.get(i, j) != bgColor) {
 
-                } catch (IllegalArgumentException e){ //TODO: ??
-                    //Log.d(TAG,"IllegalArgument");
+                    // Figura sfumata sul contorno, opaca
+                    int r = (((pixel >> 16) & 0xFF) * a + borderR * (255 - a)) / 255;
+                    int g = (((pixel >> 8) & 0xFF) * a + borderG * (255 - a)) / 255;
+                    int b = ((pixel & 0xFF) * a + borderB * (255 - a)) / 255;
+                    pixels[k] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                } else {
+
+                    // Opacità della maschera, combinata con quella già presente
+                    int pixelAlpha = (pixel >>> 24) * a / 255;
+                    pixels[k] = (pixelAlpha << 24) | (pixel & 0x00FFFFFF);
                 }
             }
         }
 
+        // Scrittura in blocco dei pixel
+        bmp.setPixels(pixels, 0, bmpWidth, 0, 0, bmpWidth, bmpHeight);
+
 
         return bmp;
     }
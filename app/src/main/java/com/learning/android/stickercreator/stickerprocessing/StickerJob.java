@@ -0,0 +1,94 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+public class StickerJob {
+    /**
+     * Stato di una singola elaborazione, passato da una fase all'altra di {@link StickerPipeline}:
+     * parametri di ingresso, risultati intermedi e tempi di ogni fase. Un job appartiene a una
+     * sola elaborazione e viene letto e scritto da una fase alla volta, anche se le fasi girano
+     * su thread diversi: il passaggio tra thread deve avvenire tramite executor o code concorrenti.
+     */
+
+    // Parametri dell'elaborazione
+    public final Uri uri;
+    public final int width;
+    public final int height;
+    public final boolean softEdges;
+
+    // Immagine alle dimensioni dello sticker e copia su cui applicare la maschera
+    Bitmap source;
+    Bitmap original;
+
+    // Immagine alle dimensioni dello sticker conservata per il risultato, solo con StickerPipeline.run
+    Bitmap input;
+
+    // Segmentazione alla risoluzione della rete
+    int sampling;
+    MaskRaster mask;
+    AlphaMatte alpha;
+
+    // Maschere alle dimensioni dello sticker: la maschera binaria con il bordo oppure, con i
+    //  bordi morbidi, il contorno e la maschera morbida ingrandita
+    MaskRaster stickerMask;
+    AlphaMatte stickerAlpha;
+
+    Bitmap sticker;
+    StickerResult.Status status = StickerResult.Status.OK;
+
+    // Tempo di ogni fase in millisecondi, indicizzato con Stage.ordinal()
+    final long[] times = new long[StickerPipeline.Stage.values().length];
+
+    /**
+     * Costruttore della classe.
+     * @param uri l'immagine da elaborare.
+     * @param width la larghezza dello sticker.
+     * @param height l'altezza dello sticker.
+     * @param softEdges true per applicare la maschera morbida.
+     */
+    public StickerJob(Uri uri, int width, int height, boolean softEdges) {
+        if (uri == null || width <= 0 || height <= 0) throw new IllegalArgumentException();
+
+        this.uri = uri;
+        this.width = width;
+        this.height = height;
+        this.softEdges = softEdges;
+    }
+
+    /**
+     * @return true se nessuna fase è fallita finora.
+     */
+    public boolean isAlive() {
+        return status == StickerResult.Status.OK;
+    }
+
+    /**
+     * Chiude il job in caso di errore, rilasciando i risultati intermedi.
+     * @param failure il motivo del fallimento.
+     * @return questo job.
+     */
+    public StickerJob fail(StickerResult.Status failure) {
+        if (failure == StickerResult.Status.OK) throw new IllegalArgumentException();
+
+        status = failure;
+        source = null;
+        original = null;
+        input = null;
+        mask = null;
+        alpha = null;
+        stickerMask = null;
+        stickerAlpha = null;
+        sticker = null;
+
+
+        return this;
+    }
+
+    /**
+     * @return il risultato del job, con lo sticker se l'elaborazione è riuscita.
+     */
+    public StickerResult toResult() {
+        return new StickerResult(uri, status, sticker, mask, input, times);
+    }
+}
@@ -0,0 +1,102 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+public class StickerMemoryCache {
+    /**
+     * Cache in memoria dei risultati di {@link StickerPipeline}, unica per tutto il processo:
+     * sticker, maschera e immagine di partenza restano disponibili oltre la vita dell'Activity,
+     * così che alla sua ricreazione (ad esempio ruotando lo schermo) il risultato sia una
+     * semplice ricerca invece di una codifica e decodifica PNG sul thread principale.
+     * La dimensione è limitata a una frazione della memoria concessa all'app e vengono
+     * eliminati i risultati usati meno di recente. Può essere usata da qualsiasi thread.
+     */
+
+    // Frazione della memoria dell'app dedicata alla cache: un ottavo
+    private static final int MEMORY_FRACTION = 8;
+
+    private static StickerMemoryCache sInstance;
+
+    private final LruCache<String, StickerResult> mCache;
+
+    /**
+     * Restituisce la cache condivisa, creandola alla prima richiesta con una dimensione pari a
+     * una frazione di {@link ActivityManager#getMemoryClass()}.
+     * @param context un contesto qualsiasi, usato solo per leggere la memoria disponibile.
+     * @return la cache condivisa.
+     */
+    public static synchronized StickerMemoryCache getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            long memory = manager.getMemoryClass() * 1024L * 1024L;
+            sInstance = new StickerMemoryCache((int) (memory / MEMORY_FRACTION));
+        }
+
+
+        return sInstance;
+    }
+
+    /**
+     * Costruttore della classe.
+     * @param maxBytes la dimensione massima complessiva dei risultati, in byte.
+     */
+    public StickerMemoryCache(int maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException();
+
+        mCache = new LruCache<String, StickerResult>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, StickerResult result) {
+                return bytes(result);
+            }
+        };
+    }
+
+    /**
+     * @param key la chiave, ad esempio l'URI dell'immagine elaborata.
+     * @return il risultato, null se non è presente.
+     */
+    public StickerResult get(String key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Memorizza un risultato riuscito, sostituendo quello con la stessa chiave. Un risultato
+     * più grande dell'intera cache non viene conservato.
+     * @param key la chiave, ad esempio l'URI dell'immagine elaborata.
+     * @param result il risultato.
+     */
+    public void put(String key, StickerResult result) {
+        if (key == null || result == null || !result.isSuccessful()) throw new IllegalArgumentException();
+
+        mCache.put(key, result);
+    }
+
+    /**
+     * Rimuove un risultato non più necessario.
+     * @param key la chiave.
+     */
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    /**
+     * Occupazione in memoria di un risultato: i pixel delle bitmap e la maschera.
+     */
+    private static int bytes(StickerResult result) {
+        int size = bytes(result.getSticker()) + bytes(result.getSource());
+        if (result.getMask() != null) size += result.getMask().data.length * 4;
+
+
+        return size;
+    }
+
+    /**
+     * Occupazione in memoria dei pixel di una bitmap, 0 se nulla.
+     */
+    private static int bytes(Bitmap bitmap) {
+        return bitmap != null ? bitmap.getByteCount() : 0;
+    }
+}
@@ -0,0 +1,494 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.util.Log;
+
+import com.learning.android.stickercreator.ImagePickerActiviy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class StickerPipeline {
+    /**
+     * Elaborazione di uno sticker come sequenza di fasi esplicite, ognuna cronometrata:
+     * caricamento dell'immagine, preparazione dell'ingresso, inferenza, isolamento della
+     * componente, riempimento dei buchi, riscalamento, contorno e composizione.
+     * Le fasi leggono e scrivono solo lo {@link StickerJob} che ricevono, quindi più job
+     * possono essere elaborati contemporaneamente; preparazione e inferenza girano sul
+     * thread del segmentatore tramite {@link SegmentatorPool}.
+     * Le fasi sono raggruppate in {@link #decode}, {@link #segment} e {@link #finish} per
+     * poterle distribuire su executor diversi; {@link #run} le esegue tutte in sequenza,
+     * cercando prima il risultato in {@link StickerCache}.
+     */
+
+    private static final String TAG = "StickerPipeline";
+
+    // Parametri della post-elaborazione, parte della chiave della cache: tolleranza in percentuale
+    //  sulla componente più estesa, spessore del contorno e soglia della maschera morbida
+    private static final int COMPONENT_TOLERANCE = 3;
+    private static final int BORDER_RADIUS = 2;
+    private static final int ALPHA_THRESHOLD = 128;
+
+    /**
+     * Fasi dell'elaborazione, nell'ordine di esecuzione.
+     */
+    public enum Stage { DECODE, PREPROCESS, INFER, LABEL, FILL, UPSCALE, OUTLINE, COMPOSE }
+
+    /**
+     * Notifica del completamento delle fasi, chiamata dal thread che ha eseguito la fase.
+     */
+    public interface Listener {
+        /**
+         * @param job il job elaborato.
+         * @param stage la fase appena completata.
+         */
+        void onStageCompleted(StickerJob job, Stage stage);
+    }
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Costruttore della classe, per eseguire le fasi direttamente dai thread del chiamante.
+     * @param context contesto usato per caricare le immagini, il modello e le preferenze.
+     */
+    public StickerPipeline(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Costruttore della classe.
+     * @param context contesto usato per caricare le immagini, il modello e le preferenze.
+     * @param executor l'executor su cui {@link #submit} esegue i job, o null.
+     */
+    public StickerPipeline(Context context, ExecutorService executor) {
+        if (context == null) throw new IllegalArgumentException();
+
+        mContext = context.getApplicationContext();
+        mExecutor = executor;
+    }
+
+    /**
+     * Crea un job con le preferenze correnti dell'utente.
+     * @param uri l'immagine da elaborare.
+     * @param width la larghezza dello sticker.
+     * @param height l'altezza dello sticker.
+     * @return il job.
+     */
+    public StickerJob newJob(Uri uri, int width, int height) {
+        boolean softEdges = mContext.getSharedPreferences(ImagePickerActiviy.MY_PREFERENCES, Context.MODE_PRIVATE)
+                .getBoolean("bordiMorbidi", false);
+
+
+        return new StickerJob(uri, width, height, softEdges);
+    }
+
+    /**
+     * Esegue un job sull'executor della pipeline.
+     * @param job il job da elaborare.
+     * @param listener notificato al termine di ogni fase, o null.
+     * @return il risultato futuro dell'elaborazione.
+     * @throws IllegalStateException se la pipeline è stata creata senza executor.
+     */
+    public Future<StickerResult> submit(final StickerJob job, final Listener listener) {
+        if (mExecutor == null) throw new IllegalStateException("No executor");
+
+        return mExecutor.submit(new Callable<StickerResult>() {
+            @Override
+            public StickerResult call() {
+                return run(job, listener);
+            }
+        });
+    }
+
+    /**
+     * Esegue tutte le fasi di un job nel thread chiamante. Se la stessa immagine è già stata
+     * elaborata con gli stessi parametri il risultato viene letto da {@link StickerCache}, senza
+     * caricare l'immagine né eseguire la rete; altrimenti lo sticker creato viene salvato in
+     * cache nello stesso thread, prima di restituire il risultato: una scrittura affidata
+     * all'executor andrebbe persa, o farebbe fallire il job, se questo viene chiuso nel frattempo.
+     * @param job il job da elaborare.
+     * @param listener notificato al termine di ogni fase, o null.
+     * @return il risultato dell'elaborazione.
+     */
+    public StickerResult run(final StickerJob job, Listener listener) {
+        StickerCache cache = StickerCache.getInstance(mContext);
+        String key = cacheKey(job);
+
+        StickerCache.Entry entry = key != null ? cache.get(key) : null;
+        if (entry != null) {
+            Log.d(TAG, "Sticker dalla cache: " + key);
+            job.mask = entry.mask;
+            job.sticker = entry.sticker;
+            return job.toResult();
+        }
+
+        if (decode(job, listener)) {
+            // L'immagine ridotta resta nel risultato, ad esempio per la cache in memoria
+            job.input = job.source;
+            if (segment(job, listener)) finish(job, listener);
+        }
+        StickerResult result = job.toResult();
+
+        if (key != null && result.isSuccessful()) cache.put(key, result.getMask(), result.getSticker());
+
+
+        return result;
+    }
+
+    /**
+     * Chiave di {@link StickerCache} del job: i byte dell'immagine così come sono salvati,
+     * senza decodificarla, e tutti i parametri che influenzano il risultato.
+     * @param job il job.
+     * @return la chiave, null se l'immagine o il modello non sono leggibili.
+     */
+    private String cacheKey(StickerJob job) {
+        InputStream input = null;
+        try {
+            String params = job.width + "x" + job.height + ";soft=" + job.softEdges +
+                    ";tolerance=" + COMPONENT_TOLERANCE + ";border=" + BORDER_RADIUS +
+                    ";threshold=" + ALPHA_THRESHOLD + ";model=" + ModelRegistry.getModelId(mContext);
+
+            input = mContext.getContentResolver().openInputStream(job.uri);
+            if (input == null) return null;
+
+            return StickerCache.key(input, params);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "No cache key for " + job.uri + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Fase di caricamento: lettura, rotazione e ritaglio dell'immagine, scalamento alle
+     * dimensioni dello sticker. È la fase limitata dall'I/O.
+     * @param job il job da elaborare.
+     * @param listener notificato al termine della fase, o null.
+     * @return true se il job può proseguire.
+     */
+    public boolean decode(StickerJob job, Listener listener) {
+        if (!job.isAlive()) return false;
+        long start = System.currentTimeMillis();
+
+        Bitmap bmp;
+        try {
+
+            // Ruota la bitmap se necessario.
+            bmp = StickerCreationUtils.handleSamplingAndRotationBitmap(mContext, job.uri);
+            // Ritaglia la bitmap a un quadrato.
+            bmp = StickerCreationUtils.crop(bmp);
+
+        } catch (IOException e) {
+            Log.e(TAG, "Error during loading of image: " + e.getMessage());
+            job.fail(StickerResult.Status.ERROR);
+            return false;
+        }
+
+        // Scalamento alle dimensioni dello sticker
+        job.source = Bitmap.createScaledBitmap(bmp, job.width, job.height, true);
+        // Copia sulla quale applicare la maschera
+        job.original = Bitmap.createBitmap(job.source);
+
+        completed(job, Stage.DECODE, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Fasi di preparazione e inferenza, eseguite sul thread di un segmentatore del pool:
+     * campionamento dell'immagine alla risoluzione della rete, esecuzione della rete e
+     * decodifica della maschera (e della maschera morbida, se richiesta).
+     * @param job il job da elaborare.
+     * @param listener notificato al termine di ogni fase, o null.
+     * @return true se il job può proseguire.
+     */
+    public boolean segment(final StickerJob job, Listener listener) {
+        if (!job.isAlive()) return false;
+
+        allocateMasks(job);
+
+        boolean foundPerson;
+        try {
+            foundPerson = getPool().execute(new SegmentatorPool.Task<Boolean>() {
+                @Override
+                public Boolean run(SemanticSegmentator segmentator) {
+                    long start = System.currentTimeMillis();
+                    segmentator.prepare(job.source, job.sampling);
+                    long prepared = System.currentTimeMillis();
+                    segmentator.infer();
+                    boolean found = segmentator.decode(job.mask, job.alpha);
+
+                    job.times[Stage.PREPROCESS.ordinal()] = prepared - start;
+                    job.times[Stage.INFER.ordinal()] = System.currentTimeMillis() - prepared;
+
+
+                    return found;
+                }
+            });
+        } catch (IOException e) {
+            // Dal caricamento del modello nel pool o dal task stesso
+            Log.e(TAG, "Segmentation failed for " + job.uri + ": " + e.getMessage());
+            job.fail(StickerResult.Status.ERROR);
+            return false;
+        }
+
+
+        return segmented(job, foundPerson, listener);
+    }
+
+    /**
+     * Fasi di preparazione e inferenza per più job insieme, con un'unica inferenza tramite
+     * {@link SemanticSegmentator#segmentBatch(List, int, List, List)}. I job già falliti vengono
+     * saltati; se i job hanno campionamenti diversi vengono segmentati uno alla volta.
+     * Nel lotto preparazione e inferenza sono cronometrate insieme e il tempo viene ripartito
+     * tra i job come tempo di inferenza.
+     * @param jobs i job da elaborare: al ritorno quelli che possono proseguire sono vivi.
+     * @param listener notificato al termine di ogni fase di ogni job, o null.
+     */
+    public void segment(List<StickerJob> jobs, Listener listener) {
+        final List<StickerJob> batch = new ArrayList<>();
+        for (StickerJob job : jobs) {
+            if (job.isAlive()) {
+                allocateMasks(job);
+                batch.add(job);
+            }
+        }
+        if (batch.isEmpty()) return;
+
+        final int sampling = batch.get(0).sampling;
+        for (StickerJob job : batch) {
+            if (job.sampling != sampling) {
+                for (StickerJob single : batch) segment(single, listener);
+                return;
+            }
+        }
+
+        final List<Bitmap> bitmaps = new ArrayList<>(batch.size());
+        final List<MaskRaster> masks = new ArrayList<>(batch.size());
+        final List<AlphaMatte> alphas = new ArrayList<>(batch.size());
+        for (StickerJob job : batch) {
+            bitmaps.add(job.source);
+            masks.add(job.mask);
+            alphas.add(job.alpha);
+        }
+
+        List<MaskRaster> found;
+        long start = System.currentTimeMillis();
+        try {
+            found = getPool().execute(new SegmentatorPool.Task<List<MaskRaster>>() {
+                @Override
+                public List<MaskRaster> run(SemanticSegmentator segmentator) {
+                    return segmentator.segmentBatch(bitmaps, sampling, masks, alphas);
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Segmentation failed for a batch of " + batch.size() + " images: " + e.getMessage());
+            for (StickerJob job : batch) job.fail(StickerResult.Status.ERROR);
+            return;
+        }
+        long elapsed = (System.currentTimeMillis() - start) / batch.size();
+
+        for (int k = 0; k < batch.size(); k++) {
+            StickerJob job = batch.get(k);
+            job.times[Stage.INFER.ordinal()] = elapsed;
+            segmented(job, found.get(k) != null, listener);
+        }
+    }
+
+    /**
+     * @return il pool dei segmentatori su cui girano preparazione e inferenza, quello condiviso
+     *         dall'app. Sovrascritto nei test per usare un backend finto.
+     */
+    SegmentatorPool getPool() {
+        return SegmentatorPool.getInstance(mContext);
+    }
+
+    /**
+     * Fattore di campionamento alla risoluzione della rete, lo stesso con cui riscalare la
+     * maschera, e maschere della segmentazione.
+     */
+    private static void allocateMasks(StickerJob job) {
+        job.sampling = SemanticSegmentator.getSampling(job.source.getHeight());
+        int size = job.source.getWidth() / job.sampling;
+        job.mask = new MaskRaster(size, size);
+        job.alpha = job.softEdges ? new AlphaMatte(size, size) : null;
+    }
+
+    /**
+     * Notifica preparazione e inferenza e chiude il job se non è stata trovata alcuna persona.
+     * @return true se il job può proseguire.
+     */
+    private static boolean segmented(StickerJob job, boolean foundPerson, Listener listener) {
+        report(job, Stage.PREPROCESS, listener);
+        report(job, Stage.INFER, listener);
+
+        // Controllo sulla presenza di persone
+        if (!foundPerson) {
+            job.fail(StickerResult.Status.NO_PERSON);
+            return false;
+        }
+
+        // La bitmap ridotta non serve più
+        job.source = null;
+
+
+        return true;
+    }
+
+    /**
+     * Fasi di post-elaborazione, limitate dalla CPU: isolamento della componente, riempimento
+     * dei buchi, riscalamento, contorno e composizione dello sticker.
+     * @param job il job da elaborare.
+     * @param listener notificato al termine di ogni fase, o null.
+     * @return true se lo sticker è stato creato.
+     */
+    public boolean finish(StickerJob job, Listener listener) {
+        if (!job.isAlive()) return false;
+
+
+        return label(job, listener) && fill(job, listener) && upscale(job, listener) &&
+                outline(job, listener) && compose(job, listener);
+    }
+
+    /**
+     * Isolamento della componente connessa più grande. Etichettatura per run della maschera
+     * binaria in 8-connettività, così da non staccare arti sottili collegati in diagonale.
+     * Il filtro riscrive sul posto la maschera segmentata.
+     */
+    private boolean label(StickerJob job, Listener listener) {
+        long start = System.currentTimeMillis();
+
+        RunLengthComponents components = new RunLengthComponents(job.mask, ConnectedComponentsLabeler.CONNECTIVITY_8);
+        MaskRaster labeled = components.largestConnectedComponentFilter(Color.GRAY, Color.TRANSPARENT,
+                COMPONENT_TOLERANCE, job.mask);
+
+        // Se trovata una macchia troppo piccola il job termina
+        if (labeled == null) {
+            job.fail(StickerResult.Status.NO_PERSON);
+            return false;
+        }
+        job.mask = labeled;
+
+        completed(job, Stage.LABEL, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Riempimento di tutti i buchi della componente, etichettando le componenti di sfondo che
+     * non toccano il margine. Le isole sono già state rimosse dall'isolamento della componente.
+     */
+    private boolean fill(StickerJob job, Listener listener) {
+        long start = System.currentTimeMillis();
+
+        job.mask = StickerCreationUtils.fillHoles(job.mask, Color.GRAY, Color.TRANSPARENT, Integer.MAX_VALUE, 0);
+
+        completed(job, Stage.FILL, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Riscalamento della maschera fino alle dimensioni dello sticker: Scale2x/Scale3x in un
+     * solo passaggio per la maschera binaria, interpolazione bilineare per la maschera morbida
+     * limitata alla componente.
+     */
+    private boolean upscale(StickerJob job, Listener listener) {
+        long start = System.currentTimeMillis();
+
+        if (job.alpha != null) {
+            job.alpha.clip(job.mask, Color.TRANSPARENT);
+            job.stickerAlpha = job.alpha.upsample(new AlphaMatte(job.original.getHeight(), job.original.getWidth()));
+        } else {
+            MaskRaster scaled = new MaskRaster(job.mask.width * job.sampling, job.mask.height * job.sampling);
+            job.stickerMask = ScaleNx.scale(job.mask, job.sampling, scaled);
+        }
+
+        completed(job, Stage.UPSCALE, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Contorno bianco attorno alla figura, come soglia sulla trasformata distanza. Con la
+     * maschera morbida la figura è ottenuta sogliandola a metà opacità.
+     */
+    private boolean outline(StickerJob job, Listener listener) {
+        long start = System.currentTimeMillis();
+
+        if (job.stickerAlpha != null) {
+            MaskRaster figure = job.stickerAlpha.toMask(new MaskRaster(job.stickerAlpha.width, job.stickerAlpha.height),
+                    ALPHA_THRESHOLD, Color.GRAY, Color.TRANSPARENT);
+            job.stickerMask = StickerCreationUtils.growBorder(figure, BORDER_RADIUS, Color.TRANSPARENT, Color.WHITE);
+        } else {
+            job.stickerMask = StickerCreationUtils.growBorder(job.stickerMask, BORDER_RADIUS, Color.TRANSPARENT,
+                    Color.WHITE);
+        }
+
+        completed(job, Stage.OUTLINE, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Applicazione della maschera sull'immagine originale.
+     */
+    private boolean compose(StickerJob job, Listener listener) {
+        long start = System.currentTimeMillis();
+
+        if (job.stickerAlpha != null) {
+            job.sticker = StickerCreationUtils.applyMask(job.original, job.stickerAlpha, job.stickerMask,
+                    Color.TRANSPARENT, Color.WHITE);
+        } else {
+            job.sticker = StickerCreationUtils.applyMask(job.original, job.stickerMask, job.width, job.height,
+                    Color.TRANSPARENT, Color.WHITE);
+        }
+
+        // I risultati intermedi non servono più
+        job.original = null;
+        job.alpha = null;
+        job.stickerAlpha = null;
+        job.stickerMask = null;
+
+        completed(job, Stage.COMPOSE, start, listener);
+
+
+        return true;
+    }
+
+    /**
+     * Registra il tempo di una fase e notifica il listener.
+     */
+    private static void completed(StickerJob job, Stage stage, long start, Listener listener) {
+        job.times[stage.ordinal()] = System.currentTimeMillis() - start;
+        report(job, stage, listener);
+    }
+
+    /**
+     * Notifica il listener del completamento di una fase.
+     */
+    private static void report(StickerJob job, Stage stage, Listener listener) {
+        Log.d(TAG, "Fase " + stage + ": " + job.times[stage.ordinal()] + "ms");
+        if (listener != null) listener.onStageCompleted(job, stage);
+    }
+}
@@ -0,0 +1,121 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+public class StickerResult {
+    /**
+     * Risultato di un'elaborazione di {@link StickerPipeline}: lo sticker e la maschera della
+     * figura, se creati, l'immagine di partenza se disponibile, l'esito e il tempo di ogni fase.
+     * È immutabile e può passare liberamente da un thread all'altro.
+     */
+
+    /**
+     * Esito dell'elaborazione.
+     */
+    public enum Status {
+        // Sticker creato
+        OK,
+        // Nessuna persona trovata, o figura troppo piccola
+        NO_PERSON,
+        // Immagine o modello non caricabili
+        ERROR
+    }
+
+    private final Uri mUri;
+    private final Status mStatus;
+    private final Bitmap mSticker;
+    private final MaskRaster mMask;
+    private final Bitmap mSource;
+    private final long[] mTimes;
+
+    /**
+     * Costruttore della classe.
+     * @param uri l'immagine elaborata.
+     * @param status l'esito.
+     * @param sticker lo sticker, null se l'elaborazione non è riuscita.
+     * @param mask la maschera finale alla risoluzione della rete, o null.
+     * @param source l'immagine ritagliata alle dimensioni dello sticker, o null.
+     * @param times il tempo di ogni fase, indicizzato con {@link StickerPipeline.Stage#ordinal()}.
+     */
+    public StickerResult(Uri uri, Status status, Bitmap sticker, MaskRaster mask, Bitmap source, long[] times) {
+        if (status == null || times == null || (status == Status.OK) != (sticker != null)) throw new IllegalArgumentException();
+
+        mUri = uri;
+        mStatus = status;
+        mSticker = sticker;
+        mMask = sticker != null ? mask : null;
+        mSource = sticker != null ? source : null;
+        mTimes = times.clone();
+    }
+
+    /**
+     * @return l'immagine elaborata.
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return l'esito dell'elaborazione.
+     */
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return true se lo sticker è stato creato.
+     */
+    public boolean isSuccessful() {
+        return mStatus == Status.OK;
+    }
+
+    /**
+     * @return lo sticker, null se l'elaborazione non è riuscita.
+     */
+    public Bitmap getSticker() {
+        return mSticker;
+    }
+
+    /**
+     * @return la maschera finale della figura alla risoluzione della rete, null se
+     *         l'elaborazione non è riuscita. Non va modificata.
+     */
+    public MaskRaster getMask() {
+        return mMask;
+    }
+
+    /**
+     * @return l'immagine ritagliata alle dimensioni dello sticker da cui è stato creato, null
+     *         se l'elaborazione non è riuscita o se lo sticker viene dalla cache su disco.
+     */
+    public Bitmap getSource() {
+        return mSource;
+    }
+
+    /**
+     * @param stage la fase.
+     * @return il tempo della fase in millisecondi, 0 se non è stata eseguita.
+     */
+    public long getStageTime(StickerPipeline.Stage stage) {
+        return mTimes[stage.ordinal()];
+    }
+
+    /**
+     * @return il tempo di inferenza: preparazione dell'ingresso ed esecuzione della rete.
+     */
+    public long getInferenceTime() {
+        return getStageTime(StickerPipeline.Stage.PREPROCESS) + getStageTime(StickerPipeline.Stage.INFER);
+    }
+
+    /**
+     * @return la somma dei tempi di tutte le fasi.
+     */
+    public long getTotalTime() {
+        long total = 0;
+        for (long t : mTimes) total += t;
+
+
+        return total;
+    }
+}
@@ -0,0 +1,90 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+public class TensorSpec {
+    /**
+     * Descrizione di un tensore di ingresso o di uscita del modello: tipo, forma e parametri
+     * di quantizzazione. Permette al segmentatore di preparare i buffer senza dipendere
+     * dall'interprete, così che ogni {@link SegmentationBackend} possa descrivere i propri tensori.
+     */
+
+    public final DataType type;
+    public final int[] shape;
+
+    // Parametri di quantizzazione: valore reale = (q - zeroPoint) * scale. Scala nulla per i float
+    public final float scale;
+    public final int zeroPoint;
+
+    /**
+     * Costruttore della classe.
+     * @param type il tipo degli elementi.
+     * @param shape la forma del tensore.
+     * @param scale la scala di quantizzazione, 0 se il tensore non è quantizzato.
+     * @param zeroPoint lo zero di quantizzazione.
+     */
+    public TensorSpec(DataType type, int[] shape, float scale, int zeroPoint) {
+        if (type == null || shape == null) throw new IllegalArgumentException();
+
+        this.type = type;
+        this.shape = shape.clone();
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    /**
+     * Crea la descrizione di un tensore dell'interprete.
+     * @param tensor il tensore.
+     * @return la descrizione.
+     */
+    public static TensorSpec of(Tensor tensor) {
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        float scale = params != null ? params.getScale() : 0;
+        int zeroPoint = params != null ? params.getZeroPoint() : 0;
+
+
+        return new TensorSpec(tensor.dataType(), tensor.shape(), scale, zeroPoint);
+    }
+
+    /**
+     * @return true se il tensore è quantizzato a 8 bit.
+     */
+    public boolean isQuantized() {
+        return type == DataType.UINT8 || type == DataType.INT8;
+    }
+
+    /**
+     * @return il numero di elementi.
+     */
+    public int numElements() {
+        int count = 1;
+        for (int d : shape) count *= d;
+
+
+        return count;
+    }
+
+    /**
+     * @return il numero di byte per elemento.
+     * @throws IllegalArgumentException se il tipo non è supportato.
+     */
+    public int bytesPerElement() {
+        switch (type) {
+            case FLOAT32:
+                return 4;
+            case UINT8:
+            case INT8:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Unsupported tensor type: " + type);
+        }
+    }
+
+    /**
+     * @return la dimensione in byte del tensore.
+     */
+    public int numBytes() {
+        return numElements() * bytesPerElement();
+    }
+}
@@ -0,0 +1,167 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.nio.ByteBuffer;
+
+public class TfLiteBackend implements SegmentationBackend {
+    /**
+     * Backend basato sull'interprete di TensorFlow Lite, in una delle configurazioni:
+     * CPU con un dato numero di thread, CPU con XNNPACK, NNAPI oppure delegato GPU.
+     * Interprete ed eventuale delegato vengono creati nel costruttore: se il delegato non
+     * è disponibile sul dispositivo il costruttore fallisce con un'eccezione e non resta
+     * nulla da rilasciare.
+     */
+
+    /**
+     * Configurazioni disponibili.
+     */
+    public enum Kind { CPU, XNNPACK, NNAPI, GPU }
+
+    private final Kind mKind;
+    private final int mNumThreads;
+    private Interpreter mInterpreter;
+    private GpuDelegate mGpuDelegate;
+    private TensorSpec mInputSpec;
+    private TensorSpec mOutputSpec;
+
+    /**
+     * Costruttore della classe.
+     * @param model il modello mappato in memoria.
+     * @param kind la configurazione.
+     * @param numThreads il numero di thread per CPU e XNNPACK, ignorato dagli acceleratori.
+     * @throws IllegalArgumentException se il modello o il delegato non possono essere inizializzati.
+     */
+    public TfLiteBackend(ByteBuffer model, Kind kind, int numThreads) {
+        if (model == null || kind == null || numThreads < 1) throw new IllegalArgumentException();
+
+        mKind = kind;
+        mNumThreads = numThreads;
+
+        Interpreter.Options options = new Interpreter.Options();
+        switch (kind) {
+            case CPU:
+                options.setNumThreads(numThreads);
+                break;
+            case XNNPACK:
+                options.setNumThreads(numThreads);
+                options.setUseXNNPACK(true);
+                break;
+            case NNAPI:
+                options.setUseNNAPI(true);
+                break;
+            case GPU:
+                mGpuDelegate = new GpuDelegate();
+                options.addDelegate(mGpuDelegate);
+                break;
+        }
+
+        // Istanziamento dell'interprete, la preparazione del grafo avviene qui una volta sola
+        try {
+            mInterpreter = new Interpreter(model, options);
+            mInputSpec = TensorSpec.of(mInterpreter.getInputTensor(0));
+            mOutputSpec = TensorSpec.of(mInterpreter.getOutputTensor(0));
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Crea un backend a partire dal nome restituito da {@link #getName()}.
+     * @param model il modello mappato in memoria.
+     * @param name il nome della configurazione, ad esempio "GPU" o "CPU:4".
+     * @return il backend.
+     * @throws IllegalArgumentException se il nome non è valido o il backend non può essere inizializzato.
+     */
+    public static TfLiteBackend fromName(ByteBuffer model, String name) {
+        if (name == null) throw new IllegalArgumentException();
+
+        int separator = name.indexOf(':');
+        Kind kind = Kind.valueOf(separator < 0 ? name : name.substring(0, separator));
+        int numThreads = separator < 0 ? 1 : Integer.parseInt(name.substring(separator + 1));
+
+
+        return new TfLiteBackend(model, kind, numThreads);
+    }
+
+    /**
+     * @param kind la configurazione.
+     * @param numThreads il numero di thread.
+     * @return il nome della configurazione: il numero di thread compare solo per CPU e XNNPACK.
+     */
+    public static String nameOf(Kind kind, int numThreads) {
+        if (kind == Kind.CPU || kind == Kind.XNNPACK) return kind + ":" + numThreads;
+
+
+        return kind.toString();
+    }
+
+    @Override
+    public String getName() {
+        return nameOf(mKind, mNumThreads);
+    }
+
+    @Override
+    public TensorSpec getInputSpec() {
+        return mInputSpec;
+    }
+
+    @Override
+    public TensorSpec getOutputSpec() {
+        return mOutputSpec;
+    }
+
+    @Override
+    public void resizeBatch(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException();
+        if (mInterpreter == null) throw new IllegalStateException("Backend already closed");
+
+        // La forma corrente viene letta dall'interprete, non dalla descrizione salvata
+        int[] shape = mInterpreter.getInputTensor(0).shape();
+        if (shape[0] == batchSize) return;
+
+        try {
+            resize(shape, batchSize);
+        } catch (RuntimeException e) {
+            // L'interprete può essere rimasto con il nuovo ingresso e tensori non allocati:
+            //  si torna a una immagine così che le inferenze singole restino possibili
+            resize(shape, 1);
+            throw e;
+        } finally {
+            mInputSpec = TensorSpec.of(mInterpreter.getInputTensor(0));
+            mOutputSpec = TensorSpec.of(mInterpreter.getOutputTensor(0));
+        }
+    }
+
+    /**
+     * Cambia solo la prima dimensione dell'ingresso e rialloca i tensori: la forma
+     * dell'uscita viene ricalcolata dall'interprete.
+     */
+    private void resize(int[] shape, int batchSize) {
+        int[] resized = shape.clone();
+        resized[0] = batchSize;
+        mInterpreter.resizeInput(0, resized);
+        mInterpreter.allocateTensors();
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output) {
+        if (mInterpreter == null) throw new IllegalStateException("Backend already closed");
+
+        mInterpreter.run(input, output);
+    }
+
+    @Override
+    public void close() {
+        if (mInterpreter != null) {
+            mInterpreter.close();
+            mInterpreter = null;
+        }
+        if (mGpuDelegate != null) {
+            mGpuDelegate.close();
+            mGpuDelegate = null;
+        }
+    }
+}
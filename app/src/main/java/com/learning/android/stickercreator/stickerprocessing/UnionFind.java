@@ -0,0 +1,137 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import java.util.Arrays;
+
+class UnionFind {
+    /**
+     * Tabella delle equivalenze tra etichette provvisorie, usata dagli etichettatori
+     * di componenti connesse. Implementa union-find con compressione dei cammini
+     * e unione per rango, così che ogni operazione abbia costo quasi costante.
+     * La tabella cresce con il numero di etichette effettivamente create e non con
+     * il numero di pixel. L'etichetta 0 è riservata allo sfondo.
+     */
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    // Padre di ogni etichetta e rango (limite superiore all'altezza) delle radici
+    private int[] mParent;
+    private byte[] mRank;
+
+    // Numero di etichette create, esclusa quella di sfondo
+    private int mCount;
+
+    /**
+     * Costruttore della classe con capacità iniziale di default.
+     */
+    UnionFind() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Costruttore della classe.
+     * @param capacity numero di etichette previste, la tabella cresce se necessario.
+     */
+    UnionFind(int capacity) {
+        if (capacity < 1) capacity = 1;
+
+        mParent = new int[capacity + 1];
+        mRank = new byte[capacity + 1];
+        mCount = 0;
+    }
+
+    /**
+     * Crea un nuovo set.
+     * @return l'etichetta del set appena creato.
+     */
+    int makeSet() {
+        mCount++;
+
+        // Crescita geometrica della tabella
+        if (mCount == mParent.length) {
+            int capacity = mParent.length * 2;
+            mParent = Arrays.copyOf(mParent, capacity);
+            mRank = Arrays.copyOf(mRank, capacity);
+        }
+        mParent[mCount] = mCount;
+
+
+        return mCount;
+    }
+
+    /**
+     * Accoda le etichette di un'altra tabella, traslandole di un offset pari al numero
+     * di etichette già presenti. Le equivalenze dell'altra tabella vengono mantenute.
+     * @param other la tabella da accodare.
+     * @return l'offset da sommare alle etichette di other per ottenere quelle in questa tabella.
+     */
+    int append(UnionFind other) {
+        int offset = mCount;
+        int count = mCount + other.mCount;
+
+        if (count >= mParent.length) {
+            int capacity = Math.max(mParent.length * 2, count + 1);
+            mParent = Arrays.copyOf(mParent, capacity);
+            mRank = Arrays.copyOf(mRank, capacity);
+        }
+
+        for (int l = 1; l <= other.mCount; l++) {
+            mParent[offset + l] = other.mParent[l] + offset;
+            mRank[offset + l] = other.mRank[l];
+        }
+        mCount = count;
+
+
+        return offset;
+    }
+
+    /**
+     * Trova il rappresentante del set, comprimendo il cammino percorso
+     * (ogni nodo visitato viene collegato direttamente alla radice).
+     * @param x un'etichetta del set.
+     * @return il rappresentante del set.
+     */
+    int find(int x) {
+        int root = x;
+        while (mParent[root] != root) root = mParent[root];
+
+        // Compressione del cammino
+        while (mParent[x] != root) {
+            int next = mParent[x];
+            mParent[x] = root;
+            x = next;
+        }
+
+
+        return root;
+    }
+
+    /**
+     * Unisce due set appendendo l'albero di rango minore a quello di rango maggiore.
+     * @param x un'etichetta del primo set.
+     * @param y un'etichetta del secondo set.
+     * @return il rappresentante dell'unione.
+     */
+    int union(int x, int y) {
+        int rootX = find(x);
+        int rootY = find(y);
+        if (rootX == rootY) return rootX;
+
+        if (mRank[rootX] < mRank[rootY]) {
+            mParent[rootX] = rootY;
+            return rootY;
+        }
+
+        if (mRank[rootX] == mRank[rootY]) mRank[rootX]++;
+        mParent[rootY] = rootX;
+
+
+        return rootX;
+    }
+
+    /**
+     * @return il numero di etichette create, esclusa quella di sfondo.
+     */
+    int size() {
+        return mCount;
+    }
+}
@@ -0,0 +1,171 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link BackendSelector}: benchmark e ripiego tra backend finti, alcuni dei quali
+ * non si inizializzano o falliscono l'inferenza come farebbero GPU e NNAPI su alcuni dispositivi.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackendSelectorTest {
+
+    private static final List<String> CANDIDATES = Arrays.asList("GPU", "NNAPI", "XNNPACK:4", "CPU:4");
+    private static final List<String> CPU_CANDIDATES = Arrays.asList("NNAPI", "XNNPACK:4", "CPU:4");
+
+    private SharedPreferences mPreferences;
+
+    /**
+     * Crea backend finti con un ritardo di inferenza per nome e registra i backend creati.
+     */
+    private static class TestFactory implements BackendSelector.Factory {
+        final Map<String, Long> delays = new HashMap<>();
+        final Set<String> unavailable = new HashSet<>();
+        final Set<String> failing = new HashSet<>();
+        final List<String> created = new ArrayList<>();
+        final List<FakeSegmentationBackend> backends = new ArrayList<>();
+
+        @Override
+        public SegmentationBackend create(final String name) {
+            created.add(name);
+            if (unavailable.contains(name)) throw new UnsatisfiedLinkError("No native library for " + name);
+
+            final long delay = delays.containsKey(name) ? delays.get(name) : 0;
+            FakeSegmentationBackend backend = new FakeSegmentationBackend(1, 0, 0, 0, 0) {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public void run(ByteBuffer input, ByteBuffer output) {
+                    if (failing.contains(name)) throw new IllegalStateException("Inference failed on " + name);
+
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    super.run(input, output);
+                }
+            };
+            backends.add(backend);
+
+
+            return backend;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mPreferences = RuntimeEnvironment.application.getSharedPreferences("BackendSelectorTest", Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void benchmark_picksFastestWorkingBackend() {
+        TestFactory factory = new TestFactory();
+        factory.failing.add("GPU");
+        factory.unavailable.add("NNAPI");
+        factory.delays.put("XNNPACK:4", 30L);
+
+        assertEquals("CPU:4", BackendSelector.benchmark(factory, CANDIDATES));
+
+        // Ogni backend creato dal benchmark viene chiuso, anche quello che fallisce
+        assertEquals(CANDIDATES, factory.created);
+        for (FakeSegmentationBackend backend : factory.backends) assertTrue(backend.isClosed());
+    }
+
+    @Test
+    public void benchmark_returnsNullWhenNoBackendWorks() {
+        TestFactory factory = new TestFactory();
+        factory.failing.add("GPU");
+        factory.unavailable.addAll(CPU_CANDIDATES);
+
+        assertNull(BackendSelector.benchmark(factory, CANDIDATES));
+    }
+
+    @Test
+    public void create_savesBenchmarkChoice() throws IOException {
+        TestFactory factory = new TestFactory();
+        factory.delays.put("GPU", 30L);
+        factory.delays.put("NNAPI", 30L);
+        factory.delays.put("CPU:4", 30L);
+
+        SegmentationBackend backend = BackendSelector.create(mPreferences, true, CANDIDATES, factory);
+
+        assertEquals("XNNPACK:4", backend.getName());
+        assertEquals("XNNPACK:4", mPreferences.getString(BackendSelector.KEY_BACKEND, null));
+        assertTrue(mPreferences.getBoolean(BackendSelector.KEY_BACKEND_GPU, false));
+
+        // Alla creazione successiva il backend salvato viene creato direttamente
+        TestFactory next = new TestFactory();
+        assertEquals("XNNPACK:4", BackendSelector.create(mPreferences, true, CANDIDATES, next).getName());
+        assertEquals(Arrays.asList("XNNPACK:4"), next.created);
+    }
+
+    @Test
+    public void create_fallsBackWhenSavedBackendIsUnavailable() throws IOException {
+        save("GPU", true);
+        TestFactory factory = new TestFactory();
+        factory.unavailable.add("GPU");
+
+        SegmentationBackend backend = BackendSelector.create(mPreferences, true, CANDIDATES, factory);
+
+        // Nessun nuovo benchmark: il salvato, poi i successivi in ordine di ripiego
+        assertEquals("NNAPI", backend.getName());
+        assertEquals(Arrays.asList("GPU", "NNAPI"), factory.created);
+        assertEquals("GPU", mPreferences.getString(BackendSelector.KEY_BACKEND, null));
+    }
+
+    @Test
+    public void create_repeatsBenchmarkWhenGpuPreferenceChanges() throws IOException {
+        save("GPU", true);
+        TestFactory factory = new TestFactory();
+        factory.delays.put("NNAPI", 30L);
+        factory.delays.put("XNNPACK:4", 30L);
+
+        SegmentationBackend backend = BackendSelector.create(mPreferences, false, CPU_CANDIDATES, factory);
+
+        assertEquals("CPU:4", backend.getName());
+        assertEquals("CPU:4", mPreferences.getString(BackendSelector.KEY_BACKEND, null));
+        assertFalse(mPreferences.getBoolean(BackendSelector.KEY_BACKEND_GPU, true));
+        assertTrue(factory.created.containsAll(CPU_CANDIDATES));
+    }
+
+    @Test(expected = IOException.class)
+    public void create_throwsWhenNoBackendIsAvailable() throws IOException {
+        TestFactory factory = new TestFactory();
+        factory.unavailable.addAll(CANDIDATES);
+
+        BackendSelector.create(mPreferences, true, CANDIDATES, factory);
+    }
+
+    /**
+     * Salva una scelta come se fosse stata fatta da un benchmark precedente.
+     */
+    private void save(String backend, boolean allowGpu) {
+        mPreferences.edit()
+                .putString(BackendSelector.KEY_BACKEND, backend)
+                .putBoolean(BackendSelector.KEY_BACKEND_GPU, allowGpu)
+                .commit();
+    }
+}
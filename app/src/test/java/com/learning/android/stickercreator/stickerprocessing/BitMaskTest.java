@@ -0,0 +1,196 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link BitMask} su maschere casuali: bordo, dilatazione ed erosione calcolati su parole
+ * da 64 pixel devono coincidere con le stesse regole applicate pixel per pixel, anche con
+ * larghezze non multiple di 64 e righe di più parole.
+ */
+public class BitMaskTest {
+
+    private static final int[] CONNECTIVITIES = {
+            ConnectedComponentsLabeler.CONNECTIVITY_4, ConnectedComponentsLabeler.CONNECTIVITY_8
+    };
+
+    // Larghezze attorno ai confini delle parole
+    private static final int[] WIDTHS = {1, 2, 31, 63, 64, 65, 127, 128, 129, 200};
+
+    private static final int BG_COLOR = 7;
+
+    @Test
+    public void fromRaster_roundTrip() {
+        Random random = new Random(11);
+        for (int width : WIDTHS) {
+            MaskRaster mask = randomMask(random, width, 1 + random.nextInt(20));
+            BitMask bits = BitMask.fromRaster(mask, BG_COLOR);
+
+            int count = 0;
+            for (int x = 0; x < mask.height; x++) {
+                for (int y = 0; y < mask.width; y++) {
+                    boolean foreground = mask.get(x, y) != BG_COLOR;
+                    assertEquals("width " + width + " (" + x + ", " + y + ")", foreground, bits.get(x, y));
+                    if (foreground) count++;
+                }
+            }
+            assertEquals(count, bits.count());
+
+            MaskRaster raster = bits.toRaster(new MaskRaster(mask.width, mask.height), 1, 0);
+            for (int x = 0; x < mask.height; x++) {
+                for (int y = 0; y < mask.width; y++) {
+                    assertEquals(mask.get(x, y) != BG_COLOR ? 1 : 0, raster.get(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void border_matchesPixelReference() {
+        Random random = new Random(12);
+        for (int round = 0; round < 100; round++) {
+            int width = round < WIDTHS.length ? WIDTHS[round] : 1 + random.nextInt(200);
+            MaskRaster mask = randomMask(random, width, 1 + random.nextInt(30));
+
+            BitMask border = BitMask.fromRaster(mask, BG_COLOR).border();
+
+            // I pixel di bordo in ordine di scansione, come li elenca toPixels
+            ArrayList<Pixel> expected = new ArrayList<>();
+            for (int x = 0; x < mask.height; x++) {
+                for (int y = 0; y < mask.width; y++) {
+                    if (isBorder(mask, x, y)) expected.add(new Pixel(x, y));
+                }
+            }
+            assertSamePixels("round " + round + ", width " + width, expected, border.toPixels());
+            assertTailIsClear("round " + round, border);
+        }
+    }
+
+    @Test
+    public void dilate_matchesPixelReference() {
+        Random random = new Random(13);
+        for (int round = 0; round < 100; round++) {
+            int width = round < WIDTHS.length ? WIDTHS[round] : 1 + random.nextInt(200);
+            MaskRaster mask = randomMask(random, width, 1 + random.nextInt(30));
+            BitMask bits = BitMask.fromRaster(mask, BG_COLOR);
+
+            for (int connectivity : CONNECTIVITIES) {
+                String message = "round " + round + ", width " + width + ", " + connectivity;
+                BitMask dilated = bits.dilate(connectivity);
+                for (int x = 0; x < mask.height; x++) {
+                    for (int y = 0; y < mask.width; y++) {
+                        // Fuori dalla maschera è sfondo
+                        boolean expected = false;
+                        for (int[] d : neighbourhood(connectivity)) {
+                            int nx = x + d[0];
+                            int ny = y + d[1];
+                            expected |= mask.contains(nx, ny) && mask.get(nx, ny) != BG_COLOR;
+                        }
+                        assertEquals(message + " (" + x + ", " + y + ")", expected, dilated.get(x, y));
+                    }
+                }
+                assertTailIsClear(message, dilated);
+            }
+        }
+    }
+
+    @Test
+    public void erode_matchesPixelReference() {
+        Random random = new Random(14);
+        for (int round = 0; round < 100; round++) {
+            int width = round < WIDTHS.length ? WIDTHS[round] : 1 + random.nextInt(200);
+            // Densità alta, altrimenti l'erosione svuota quasi tutto
+            MaskRaster mask = randomMask(random, width, 1 + random.nextInt(30), 0.85 + 0.15 * random.nextDouble());
+            BitMask bits = BitMask.fromRaster(mask, BG_COLOR);
+
+            for (int connectivity : CONNECTIVITIES) {
+                String message = "round " + round + ", width " + width + ", " + connectivity;
+                BitMask eroded = bits.erode(connectivity);
+                for (int x = 0; x < mask.height; x++) {
+                    for (int y = 0; y < mask.width; y++) {
+                        // Fuori dalla maschera è primo piano
+                        boolean expected = true;
+                        for (int[] d : neighbourhood(connectivity)) {
+                            int nx = x + d[0];
+                            int ny = y + d[1];
+                            expected &= !mask.contains(nx, ny) || mask.get(nx, ny) != BG_COLOR;
+                        }
+                        assertEquals(message + " (" + x + ", " + y + ")", expected, eroded.get(x, y));
+                    }
+                }
+                assertTailIsClear(message, eroded);
+            }
+        }
+    }
+
+    /**
+     * Regola del bordo pixel per pixel: primo piano con un vicino a 4-connettività di sfondo
+     * oppure sul margine della maschera.
+     */
+    private static boolean isBorder(MaskRaster mask, int x, int y) {
+        if (mask.get(x, y) == BG_COLOR) return false;
+        if (x == 0 || y == 0 || x == mask.height - 1 || y == mask.width - 1) return true;
+
+
+        return mask.get(x - 1, y) == BG_COLOR || mask.get(x + 1, y) == BG_COLOR ||
+                mask.get(x, y - 1) == BG_COLOR || mask.get(x, y + 1) == BG_COLOR;
+    }
+
+    /**
+     * Spostamenti della croce o del quadrato 3x3, centro compreso.
+     */
+    private static int[][] neighbourhood(int connectivity) {
+        ArrayList<int[]> offsets = new ArrayList<>();
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (connectivity == ConnectedComponentsLabeler.CONNECTIVITY_4 && dx != 0 && dy != 0) continue;
+                offsets.add(new int[]{dx, dy});
+            }
+        }
+
+
+        return offsets.toArray(new int[offsets.size()][]);
+    }
+
+    private static void assertSamePixels(String message, ArrayList<Pixel> expected, ArrayList<Pixel> actual) {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + ", pixel " + i, expected.get(i).x, actual.get(i).x);
+            assertEquals(message + ", pixel " + i, expected.get(i).y, actual.get(i).y);
+        }
+    }
+
+    /**
+     * I bit oltre la larghezza nell'ultima parola di ogni riga devono restare a zero.
+     */
+    private static void assertTailIsClear(String message, BitMask bits) {
+        int tail = bits.width & 63;
+        if (tail == 0) return;
+
+        long outside = ~((1L << tail) - 1);
+        for (int x = 0; x < bits.height; x++) {
+            assertEquals(message + ", row " + x, 0, bits.words[(x + 1) * bits.wordsPerRow - 1] & outside);
+        }
+    }
+
+    private static MaskRaster randomMask(Random random, int width, int height) {
+        return randomMask(random, width, height, 0.2 + 0.6 * random.nextDouble());
+    }
+
+    /**
+     * Maschera casuale con lo sfondo a {@link #BG_COLOR} e il primo piano a valori qualsiasi.
+     */
+    private static MaskRaster randomMask(Random random, int width, int height, double density) {
+        MaskRaster mask = new MaskRaster(width, height);
+        for (int i = 0; i < mask.data.length; i++) {
+            mask.data[i] = random.nextDouble() < density ? 1 + random.nextInt(3) : BG_COLOR;
+        }
+
+
+        return mask;
+    }
+}
@@ -0,0 +1,384 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link ConnectedComponentsLabeler} su maschere casuali: l'etichettatura per strisce
+ * in parallelo deve coincidere con quella sequenziale, etichette e statistiche comprese, e la
+ * scansione per blocchi 2x2 in 8-connettività deve trovare le stesse componenti di una visita
+ * pixel per pixel. Anche {@link RunLengthComponents}, l'etichettatore usato dalla pipeline, viene
+ * confrontato con il labeler.
+ */
+public class ConnectedComponentsLabelerTest {
+
+    private static final int[] CONNECTIVITIES = {
+            ConnectedComponentsLabeler.CONNECTIVITY_4, ConnectedComponentsLabeler.CONNECTIVITY_8
+    };
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void parallel_matchesSequential() {
+        Random random = new Random(4);
+        for (int round = 0; round < 200; round++) {
+            // Lati pari e dispari, anche più piccoli del numero di strisce
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40));
+
+            for (int connectivity : CONNECTIVITIES) {
+                ConnectedComponentsLabeler sequential = new ConnectedComponentsLabeler(mask, connectivity);
+                for (int strips = 2; strips <= 7; strips++) {
+                    ConnectedComponentsLabeler parallel = new ConnectedComponentsLabeler(mask, connectivity, mExecutor, strips);
+                    assertSameLabeling("round " + round + ", " + connectivity + ", " + strips + " strips",
+                            sequential, parallel);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallel_withoutExecutorMatchesSequential() {
+        Random random = new Random(5);
+        for (int round = 0; round < 50; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(30), 1 + random.nextInt(30));
+
+            for (int connectivity : CONNECTIVITIES) {
+                assertSameLabeling("round " + round + ", " + connectivity,
+                        new ConnectedComponentsLabeler(mask, connectivity),
+                        new ConnectedComponentsLabeler(mask, connectivity, null, 4));
+            }
+        }
+    }
+
+    @Test
+    public void parallel_readsMaskWithStride() {
+        Random random = new Random(6);
+        MaskRaster compact = randomMask(random, 23, 31);
+        MaskRaster strided = strided(compact, 5);
+
+        for (int connectivity : CONNECTIVITIES) {
+            assertSameLabeling("stride, " + connectivity,
+                    new ConnectedComponentsLabeler(compact, connectivity),
+                    new ConnectedComponentsLabeler(strided, connectivity, mExecutor, 5));
+        }
+    }
+
+    @Test
+    public void blocks8_matchesPixelReference() {
+        Random random = new Random(8);
+        for (int round = 0; round < 500; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40));
+
+            assertSameComponents("round " + round, mask, ConnectedComponentsLabeler.CONNECTIVITY_8);
+        }
+    }
+
+    @Test
+    public void blocks8_diagonalPatterns() {
+        // Scacchiera: un'unica componente, ogni pixel tocca i vicini solo in diagonale
+        MaskRaster checkerboard = new MaskRaster(17, 13);
+        for (int x = 0; x < checkerboard.height; x++) {
+            for (int y = 0; y < checkerboard.width; y++) checkerboard.set(x, y, (x + y) % 2 == 0 ? 1 : 0);
+        }
+        assertSameComponents("checkerboard", checkerboard, ConnectedComponentsLabeler.CONNECTIVITY_8);
+        assertEquals(1, new ConnectedComponentsLabeler(checkerboard, ConnectedComponentsLabeler.CONNECTIVITY_8)
+                .getComponentCount());
+
+        // Diagonali nei due versi che attraversano i blocchi a ogni coppia di righe
+        MaskRaster diagonals = new MaskRaster(20, 20);
+        for (int x = 0; x < 20; x++) {
+            diagonals.set(x, x, 1);
+            diagonals.set(x, 19 - x, 1);
+        }
+        assertSameComponents("diagonals", diagonals, ConnectedComponentsLabeler.CONNECTIVITY_8);
+
+        // Righe e colonne singole
+        Random random = new Random(9);
+        for (int size = 1; size < 12; size++) {
+            assertSameComponents("row " + size, randomMask(random, size, 1), ConnectedComponentsLabeler.CONNECTIVITY_8);
+            assertSameComponents("column " + size, randomMask(random, 1, size), ConnectedComponentsLabeler.CONNECTIVITY_8);
+        }
+    }
+
+    @Test
+    public void rows4_matchesPixelReference() {
+        Random random = new Random(10);
+        for (int round = 0; round < 200; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40));
+
+            assertSameComponents("round " + round, mask, ConnectedComponentsLabeler.CONNECTIVITY_4);
+        }
+    }
+
+    @Test
+    public void runLength_matchesLabeler() {
+        Random random = new Random(11);
+        for (int round = 0; round < 300; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40));
+
+            for (int connectivity : CONNECTIVITIES) {
+                String message = "round " + round + ", " + connectivity;
+                ConnectedComponentsLabeler labeler = new ConnectedComponentsLabeler(mask, connectivity);
+                RunLengthComponents runs = new RunLengthComponents(mask, connectivity);
+
+                assertSameComponents(message, labeler.getLabels(), labeler.getStatistics(),
+                        runLabels(runs), runs.getStatistics());
+                for (int x = -1; x <= mask.height; x++) {
+                    for (int y = -1; y <= mask.width; y++) {
+                        assertEquals(message + " (" + x + ", " + y + ")",
+                                mask.contains(x, y) && mask.get(x, y) != 0, runs.isForeground(x, y));
+                    }
+                }
+            }
+
+            // In 4-connettività anche la numerazione, per ordine di prima apparizione, coincide
+            assertArrayEquals("round " + round,
+                    new ConnectedComponentsLabeler(mask, ConnectedComponentsLabeler.CONNECTIVITY_4).getLabels().data,
+                    runLabels(new RunLengthComponents(mask, ConnectedComponentsLabeler.CONNECTIVITY_4)).data);
+        }
+    }
+
+    @Test
+    public void runLength_readsMaskWithStride() {
+        MaskRaster compact = randomMask(new Random(12), 23, 31);
+        MaskRaster strided = strided(compact, 5);
+
+        for (int connectivity : CONNECTIVITIES) {
+            RunLengthComponents expected = new RunLengthComponents(compact, connectivity);
+            RunLengthComponents actual = new RunLengthComponents(strided, connectivity);
+            assertArrayEquals("stride, " + connectivity, runLabels(expected).data, runLabels(actual).data);
+        }
+    }
+
+    @Test
+    public void runLength_largestComponentMatchesLabeler() {
+        Random random = new Random(13);
+        for (int round = 0; round < 200; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40));
+            int tolerance = random.nextInt(30);
+
+            for (int connectivity : CONNECTIVITIES) {
+                ConnectedComponentsLabeler labeler = new ConnectedComponentsLabeler(mask, connectivity);
+                ComponentStatistics stats = labeler.getStatistics();
+
+                // Con più componenti di area massima la scelta dipende dalla numerazione
+                int largest = stats.getLargest();
+                int ties = 0;
+                for (int label = 1; label <= stats.getCount(); label++) {
+                    if (stats.getArea(label) == stats.getArea(largest)) ties++;
+                }
+                if (ties > 1) continue;
+
+                MaskRaster expected = labeler.largestConnectedComponentFilter(255, 0, tolerance,
+                        new MaskRaster(mask.width, mask.height));
+                MaskRaster actual = new RunLengthComponents(mask, connectivity).largestConnectedComponentFilter(255, 0,
+                        tolerance, new MaskRaster(mask.width, mask.height));
+                String message = "round " + round + ", " + connectivity;
+                if (expected == null) assertNull(message, actual);
+                else assertArrayEquals(message, expected.data, actual.data);
+            }
+        }
+    }
+
+    /**
+     * Confronta due etichettature delle stesse componenti: le etichette possono differire ma
+     * devono corrispondersi una a una, con le stesse statistiche.
+     */
+    private static void assertSameComponents(String message, MaskRaster expectedLabels, ComponentStatistics expected,
+                                             MaskRaster actualLabels, ComponentStatistics actual) {
+        assertEquals(message, expected.getCount(), actual.getCount());
+
+        int count = expected.getCount();
+        int[] toExpected = new int[count + 1];
+        int[] fromExpected = new int[count + 1];
+        for (int i = 0; i < expectedLabels.data.length; i++) {
+            int e = expectedLabels.data[i];
+            int a = actualLabels.data[i];
+            assertEquals(message + ", background at " + i, e == 0, a == 0);
+            if (a == 0) continue;
+
+            if (toExpected[a] == 0) toExpected[a] = e;
+            if (fromExpected[e] == 0) fromExpected[e] = a;
+            assertEquals(message + ", pixel " + i, e, toExpected[a]);
+            assertEquals(message + ", pixel " + i, a, fromExpected[e]);
+        }
+
+        for (int a = 1; a <= count; a++) {
+            int e = toExpected[a];
+            String component = message + ", component " + a;
+            assertEquals(component, expected.getArea(e), actual.getArea(a));
+            assertEquals(component, expected.getMinX(e), actual.getMinX(a));
+            assertEquals(component, expected.getMinY(e), actual.getMinY(a));
+            assertEquals(component, expected.getMaxX(e), actual.getMaxX(a));
+            assertEquals(component, expected.getMaxY(e), actual.getMaxY(a));
+            assertEquals(component, expected.getBorderPixelCount(e), actual.getBorderPixelCount(a));
+            assertEquals(component, expected.getCentroidX(e), actual.getCentroidX(a), 1e-9);
+            assertEquals(component, expected.getCentroidY(e), actual.getCentroidY(a), 1e-9);
+        }
+        if (count > 0) assertEquals(message, expected.getArea(expected.getLargest()), actual.getArea(actual.getLargest()));
+    }
+
+    /**
+     * Maschera di etichette disegnata dalle run, una componente alla volta.
+     */
+    private static MaskRaster runLabels(RunLengthComponents runs) {
+        MaskRaster labels = new MaskRaster(runs.getWidth(), runs.getHeight());
+        for (int label = 1; label <= runs.getComponentCount(); label++) runs.paint(labels, label, label);
+
+
+        return labels;
+    }
+
+    /**
+     * Stessa maschera in un buffer con righe più lunghe, riempite di primo piano.
+     */
+    private static MaskRaster strided(MaskRaster compact, int padding) {
+        int stride = compact.width + padding;
+        int[] data = new int[stride * compact.height];
+        Arrays.fill(data, 1);
+        for (int x = 0; x < compact.height; x++) {
+            System.arraycopy(compact.data, x * compact.width, data, x * stride, compact.width);
+        }
+
+
+        return new MaskRaster(data, compact.width, compact.height, stride);
+    }
+
+    /**
+     * Confronta le componenti del labeler, sequenziale e in parallelo, con quelle della visita
+     * di riferimento: le etichette possono differire ma devono corrispondersi una a una, con
+     * la stessa area.
+     */
+    private void assertSameComponents(String message, MaskRaster mask, int connectivity) {
+        MaskRaster reference = referenceLabels(mask, connectivity);
+        int count = 0;
+        for (int label : reference.data) count = Math.max(count, label);
+
+        ConnectedComponentsLabeler[] labelers = {
+                new ConnectedComponentsLabeler(mask, connectivity),
+                new ConnectedComponentsLabeler(mask, connectivity, mExecutor, 3)
+        };
+        for (ConnectedComponentsLabeler labeler : labelers) {
+            assertEquals(message, count, labeler.getComponentCount());
+
+            int[] labels = labeler.getLabels().data;
+            int[] toReference = new int[count + 1];
+            int[] fromReference = new int[count + 1];
+            int[] area = new int[count + 1];
+            for (int i = 0; i < labels.length; i++) {
+                int label = labels[i];
+                int expected = reference.data[i];
+                assertEquals(message + ", background at " + i, expected == 0, label == 0);
+                if (label == 0) continue;
+
+                if (toReference[label] == 0) toReference[label] = expected;
+                if (fromReference[expected] == 0) fromReference[expected] = label;
+                assertEquals(message + ", pixel " + i, expected, toReference[label]);
+                assertEquals(message + ", pixel " + i, label, fromReference[expected]);
+                area[expected]++;
+            }
+
+            for (int label = 1; label <= count; label++) {
+                assertEquals(message + ", component " + label, area[toReference[label]],
+                        labeler.getStatistics().getArea(label));
+            }
+        }
+    }
+
+    /**
+     * Etichettatura di riferimento: visita in ampiezza da ogni pixel non ancora etichettato,
+     * in ordine di scansione, sui 4 o sugli 8 vicini.
+     */
+    private static MaskRaster referenceLabels(MaskRaster mask, int connectivity) {
+        MaskRaster labels = new MaskRaster(mask.width, mask.height);
+        Deque<int[]> queue = new ArrayDeque<>();
+        int count = 0;
+
+        for (int x = 0; x < mask.height; x++) {
+            for (int y = 0; y < mask.width; y++) {
+                if (mask.get(x, y) == 0 || labels.get(x, y) != 0) continue;
+
+                count++;
+                labels.set(x, y, count);
+                queue.add(new int[]{x, y});
+                while (!queue.isEmpty()) {
+                    int[] p = queue.poll();
+                    for (int dx = -1; dx <= 1; dx++) {
+                        for (int dy = -1; dy <= 1; dy++) {
+                            if (connectivity == ConnectedComponentsLabeler.CONNECTIVITY_4 && dx != 0 && dy != 0) continue;
+
+                            int nx = p[0] + dx;
+                            int ny = p[1] + dy;
+                            if (mask.contains(nx, ny) && mask.get(nx, ny) != 0 && labels.get(nx, ny) == 0) {
+                                labels.set(nx, ny, count);
+                                queue.add(new int[]{nx, ny});
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+
+        return labels;
+    }
+
+    /**
+     * Confronta etichette, numero di componenti e statistiche di due etichettature.
+     */
+    private static void assertSameLabeling(String message, ConnectedComponentsLabeler expected,
+                                           ConnectedComponentsLabeler actual) {
+        assertArrayEquals(message, expected.getLabels().data, actual.getLabels().data);
+
+        ComponentStatistics e = expected.getStatistics();
+        ComponentStatistics a = actual.getStatistics();
+        assertEquals(message, e.getCount(), a.getCount());
+        assertEquals(message, e.getLargest(), a.getLargest());
+        for (int label = 1; label <= e.getCount(); label++) {
+            String component = message + ", component " + label;
+            assertEquals(component, e.getArea(label), a.getArea(label));
+            assertEquals(component, e.getMinX(label), a.getMinX(label));
+            assertEquals(component, e.getMinY(label), a.getMinY(label));
+            assertEquals(component, e.getMaxX(label), a.getMaxX(label));
+            assertEquals(component, e.getMaxY(label), a.getMaxY(label));
+            assertEquals(component, e.getBorderPixelCount(label), a.getBorderPixelCount(label));
+            assertEquals(component, e.getCentroidX(label), a.getCentroidX(label), 1e-9);
+            assertEquals(component, e.getCentroidY(label), a.getCentroidY(label), 1e-9);
+        }
+    }
+
+    /**
+     * Maschera casuale con densità di primo piano variabile, per avere sia componenti isolate
+     * sia componenti estese che attraversano più strisce.
+     */
+    static MaskRaster randomMask(Random random, int width, int height) {
+        MaskRaster mask = new MaskRaster(width, height);
+        double density = 0.2 + 0.6 * random.nextDouble();
+        for (int i = 0; i < mask.data.length; i++) {
+            if (random.nextDouble() < density) mask.data[i] = 1;
+        }
+
+
+        return mask;
+    }
+}
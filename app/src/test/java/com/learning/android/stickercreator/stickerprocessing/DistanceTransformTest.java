@@ -0,0 +1,166 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link DistanceTransform} e di {@link StickerCreationUtils#growBorder(MaskRaster, int, int, int)}
+ * contro una ricerca esaustiva del pixel di primo piano più vicino: il contorno deve essere il
+ * disco euclideo attorno alla figura, solo sullo sfondo, senza toccare il primo piano.
+ */
+public class DistanceTransformTest {
+
+    private static final int BG_COLOR = 0;
+    private static final int BORDER_COLOR = 9;
+
+    @Test
+    public void squaredDistance_matchesBruteForce() {
+        Random random = new Random(21);
+        for (int round = 0; round < 300; round++) {
+            // Primo piano rado, perché le distanze non siano tutte 0 o 1
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40), 0.002 + 0.1 * random.nextDouble());
+            if (isEmpty(mask)) mask.set(random.nextInt(mask.height), random.nextInt(mask.width), 1);
+
+            assertArrayEquals("round " + round, bruteForce(mask).data,
+                    DistanceTransform.squaredDistance(mask, BG_COLOR).data);
+        }
+    }
+
+    @Test
+    public void squaredDistance_readsMaskWithStride() {
+        MaskRaster compact = randomMask(new Random(22), 23, 31, 0.05);
+        int stride = compact.width + 5;
+        int[] data = new int[stride * compact.height];
+        Arrays.fill(data, 1);
+        for (int x = 0; x < compact.height; x++) {
+            System.arraycopy(compact.data, x * compact.width, data, x * stride, compact.width);
+        }
+
+        assertArrayEquals(bruteForce(compact).data,
+                DistanceTransform.squaredDistance(new MaskRaster(data, compact.width, compact.height, stride), BG_COLOR).data);
+    }
+
+    @Test
+    public void squaredDistance_emptyAndFullMasks() {
+        for (int size = 1; size < 20; size += 3) {
+            MaskRaster empty = new MaskRaster(size + 2, size);
+            MaskRaster distance = DistanceTransform.squaredDistance(empty, BG_COLOR);
+
+            // Senza primo piano nessuna distanza è definita
+            for (int d : distance.data) assertEquals("size " + size, Integer.MAX_VALUE, d);
+
+            MaskRaster full = new MaskRaster(size + 2, size);
+            full.fill(1);
+            for (int d : DistanceTransform.squaredDistance(full, BG_COLOR).data) assertEquals(0, d);
+        }
+    }
+
+    @Test
+    public void growBorder_matchesBruteForce() {
+        Random random = new Random(23);
+        for (int round = 0; round < 200; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(40), 1 + random.nextInt(40), 0.002 + 0.05 * random.nextDouble());
+            int radius = random.nextInt(8);
+            MaskRaster distance = bruteForce(mask);
+
+            MaskRaster grown = StickerCreationUtils.growBorder(copy(mask), radius, BG_COLOR, BORDER_COLOR);
+
+            for (int i = 0; i < mask.data.length; i++) {
+                int expected = mask.data[i] != BG_COLOR ? mask.data[i] :
+                        distance.data[i] <= radius * radius ? BORDER_COLOR : BG_COLOR;
+                assertEquals("round " + round + ", radius " + radius + ", pixel " + i, expected, grown.data[i]);
+            }
+        }
+    }
+
+    @Test
+    public void growBorder_isSymmetric() {
+        // Un solo pixel al centro: il contorno è un disco, uguale a sé stesso trasposto e ribaltato
+        int size = 31;
+        MaskRaster mask = new MaskRaster(size, size);
+        mask.set(size / 2, size / 2, 1);
+
+        MaskRaster grown = StickerCreationUtils.growBorder(mask, 10, BG_COLOR, BORDER_COLOR);
+
+        assertEquals(1, grown.get(size / 2, size / 2));
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int value = grown.get(x, y);
+                String pixel = "(" + x + ", " + y + ")";
+                assertEquals(pixel, value, grown.get(y, x));
+                assertEquals(pixel, value, grown.get(size - 1 - x, y));
+                assertEquals(pixel, value, grown.get(x, size - 1 - y));
+            }
+        }
+    }
+
+    @Test
+    public void growBorder_emptyAndFullMasks() {
+        // Anche con un raggio più grande della maschera nessun contorno senza figura
+        for (int size = 1; size < 20; size += 3) {
+            MaskRaster empty = new MaskRaster(size, size + 1);
+            for (int d : StickerCreationUtils.growBorder(empty, 3 * size, BG_COLOR, BORDER_COLOR).data) {
+                assertEquals("size " + size, BG_COLOR, d);
+            }
+        }
+
+        MaskRaster full = new MaskRaster(17, 12);
+        full.fill(3);
+        for (int d : StickerCreationUtils.growBorder(full, 5, BG_COLOR, BORDER_COLOR).data) assertEquals(3, d);
+    }
+
+    /**
+     * Distanze al quadrato di riferimento: per ogni pixel il minimo su tutti i pixel di primo piano.
+     */
+    private static MaskRaster bruteForce(MaskRaster mask) {
+        MaskRaster distance = new MaskRaster(mask.width, mask.height);
+        for (int x = 0; x < mask.height; x++) {
+            for (int y = 0; y < mask.width; y++) {
+                int best = Integer.MAX_VALUE;
+                for (int i = 0; i < mask.height; i++) {
+                    for (int j = 0; j < mask.width; j++) {
+                        if (mask.get(i, j) != BG_COLOR) best = Math.min(best, (x - i) * (x - i) + (y - j) * (y - j));
+                    }
+                }
+                distance.set(x, y, best);
+            }
+        }
+
+
+        return distance;
+    }
+
+    private static boolean isEmpty(MaskRaster mask) {
+        for (int value : mask.data) {
+            if (value != BG_COLOR) return false;
+        }
+
+
+        return true;
+    }
+
+    private static MaskRaster copy(MaskRaster mask) {
+        MaskRaster copy = new MaskRaster(mask.width, mask.height);
+        System.arraycopy(mask.data, 0, copy.data, 0, mask.data.length);
+
+
+        return copy;
+    }
+
+    /**
+     * Maschera casuale con primo piano a valori diversi dal colore del bordo.
+     */
+    private static MaskRaster randomMask(Random random, int width, int height, double density) {
+        MaskRaster mask = new MaskRaster(width, height);
+        for (int i = 0; i < mask.data.length; i++) {
+            if (random.nextDouble() < density) mask.data[i] = 1 + random.nextInt(3);
+        }
+
+
+        return mask;
+    }
+}
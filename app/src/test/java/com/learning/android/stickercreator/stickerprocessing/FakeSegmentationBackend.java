@@ -0,0 +1,237 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+
+public class FakeSegmentationBackend implements SegmentationBackend {
+    /**
+     * Backend finto per i test sulla JVM: non carica alcun modello e produce un'uscita
+     * [N, 257, 257, classi] in cui, per ognuna delle N immagini del lotto, la classe persona
+     * vince dentro un rettangolo dato, in coordinate della rete (i indice di riga, j di colonna),
+     * e lo sfondo altrove. Con 21 classi la persona è la classe 15, con un solo logit questo
+     * vale 1 dentro e -1 fuori, altrimenti la persona è l'ultima classe.
+     * Con {@link #setTraceInput(boolean)} la persona sono invece i pixel dell'ingresso di
+     * ciascuna immagine con il canale rosso non nullo. I tensori sono float oppure quantizzati
+     * a 8 bit (uint8 o int8), con parametri di quantizzazione fissi.
+     */
+
+    private static final int INPUT_SIZE = 257;
+
+    // Quantizzazione dell'ingresso: con scala 1/128 i canali normalizzati coprono tutti i 256 valori
+    private static final float INPUT_SCALE = 1 / 128f;
+    private static final float OUTPUT_SCALE = 1 / 64f;
+
+    private final DataType mType;
+    private final int mNumClasses;
+    private final int mPersonClass;
+
+    private final int mTop;
+    private final int mLeft;
+    private final int mBottom;
+    private final int mRight;
+    private boolean mTraceInput;
+    private int mMaxBatch = Integer.MAX_VALUE;
+    private int mBatchSize = 1;
+    private int mRuns;
+    private boolean[] mBlank = new boolean[0];
+    private boolean mClosed;
+
+    /**
+     * Costruttore della classe. Il rettangolo è semiaperto: [top, bottom) x [left, right).
+     * @param top la prima riga della persona.
+     * @param left la prima colonna della persona.
+     * @param bottom la riga successiva all'ultima.
+     * @param right la colonna successiva all'ultima.
+     */
+    public FakeSegmentationBackend(int top, int left, int bottom, int right) {
+        this(21, top, left, bottom, right);
+    }
+
+    /**
+     * Costruttore della classe con un numero di classi dato.
+     * @param numClasses il numero di classi in uscita.
+     * @param top la prima riga della persona.
+     * @param left la prima colonna della persona.
+     * @param bottom la riga successiva all'ultima.
+     * @param right la colonna successiva all'ultima.
+     */
+    public FakeSegmentationBackend(int numClasses, int top, int left, int bottom, int right) {
+        this(DataType.FLOAT32, numClasses, top, left, bottom, right);
+    }
+
+    /**
+     * Costruttore della classe con un tipo dei tensori e un numero di classi dati.
+     * @param type il tipo dei tensori di ingresso e uscita: FLOAT32, UINT8 o INT8.
+     * @param numClasses il numero di classi in uscita.
+     * @param top la prima riga della persona.
+     * @param left la prima colonna della persona.
+     * @param bottom la riga successiva all'ultima.
+     * @param right la colonna successiva all'ultima.
+     */
+    public FakeSegmentationBackend(DataType type, int numClasses, int top, int left, int bottom, int right) {
+        if (type != DataType.FLOAT32 && type != DataType.UINT8 && type != DataType.INT8) {
+            throw new IllegalArgumentException();
+        }
+
+        mType = type;
+        mNumClasses = numClasses;
+        mPersonClass = numClasses == 21 ? 15 : numClasses - 1;
+        mTop = top;
+        mLeft = left;
+        mBottom = bottom;
+        mRight = right;
+    }
+
+    /**
+     * @param traceInput true se la persona sono i pixel dell'ingresso con il canale rosso non
+     *                   nullo invece del rettangolo.
+     */
+    public void setTraceInput(boolean traceInput) {
+        mTraceInput = traceInput;
+    }
+
+    /**
+     * @param maxBatch il lotto più lungo accettato da {@link #resizeBatch(int)}, come un modello a lotto fisso.
+     */
+    public void setMaxBatch(int maxBatch) {
+        mMaxBatch = maxBatch;
+    }
+
+    @Override
+    public String getName() {
+        return "FAKE";
+    }
+
+    @Override
+    public TensorSpec getInputSpec() {
+        return spec(new int[]{mBatchSize, INPUT_SIZE, INPUT_SIZE, 3}, INPUT_SCALE);
+    }
+
+    @Override
+    public TensorSpec getOutputSpec() {
+        return spec(new int[]{mBatchSize, INPUT_SIZE, INPUT_SIZE, mNumClasses}, OUTPUT_SCALE);
+    }
+
+    @Override
+    public void resizeBatch(int batchSize) {
+        if (batchSize < 1 || batchSize > mMaxBatch) throw new IllegalArgumentException();
+
+        mBatchSize = batchSize;
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output) {
+        if (mClosed) throw new IllegalStateException("Backend already closed");
+
+        int pixels = INPUT_SIZE * INPUT_SIZE;
+        mBlank = new boolean[mBatchSize];
+        for (int n = 0; n < mBatchSize; n++) {
+            mBlank[n] = isZero(input, n * pixels * 3 * bytesPerElement(), pixels * 3 * bytesPerElement());
+
+            for (int i = 0; i < INPUT_SIZE; i++) {
+                for (int j = 0; j < INPUT_SIZE; j++) {
+                    int pixel = n * pixels + i * INPUT_SIZE + j;
+                    boolean person = mTraceInput ? red(input, pixel * 3) > -1 :
+                            i >= mTop && i < mBottom && j >= mLeft && j < mRight;
+
+                    int base = pixel * mNumClasses;
+                    if (mNumClasses == 1) {
+                        put(output, base, person ? 1 : -1);
+                        continue;
+                    }
+
+                    int winner = person ? mPersonClass : 0;
+                    for (int c = 0; c < mNumClasses; c++) put(output, base + c, c == winner ? 1 : 0);
+                }
+            }
+        }
+        mRuns++;
+    }
+
+    /**
+     * @return il numero di immagini del lotto corrente.
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * @return il numero di inferenze eseguite.
+     */
+    public int getRuns() {
+        return mRuns;
+    }
+
+    /**
+     * @param image la posizione nel lotto.
+     * @return true se nell'ultima inferenza l'ingresso dell'immagine era tutto a zero.
+     */
+    public boolean isBlank(int image) {
+        return mBlank[image];
+    }
+
+    /**
+     * @return true se il backend è stato chiuso.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Descrizione di un tensore del tipo del backend: zero di quantizzazione a metà intervallo
+     * per uint8, nullo per int8.
+     */
+    private TensorSpec spec(int[] shape, float scale) {
+        if (mType == DataType.FLOAT32) return new TensorSpec(mType, shape, 0, 0);
+
+
+        return new TensorSpec(mType, shape, scale, zeroPoint());
+    }
+
+    private int bytesPerElement() {
+        return mType == DataType.FLOAT32 ? 4 : 1;
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int length) {
+        for (int k = from; k < from + length; k++) {
+            if (buffer.get(k) != 0) return false;
+        }
+
+
+        return true;
+    }
+
+    private int zeroPoint() {
+        return mType == DataType.UINT8 ? 128 : 0;
+    }
+
+    /**
+     * Valore normalizzato, tra -1 e 1, del canale rosso all'indice dato dell'ingresso.
+     */
+    private float red(ByteBuffer input, int index) {
+        if (mType == DataType.FLOAT32) return input.getFloat(index * 4);
+
+        int q = mType == DataType.UINT8 ? input.get(index) & 0xFF : input.get(index);
+
+
+        return (q - zeroPoint()) * INPUT_SCALE;
+    }
+
+    /**
+     * Scrive un punteggio nell'uscita, quantizzandolo se necessario.
+     */
+    private void put(ByteBuffer output, int index, float score) {
+        if (mType == DataType.FLOAT32) {
+            output.putFloat(index * 4, score);
+            return;
+        }
+
+        output.put(index, (byte) (Math.round(score / OUTPUT_SCALE) + zeroPoint()));
+    }
+}
@@ -0,0 +1,174 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link ScaleNx} contro Scale2x e Scale3x scritti pixel per pixel, con i vicini letti
+ * da un getPixel che replica il margine come nella versione originale: le colonne interne e
+ * quelle di margine, elaborate da codice separato, devono dare lo stesso risultato.
+ */
+public class ScaleNxTest {
+
+    @Test
+    public void scale2x_matchesPixelReference() {
+        Random random = new Random(31);
+        for (int round = 0; round < 300; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(20), 1 + random.nextInt(20));
+            MaskRaster target = new MaskRaster(mask.width * 2, mask.height * 2);
+
+            assertArrayEquals("round " + round, reference2x(mask).data, ScaleNx.scale2x(mask, target).data);
+        }
+    }
+
+    @Test
+    public void scale3x_matchesPixelReference() {
+        Random random = new Random(32);
+        for (int round = 0; round < 300; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(20), 1 + random.nextInt(20));
+            MaskRaster target = new MaskRaster(mask.width * 3, mask.height * 3);
+
+            assertArrayEquals("round " + round, reference3x(mask).data, ScaleNx.scale3x(mask, target).data);
+        }
+    }
+
+    @Test
+    public void scale_composesSteps() {
+        Random random = new Random(33);
+        for (int round = 0; round < 50; round++) {
+            MaskRaster mask = randomMask(random, 1 + random.nextInt(12), 1 + random.nextInt(12));
+
+            assertArrayEquals("round " + round + ", x1", mask.data, scale(mask, 1).data);
+            assertArrayEquals("round " + round + ", x2", reference2x(mask).data, scale(mask, 2).data);
+            assertArrayEquals("round " + round + ", x3", reference3x(mask).data, scale(mask, 3).data);
+            assertArrayEquals("round " + round + ", x4", reference2x(reference2x(mask)).data, scale(mask, 4).data);
+            assertArrayEquals("round " + round + ", x6", reference3x(reference2x(mask)).data, scale(mask, 6).data);
+        }
+    }
+
+    @Test
+    public void scale_readsMaskWithStride() {
+        MaskRaster compact = randomMask(new Random(34), 13, 9);
+        int stride = compact.width + 4;
+        int[] data = new int[stride * compact.height];
+        Arrays.fill(data, 7);
+        for (int x = 0; x < compact.height; x++) {
+            System.arraycopy(compact.data, x * compact.width, data, x * stride, compact.width);
+        }
+        MaskRaster strided = new MaskRaster(data, compact.width, compact.height, stride);
+
+        for (int factor = 1; factor <= 4; factor++) {
+            assertArrayEquals("x" + factor, scale(compact, factor).data, scale(strided, factor).data);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scale_rejectsOtherFactors() {
+        MaskRaster mask = new MaskRaster(4, 4);
+        ScaleNx.scale(mask, 5, new MaskRaster(20, 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scale_rejectsWrongTarget() {
+        MaskRaster mask = new MaskRaster(4, 4);
+        ScaleNx.scale(mask, 2, new MaskRaster(8, 9));
+    }
+
+    private static MaskRaster scale(MaskRaster mask, int factor) {
+        return ScaleNx.scale(mask, factor, new MaskRaster(mask.width * factor, mask.height * factor));
+    }
+
+    /**
+     * Scale2x pixel per pixel (https://www.scale2x.it/algorithm).
+     */
+    private static MaskRaster reference2x(MaskRaster src) {
+        MaskRaster out = new MaskRaster(src.width * 2, src.height * 2);
+        for (int x = 0; x < src.height; x++) {
+            for (int y = 0; y < src.width; y++) {
+                int b = getPixel(src, x - 1, y);
+                int d = getPixel(src, x, y - 1);
+                int e = getPixel(src, x, y);
+                int f = getPixel(src, x, y + 1);
+                int h = getPixel(src, x + 1, y);
+
+                int e0 = e, e1 = e, e2 = e, e3 = e;
+                if (b != h && d != f) {
+                    if (d == b) e0 = d;
+                    if (b == f) e1 = f;
+                    if (d == h) e2 = d;
+                    if (h == f) e3 = f;
+                }
+                out.set(2 * x, 2 * y, e0);
+                out.set(2 * x, 2 * y + 1, e1);
+                out.set(2 * x + 1, 2 * y, e2);
+                out.set(2 * x + 1, 2 * y + 1, e3);
+            }
+        }
+
+
+        return out;
+    }
+
+    /**
+     * Scale3x pixel per pixel (https://www.scale2x.it/algorithm).
+     */
+    private static MaskRaster reference3x(MaskRaster src) {
+        MaskRaster out = new MaskRaster(src.width * 3, src.height * 3);
+        for (int x = 0; x < src.height; x++) {
+            for (int y = 0; y < src.width; y++) {
+                int a = getPixel(src, x - 1, y - 1);
+                int b = getPixel(src, x - 1, y);
+                int c = getPixel(src, x - 1, y + 1);
+                int d = getPixel(src, x, y - 1);
+                int e = getPixel(src, x, y);
+                int f = getPixel(src, x, y + 1);
+                int g = getPixel(src, x + 1, y - 1);
+                int h = getPixel(src, x + 1, y);
+                int i = getPixel(src, x + 1, y + 1);
+
+                int[] block = {e, e, e, e, e, e, e, e, e};
+                if (b != h && d != f) {
+                    if (d == b) block[0] = d;
+                    if ((d == b && e != c) || (b == f && e != a)) block[1] = b;
+                    if (b == f) block[2] = f;
+                    if ((d == b && e != g) || (d == h && e != a)) block[3] = d;
+                    if ((b == f && e != i) || (h == f && e != c)) block[5] = f;
+                    if (d == h) block[6] = d;
+                    if ((d == h && e != i) || (h == f && e != g)) block[7] = h;
+                    if (h == f) block[8] = f;
+                }
+                for (int k = 0; k < 9; k++) out.set(3 * x + k / 3, 3 * y + k % 3, block[k]);
+            }
+        }
+
+
+        return out;
+    }
+
+    /**
+     * Pixel della maschera, con le coordinate fuori dai limiti riportate al margine.
+     */
+    private static int getPixel(MaskRaster mask, int x, int y) {
+        x = Math.max(0, Math.min(mask.height - 1, x));
+        y = Math.max(0, Math.min(mask.width - 1, y));
+
+
+        return mask.get(x, y);
+    }
+
+    /**
+     * Maschera casuale con pochi valori, così che i confronti tra vicini siano spesso uguali.
+     */
+    private static MaskRaster randomMask(Random random, int width, int height) {
+        MaskRaster mask = new MaskRaster(width, height);
+        int values = 2 + random.nextInt(2);
+        for (int i = 0; i < mask.data.length; i++) mask.data[i] = random.nextInt(values);
+
+
+        return mask;
+    }
+}
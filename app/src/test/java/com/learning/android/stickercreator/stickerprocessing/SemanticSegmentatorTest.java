@@ -0,0 +1,283 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.tensorflow.lite.DataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link SemanticSegmentator} con {@link FakeSegmentationBackend}: decodifica delle
+ * uscite float, quantizzate e binarie, e segmentazione in lotti confrontata con quella di
+ * una immagine alla volta.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SemanticSegmentatorTest {
+
+    private static final int SIZE = 64;
+
+    // Persona della rete: righe [10, 30), colonne [20, 50). Non simmetrico, per riconoscere la trasposizione
+    private static final int TOP = 10;
+    private static final int LEFT = 20;
+    private static final int BOTTOM = 30;
+    private static final int RIGHT = 50;
+
+    @Test
+    public void decode_floatScores() {
+        assertRectangle(new FakeSegmentationBackend(DataType.FLOAT32, 21, TOP, LEFT, BOTTOM, RIGHT));
+    }
+
+    @Test
+    public void decode_uint8Scores() {
+        assertRectangle(new FakeSegmentationBackend(DataType.UINT8, 21, TOP, LEFT, BOTTOM, RIGHT));
+    }
+
+    @Test
+    public void decode_int8Scores() {
+        assertRectangle(new FakeSegmentationBackend(DataType.INT8, 21, TOP, LEFT, BOTTOM, RIGHT));
+    }
+
+    @Test
+    public void decode_binaryModels() {
+        for (DataType type : Arrays.asList(DataType.FLOAT32, DataType.UINT8, DataType.INT8)) {
+            assertRectangle(new FakeSegmentationBackend(type, 2, TOP, LEFT, BOTTOM, RIGHT));
+            assertRectangle(new FakeSegmentationBackend(type, 1, TOP, LEFT, BOTTOM, RIGHT));
+        }
+    }
+
+    @Test
+    public void decode_singleLogitAlphaIsSigmoid() {
+        for (DataType type : Arrays.asList(DataType.FLOAT32, DataType.UINT8, DataType.INT8)) {
+            SemanticSegmentator segmentator = new SemanticSegmentator(
+                    new FakeSegmentationBackend(type, 1, TOP, LEFT, BOTTOM, RIGHT));
+            AlphaMatte alpha = new AlphaMatte(SIZE, SIZE);
+            assertNotNull(segmentator.segment(bitmap(SIZE), 1, alpha));
+
+            // Logit 1 dentro la persona e -1 fuori
+            int inside = Math.round(255 / (1 + (float) Math.exp(-1)));
+            int outside = Math.round(255 / (1 + (float) Math.exp(1)));
+            for (int x = 0; x < SIZE; x++) {
+                for (int y = 0; y < SIZE; y++) {
+                    assertEquals(type + " (" + x + ", " + y + ")", inRectangle(x, y) ? inside : outside, alpha.get(x, y));
+                }
+            }
+            segmentator.close();
+        }
+    }
+
+    @Test
+    public void segment_noPersonReturnsNull() {
+        SemanticSegmentator segmentator = new SemanticSegmentator(new FakeSegmentationBackend(0, 0, 0, 0));
+
+        assertNull(segmentator.segment(bitmap(SIZE)));
+    }
+
+    @Test
+    public void segment_quantizedInput() {
+        for (DataType type : Arrays.asList(DataType.FLOAT32, DataType.UINT8, DataType.INT8)) {
+            FakeSegmentationBackend backend = new FakeSegmentationBackend(type, 21, 0, 0, 0, 0);
+            backend.setTraceInput(true);
+            SemanticSegmentator segmentator = new SemanticSegmentator(backend);
+            Bitmap bmp = bitmap(SIZE, 5, 7, 40, 22);
+
+            assertTraced(bmp, 1, segmentator.segment(bmp, 1, null));
+        }
+    }
+
+    @Test
+    public void segmentBatch_matchesSegment() {
+        Random random = new Random(42);
+        for (DataType type : Arrays.asList(DataType.FLOAT32, DataType.UINT8)) {
+            for (int sampling = 1; sampling <= 2; sampling++) {
+                // Due lotti: uno completo e uno più corto, che non deve leggere le immagini del precedente
+                List<Bitmap> bitmaps = randomBitmaps(random, 7, SIZE * sampling);
+                FakeSegmentationBackend backend = tracingBackend(type);
+                SemanticSegmentator segmentator = new SemanticSegmentator(backend);
+
+                List<MaskRaster> batch = segmentator.segmentBatch(bitmaps, sampling, null, null);
+
+                assertEquals(2, backend.getRuns());
+                assertEquals(bitmaps.size(), batch.size());
+                SemanticSegmentator single = new SemanticSegmentator(tracingBackend(type));
+                for (int k = 0; k < bitmaps.size(); k++) {
+                    MaskRaster expected = single.segment(bitmaps.get(k), sampling, null);
+                    assertArrayEquals(type + " x" + sampling + " image " + k, expected.data, batch.get(k).data);
+                    assertTraced(bitmaps.get(k), sampling, batch.get(k));
+                }
+
+                // Dopo il lotto la segmentazione singola riporta il backend a una immagine
+                assertTraced(bitmaps.get(0), sampling, segmentator.segment(bitmaps.get(0), sampling, null));
+                assertEquals(1, backend.getBatchSize());
+            }
+        }
+    }
+
+    @Test
+    public void segmentBatch_shortTailRunsOneImageAtATime() {
+        for (int count = 1; count <= 2 * SemanticSegmentator.getMaxBatch(); count++) {
+            List<Bitmap> bitmaps = randomBitmaps(new Random(count), count, SIZE);
+            FakeSegmentationBackend backend = tracingBackend(DataType.FLOAT32);
+
+            List<MaskRaster> masks = new SemanticSegmentator(backend).segmentBatch(bitmaps);
+
+            // Lotti pieni, poi la coda: nel tensore se più lunga di metà lotto, altrimenti una per volta
+            int max = SemanticSegmentator.getMaxBatch();
+            int tail = count % max;
+            int runs = count / max + (tail > max / 2 ? 1 : tail);
+            assertEquals("count " + count, runs, backend.getRuns());
+            for (int k = 0; k < count; k++) assertTraced(bitmaps.get(k), 1, masks.get(k));
+        }
+    }
+
+    @Test
+    public void segmentBatch_clearsUnusedSlots() {
+        int max = SemanticSegmentator.getMaxBatch();
+        List<Bitmap> bitmaps = randomBitmaps(new Random(3), 2 * max - 1, SIZE);
+        FakeSegmentationBackend backend = tracingBackend(DataType.FLOAT32);
+
+        new SemanticSegmentator(backend).segmentBatch(bitmaps);
+
+        // L'ultimo lotto ha max - 1 immagini: l'ultima posizione non ripete quella del lotto precedente
+        assertEquals(2, backend.getRuns());
+        for (int k = 0; k < max - 1; k++) assertFalse(backend.isBlank(k));
+        assertTrue(backend.isBlank(max - 1));
+    }
+
+    @Test
+    public void segmentBatch_fallsBackWhenBatchRejected() {
+        List<Bitmap> bitmaps = randomBitmaps(new Random(7), 6, SIZE);
+        FakeSegmentationBackend backend = tracingBackend(DataType.FLOAT32);
+        backend.setMaxBatch(1);
+        SemanticSegmentator segmentator = new SemanticSegmentator(backend);
+
+        List<MaskRaster> masks = segmentator.segmentBatch(bitmaps);
+
+        // Un'inferenza per immagine, lotto tornato a una immagine
+        assertEquals(bitmaps.size(), backend.getRuns());
+        assertEquals(1, backend.getBatchSize());
+        for (int k = 0; k < bitmaps.size(); k++) assertTraced(bitmaps.get(k), 1, masks.get(k));
+
+        // Il rifiuto è ricordato: niente nuovi tentativi
+        segmentator.segmentBatch(bitmaps);
+        assertEquals(2 * bitmaps.size(), backend.getRuns());
+    }
+
+    @Test
+    public void segmentBatch_reportsImagesWithoutPerson() {
+        FakeSegmentationBackend backend = tracingBackend(DataType.FLOAT32);
+        SemanticSegmentator segmentator = new SemanticSegmentator(backend);
+        List<Bitmap> bitmaps = Arrays.asList(bitmap(SIZE, 0, 0, 10, 10), bitmap(SIZE), bitmap(SIZE, 3, 3, 4, 4));
+
+        List<MaskRaster> masks = segmentator.segmentBatch(bitmaps);
+
+        assertNotNull(masks.get(0));
+        assertNull(masks.get(1));
+        assertNotNull(masks.get(2));
+    }
+
+    @Test
+    public void personClass() {
+        assertEquals(15, SemanticSegmentator.personClass(21, null));
+        assertEquals(1, SemanticSegmentator.personClass(2, null));
+        assertEquals(0, SemanticSegmentator.personClass(1, null));
+        assertEquals(1, SemanticSegmentator.personClass(3, Arrays.asList("background", " Person ", "cat")));
+        assertEquals(-1, SemanticSegmentator.personClass(2, Arrays.asList("background", "cat")));
+    }
+
+    /**
+     * Segmenta una bitmap qualsiasi e controlla che maschera e risultato corrispondano al
+     * rettangolo del backend, trasposto.
+     */
+    private static void assertRectangle(FakeSegmentationBackend backend) {
+        SemanticSegmentator segmentator = new SemanticSegmentator(backend);
+        MaskRaster mask = segmentator.segment(bitmap(SIZE));
+
+        assertNotNull(mask);
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                assertEquals("(" + x + ", " + y + ")", inRectangle(x, y) ? 1 : 0, mask.get(x, y));
+            }
+        }
+        segmentator.close();
+        assertTrue(backend.isClosed());
+    }
+
+    /**
+     * Il pixel (i, j) della rete è l'elemento (j, i) della maschera.
+     */
+    private static boolean inRectangle(int x, int y) {
+        return y >= TOP && y < BOTTOM && x >= LEFT && x < RIGHT;
+    }
+
+    /**
+     * Controlla la maschera di un backend che traccia l'ingresso: l'elemento (x, y) è persona se
+     * il blocco campionato della colonna x e riga y della bitmap ha il canale rosso non nullo.
+     */
+    private static void assertTraced(Bitmap bmp, int sampling, MaskRaster mask) {
+        assertNotNull(mask);
+        for (int x = 0; x < mask.height; x++) {
+            for (int y = 0; y < mask.width; y++) {
+                boolean red = Color.red(bmp.getPixel(x * sampling, y * sampling)) != 0;
+                assertEquals("(" + x + ", " + y + ")", red ? 1 : 0, mask.get(x, y));
+            }
+        }
+    }
+
+    private static FakeSegmentationBackend tracingBackend(DataType type) {
+        FakeSegmentationBackend backend = new FakeSegmentationBackend(type, 21, 0, 0, 0, 0);
+        backend.setTraceInput(true);
+
+
+        return backend;
+    }
+
+    /**
+     * Bitmap con un rettangolo rosso casuale, allineato ai blocchi di campionamento.
+     */
+    private static List<Bitmap> randomBitmaps(Random random, int count, int size) {
+        int sampling = size / SIZE;
+        List<Bitmap> bitmaps = new ArrayList<>();
+        for (int k = 0; k < count; k++) {
+            int top = random.nextInt(SIZE - 1);
+            int left = random.nextInt(SIZE - 1);
+            int bottom = top + 1 + random.nextInt(SIZE - top);
+            int right = left + 1 + random.nextInt(SIZE - left);
+            bitmaps.add(bitmap(size, top * sampling, left * sampling, bottom * sampling, right * sampling));
+        }
+
+
+        return bitmaps;
+    }
+
+    /**
+     * Bitmap nera.
+     */
+    private static Bitmap bitmap(int size) {
+        return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Bitmap nera con un rettangolo rosso: righe [top, bottom), colonne [left, right).
+     */
+    private static Bitmap bitmap(int size, int top, int left, int bottom, int right) {
+        int[] pixels = new int[size * size];
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) pixels[y * size + x] = Color.RED;
+        }
+
+        Bitmap bmp = bitmap(size);
+        bmp.setPixels(pixels, 0, size, 0, 0, size, size);
+
+
+        return bmp;
+    }
+}
@@ -0,0 +1,340 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link StickerBatch}: le immagini attraversano la pipeline vera, con il caricamento
+ * sostituito da bitmap sintetiche e l'inferenza eseguita da {@link FakeSegmentationBackend}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StickerBatchTest {
+
+    // Lato degli sticker: un solo campionamento, maschere piccole
+    private static final int SIZE = 64;
+
+    private Context mContext;
+    private final List<TestPipeline> mPipelines = new ArrayList<>();
+
+    /**
+     * Pipeline con immagini sintetiche e un pool il cui unico segmentatore usa il backend dato.
+     * Contano i job tra l'inizio del caricamento e la fine della post-elaborazione.
+     */
+    private static class TestPipeline extends StickerPipeline {
+        final FakeSegmentationBackend backend;
+        final SegmentatorPool pool;
+
+        // Job caricati e non ancora terminati, e il loro massimo
+        private int mInFlight;
+        private int mMaxInFlight;
+
+        // Attesa in post-elaborazione, per rendere questa la fase più lenta
+        long finishDelay;
+
+        TestPipeline(Context context, final FakeSegmentationBackend backend) {
+            super(context);
+            this.backend = backend;
+            pool = new SegmentatorPool(context, 1) {
+                @Override
+                SemanticSegmentator createSegmentator() {
+                    return new SemanticSegmentator(backend);
+                }
+            };
+        }
+
+        @Override
+        SegmentatorPool getPool() {
+            return pool;
+        }
+
+        @Override
+        public boolean decode(StickerJob job, Listener listener) {
+            started();
+
+            if (!job.isAlive()) return false;
+            job.source = Bitmap.createBitmap(job.width, job.height, Bitmap.Config.ARGB_8888);
+            job.original = Bitmap.createBitmap(job.width, job.height, Bitmap.Config.ARGB_8888);
+
+
+            return true;
+        }
+
+        @Override
+        public boolean finish(StickerJob job, Listener listener) {
+            try {
+                Thread.sleep(finishDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+
+            return super.finish(job, listener);
+        }
+
+        synchronized void started() {
+            mInFlight++;
+            mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+        }
+
+        synchronized void completed() {
+            mInFlight--;
+        }
+
+        synchronized int getInFlight() {
+            return mInFlight;
+        }
+
+        synchronized int getMaxInFlight() {
+            return mMaxInFlight;
+        }
+
+        /**
+         * Indice dell'immagine del job, dall'URI creato da {@link #uris(int)}.
+         */
+        static int indexOf(StickerJob job) {
+            return Integer.parseInt(job.uri.getLastPathSegment());
+        }
+    }
+
+    /**
+     * Callback che registra gli indici notificati e chiude il job nelle statistiche della pipeline.
+     */
+    private static class RecordingCallback implements StickerBatch.Callback {
+        final TestPipeline pipeline;
+        final List<Integer> indices = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingCallback(TestPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void onStickerCompleted(int index, StickerResult result) {
+            pipeline.completed();
+            indices.add(index);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        for (TestPipeline pipeline : mPipelines) pipeline.pool.close();
+    }
+
+    @Test
+    public void process_returnsResultsInInputOrder() throws InterruptedException {
+        TestPipeline pipeline = pipeline(new FakeSegmentationBackend(16, 16, 48, 48));
+        RecordingCallback callback = new RecordingCallback(pipeline);
+        List<Uri> uris = uris(10);
+
+        List<StickerResult> results = new StickerBatch(pipeline, 3, 2, 2).process(uris, SIZE, SIZE, callback);
+
+        assertEquals(uris.size(), results.size());
+        for (int i = 0; i < uris.size(); i++) {
+            StickerResult result = results.get(i);
+            assertEquals(uris.get(i), result.getUri());
+            assertTrue(result.isSuccessful());
+            assertEquals(SIZE, result.getSticker().getWidth());
+        }
+
+        // Ogni immagine notificata una sola volta
+        assertEquals(uris.size(), callback.indices.size());
+        assertEquals(uris.size(), new HashSet<>(callback.indices).size());
+
+        // Lotti di al più MAX_BATCH immagini, secondo quante sono già caricate
+        int runs = pipeline.backend.getRuns();
+        assertTrue("Runs: " + runs, runs >= 3 && runs <= uris.size());
+    }
+
+    @Test
+    public void process_doesNotWaitForFullBatch() throws InterruptedException {
+        // Le immagini successive finiscono di caricarsi solo dopo che la prima è stata completata
+        final CountDownLatch first = new CountDownLatch(1);
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        TestPipeline pipeline = new TestPipeline(mContext, new FakeSegmentationBackend(16, 16, 48, 48)) {
+            @Override
+            public boolean decode(StickerJob job, Listener listener) {
+                try {
+                    if (indexOf(job) > 0 && !first.await(5, TimeUnit.SECONDS)) timedOut.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+
+                return super.decode(job, listener);
+            }
+        };
+        mPipelines.add(pipeline);
+        RecordingCallback callback = new RecordingCallback(pipeline) {
+            @Override
+            public void onStickerCompleted(int index, StickerResult result) {
+                super.onStickerCompleted(index, result);
+                if (index == 0) first.countDown();
+            }
+        };
+        List<Uri> uris = uris(SemanticSegmentator.getMaxBatch() + 1);
+
+        List<StickerResult> results = new StickerBatch(pipeline, 2, 1, 2).process(uris, SIZE, SIZE, callback);
+
+        assertFalse(timedOut.get());
+        assertEquals(Integer.valueOf(0), callback.indices.get(0));
+        for (StickerResult result : results) assertTrue(result.isSuccessful());
+    }
+
+    @Test
+    public void process_batchesImagesQueuedDuringInference() throws InterruptedException {
+        // Inferenza lenta e caricamento immediato: durante un'inferenza la coda si riempie
+        TestPipeline pipeline = new TestPipeline(mContext, new FakeSegmentationBackend(16, 16, 48, 48)) {
+            @Override
+            public void segment(List<StickerJob> jobs, Listener listener) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.segment(jobs, listener);
+            }
+        };
+        mPipelines.add(pipeline);
+        List<Uri> uris = uris(4 * SemanticSegmentator.getMaxBatch());
+
+        List<StickerResult> results = new StickerBatch(pipeline, 2, 2, SemanticSegmentator.getMaxBatch())
+                .process(uris, SIZE, SIZE, null);
+
+        for (StickerResult result : results) assertTrue(result.isSuccessful());
+        assertTrue("Runs: " + pipeline.backend.getRuns(), pipeline.backend.getRuns() < uris.size() / 2);
+    }
+
+    @Test
+    public void process_boundsImagesInFlight() throws InterruptedException {
+        TestPipeline pipeline = pipeline(new FakeSegmentationBackend(16, 16, 48, 48));
+        pipeline.finishDelay = 20;
+        RecordingCallback callback = new RecordingCallback(pipeline);
+        List<Uri> uris = uris(24);
+        int ioThreads = 2;
+        int cpuThreads = 1;
+        int capacity = 1;
+
+        List<StickerResult> results = new StickerBatch(pipeline, ioThreads, cpuThreads, capacity)
+                .process(uris, SIZE, SIZE, callback);
+
+        for (StickerResult result : results) assertTrue(result.isSuccessful());
+
+        // Con la post-elaborazione più lenta le fasi a monte si fermano: in volo al massimo i
+        //  caricamenti, le due code, il lotto dell'inferenza e le post-elaborazioni
+        int bound = ioThreads + capacity + SemanticSegmentator.getMaxBatch() + capacity + cpuThreads;
+        assertTrue("In flight: " + pipeline.getMaxInFlight(), pipeline.getMaxInFlight() <= bound);
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void process_failuresStayOnTheirImages() throws InterruptedException {
+        final Set<Integer> failedBatch = Collections.synchronizedSet(new HashSet<Integer>());
+        TestPipeline pipeline = new TestPipeline(mContext, new FakeSegmentationBackend(16, 16, 48, 48)) {
+            @Override
+            public boolean decode(StickerJob job, Listener listener) {
+                boolean alive = super.decode(job, listener);
+                if (indexOf(job) == 2) throw new IllegalStateException("decode");
+
+
+                return alive;
+            }
+
+            @Override
+            public void segment(List<StickerJob> jobs, Listener listener) {
+                Set<Integer> indices = new HashSet<>();
+                for (StickerJob job : jobs) indices.add(indexOf(job));
+
+                // Un Error non deve bloccare il lotto né le immagini successive
+                if (indices.contains(7)) {
+                    failedBatch.addAll(indices);
+                    throw new AssertionError("segment");
+                }
+                super.segment(jobs, listener);
+            }
+
+            @Override
+            public boolean finish(StickerJob job, Listener listener) {
+                if (indexOf(job) == 5) throw new OutOfMemoryError("finish");
+
+
+                return super.finish(job, listener);
+            }
+        };
+        mPipelines.add(pipeline);
+        RecordingCallback callback = new RecordingCallback(pipeline);
+        List<Uri> uris = uris(10);
+
+        List<StickerResult> results = new StickerBatch(pipeline, 2, 2, 2).process(uris, SIZE, SIZE, callback);
+
+        assertEquals(uris.size(), callback.indices.size());
+        for (int i = 0; i < uris.size(); i++) {
+            StickerResult result = results.get(i);
+            assertEquals(uris.get(i), result.getUri());
+
+            boolean failed = i == 2 || i == 5 || failedBatch.contains(i);
+            assertEquals(failed ? StickerResult.Status.ERROR : StickerResult.Status.OK, result.getStatus());
+            assertEquals(failed, result.getSticker() == null);
+        }
+    }
+
+    @Test
+    public void process_reportsImagesWithoutPerson() throws InterruptedException {
+        // Rettangolo vuoto: nessun pixel è persona
+        TestPipeline pipeline = pipeline(new FakeSegmentationBackend(0, 0, 0, 0));
+        List<Uri> uris = uris(5);
+
+        List<StickerResult> results = new StickerBatch(pipeline, 2, 2, 2).process(uris, SIZE, SIZE, null);
+
+        for (int i = 0; i < uris.size(); i++) {
+            assertEquals(uris.get(i), results.get(i).getUri());
+            assertEquals(StickerResult.Status.NO_PERSON, results.get(i).getStatus());
+        }
+    }
+
+    @Test
+    public void process_emptyList() throws InterruptedException {
+        TestPipeline pipeline = pipeline(new FakeSegmentationBackend(16, 16, 48, 48));
+
+        assertTrue(new StickerBatch(pipeline, 1, 1, 1).process(new ArrayList<Uri>(), SIZE, SIZE, null).isEmpty());
+        assertEquals(0, pipeline.backend.getRuns());
+    }
+
+    private TestPipeline pipeline(FakeSegmentationBackend backend) {
+        TestPipeline pipeline = new TestPipeline(mContext, backend);
+        mPipelines.add(pipeline);
+
+
+        return pipeline;
+    }
+
+    private static List<Uri> uris(int count) {
+        List<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < count; i++) uris.add(Uri.parse("content://stickers/image/" + i));
+
+
+        return uris;
+    }
+}
@@ -0,0 +1,114 @@
+package com.learning.android.stickercreator.stickerprocessing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test di {@link StickerCache} su voci corrotte: un'intestazione con dimensioni o lunghezze
+ * impossibili deve far scartare la voce senza allocare, e l'hash di un buffer non deve
+ * spostarne la posizione.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StickerCacheTest {
+
+    private static final String KEY = "entry";
+
+    private File mDirectory;
+    private StickerCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("StickerCacheTest", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdirs());
+        mCache = new StickerCache(mDirectory, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void get_missingEntry() {
+        assertNull(mCache.get(KEY));
+    }
+
+    @Test
+    public void get_rejectsHugeMask() throws IOException {
+        // Larghezza per altezza oltre l'intero: non deve diventare un'allocazione
+        assertRejected(1, 1 << 16, 1 << 16, 8);
+        assertRejected(1, SemanticSegmentator.getInputSize() + 1, SemanticSegmentator.getInputSize(), 8);
+    }
+
+    @Test
+    public void get_rejectsNonPositiveSize() throws IOException {
+        assertRejected(1, 0, 10, 8);
+        assertRejected(1, 10, -1, 8);
+    }
+
+    @Test
+    public void get_rejectsMaskLongerThanFile() throws IOException {
+        assertRejected(1, 10, 10, Integer.MAX_VALUE);
+        assertRejected(1, 10, 10, -1);
+    }
+
+    @Test
+    public void get_rejectsTruncatedEntry() throws IOException {
+        // Lunghezza valida ma dati compressi mancanti o non validi
+        assertRejected(1, 10, 10, 0);
+    }
+
+    @Test
+    public void get_rejectsUnknownFormat() throws IOException {
+        assertRejected(99, 10, 10, 0);
+    }
+
+    @Test
+    public void hash_keepsBufferPosition() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        buffer.position(1);
+
+        String hash = StickerCache.hash(buffer);
+
+        assertEquals(1, buffer.position());
+        assertEquals(hash, StickerCache.hash(buffer));
+        assertEquals(64, hash.length());
+
+        // Stessa lunghezza, contenuto diverso
+        assertNotEquals(hash, StickerCache.hash(ByteBuffer.wrap(new byte[]{1, 2, 3, 5}, 1, 3)));
+    }
+
+    /**
+     * Scrive una voce con l'intestazione data e controlla che venga scartata ed eliminata.
+     */
+    private void assertRejected(int version, int width, int height, int packedLength) throws IOException {
+        File file = new File(mDirectory, KEY);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(version);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(packedLength);
+            out.write(new byte[8]);
+        } finally {
+            out.close();
+        }
+
+        String header = version + ", " + width + "x" + height + ", " + packedLength;
+        assertNull(header, mCache.get(KEY));
+        assertFalse(header, file.exists());
+    }
+}